@@ -0,0 +1,156 @@
+package ir.control;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+
+/**
+ *
+ * CommitScheduler class, in charge of adding documents to a shared index writer and committing them in batches,
+ * instead of after every document.
+ * <p>
+ * A commit is made when any of the following limits is reached since the last commit: a number of documents,
+ * a number of seconds or a number of megabytes of pending documents. A limit with value 0 is not used.
+ * <p>
+ * Every document is also appended to a PendingDocumentLog before being handed to the writer. The log is truncated
+ * after each commit, so at any time it holds exactly the documents that are not yet committed. These can be replayed
+ * after a crash.
+ * <p>
+ * Documents are added concurrently. Only the commit itself excludes the threads adding documents, so that no
+ * document can end up in the log after the commit that included it, or be lost between the commit and the truncation.
+ *
+ */
+public class CommitScheduler {
+
+	/**Shared index writer.*/
+	private IndexWriter writer;
+
+	/**Log of pending documents.*/
+	private PendingDocumentLog log;
+
+	/**Commit after this number of documents. 0 for no limit.*/
+	private int maxDocuments;
+
+	/**Commit after this number of seconds, if there are pending documents. 0 for no limit.*/
+	private int maxSeconds;
+
+	/**Commit after this number of megabytes in the log. 0 for no limit.*/
+	private int maxMegabytes;
+
+	/**Number of documents added since the last commit.*/
+	private AtomicInteger pendingDocuments= new AtomicInteger(0);
+
+	/**Lock that allows many concurrent additions (read lock) or one commit (write lock).*/
+	private ReentrantReadWriteLock commit_lock= new ReentrantReadWriteLock();
+
+	/**Timer for the commits after a number of seconds. Null if not used.*/
+	private ScheduledExecutorService timer=null;
+
+	/**
+	 * Parametric constructor. It starts the timer for commits after a number of seconds, if needed.
+	 *
+	 * @param writer shared index writer
+	 * @param log log of pending documents. It must be empty, or replayed already.
+	 * @param maxDocuments commit after this number of documents. 0 for no limit.
+	 * @param maxSeconds commit after this number of seconds, if there are pending documents. 0 for no limit.
+	 * @param maxMegabytes commit after this number of megabytes of pending documents. 0 for no limit.
+	 */
+	public CommitScheduler(IndexWriter writer, PendingDocumentLog log, int maxDocuments, int maxSeconds, int maxMegabytes){
+		this.writer=writer;
+		this.log=log;
+		this.maxDocuments=maxDocuments;
+		this.maxSeconds=maxSeconds;
+		this.maxMegabytes=maxMegabytes;
+		if (maxSeconds>0){
+			timer=Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				public Thread newThread(Runnable r) {
+					Thread t= new Thread(r, "CommitScheduler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			timer.scheduleWithFixedDelay(new Runnable(){
+				public void run() {
+					try {
+						if (pendingDocuments.get()>0){
+							commit();
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+						System.out.println("Scheduled commit of the index failed. It will be tried again.");
+					}
+				}
+			}, maxSeconds, maxSeconds, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Function to add a document to the index. The document is first logged, and a commit is made afterwards if any limit is reached.
+	 *
+	 * @param updateTerm term identifying a previous version of the document, to be replaced. Null if the document is only added.
+	 * @param doc document to be indexed
+	 * @param fields values of the fields of the document, as they should be logged.
+	 *
+	 * @throws IOException if the document could not be logged or indexed.
+	 */
+	public void addDocument(Term updateTerm, Document doc, String[] fields) throws IOException{
+		commit_lock.readLock().lock();
+		try {
+			log.append(fields);
+			if (updateTerm==null){
+				writer.addDocument(doc);
+			}
+			else {
+				writer.updateDocument(updateTerm, doc);
+			}
+		}
+		finally {
+			commit_lock.readLock().unlock();
+		}
+		int pending=pendingDocuments.incrementAndGet();
+		if ((maxDocuments>0 && pending>=maxDocuments) ||
+			(maxMegabytes>0 && log.length()>=maxMegabytes*1024L*1024L)){
+			commit();
+		}
+	}
+
+	/**
+	 * Function to commit all documents added so far, and truncate the log afterwards.
+	 * If another thread has just committed, there is nothing left to do.
+	 *
+	 * @throws IOException if the commit failed. The log is kept in that case.
+	 */
+	public void commit() throws IOException{
+		commit_lock.writeLock().lock();
+		try {
+			if (pendingDocuments.get()>0){
+				writer.commit();
+				log.truncate();
+				pendingDocuments.set(0);
+			}
+		}
+		finally {
+			commit_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Function to stop the timer and make a final commit.
+	 *
+	 * @throws IOException if the final commit failed.
+	 */
+	public void close() throws IOException{
+		if (timer!=null){
+			timer.shutdownNow();
+		}
+		commit();
+	}
+}
@@ -0,0 +1,213 @@
+package ir.control;
+
+import ir.model.CrawlUrl;
+import ir.model.ItemUrl;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.MalformedURLException;
+
+/**
+ *
+ * CrawlCheckpoint class, the state of a crawl that is not kept elsewhere, so that the crawl can be resumed after being stopped:
+ * its parameters and the URLs still to be crawled (pending, being crawled, or being processed by the pipeline), with their depths.
+ * <p>
+ * The visited URLs, excluded URLs, robots.txt rules and page versions are kept in their own files next to the index, and the
+ * documents not yet committed in the pending log, so they are not part of the checkpoint.
+ * <p>
+ * The checkpoint is a text file: a header line with the crawl depth and the time it was taken, and then one tab-separated line per URL
+ * with its depth. It is written to a temporary file first, and then renamed, so a crash while saving leaves the previous checkpoint.
+ * <p>
+ * Both ways, the URLs are streamed one at a time (see Writer and forEach), so a checkpoint of a frontier spilled to disk is 
+ * never held in memory.
+ *
+ */
+public class CrawlCheckpoint {
+
+	/**Charset of the file.*/
+	private static final String CHARSET="UTF-8";
+
+	/**Start of the header line, also telling the file apart from other files.*/
+	private static final String HEADER="#checkpoint";
+
+	/**Maximum crawl depth of the crawl.*/
+	private int crawlDepth;
+
+	/**Time when the checkpoint was taken, in milliseconds since the epoch.*/
+	private long createdAt;
+
+	/**Location of the checkpoint, from which its URLs are read.*/
+	private File file;
+
+	/**
+	 * Parametric constructor.
+	 *
+	 * @param crawlDepth maximum crawl depth of the crawl
+	 * @param createdAt time when the checkpoint was taken, in milliseconds since the epoch
+	 * @param file location of the checkpoint
+	 */
+	private CrawlCheckpoint(int crawlDepth, long createdAt, File file){
+		this.crawlDepth=crawlDepth;
+		this.createdAt=createdAt;
+		this.file=file;
+	}
+
+	public int getCrawlDepth(){
+		return crawlDepth;
+	}
+
+	public long getCreatedAt(){
+		return createdAt;
+	}
+
+	/**
+	 * Function to read the URLs still to be crawled, one at a time, in the order they were written. Malformed lines are skipped.
+	 *
+	 * @param sink receiver of the urls, next to their depths.
+	 *
+	 * @return number of URLs read.
+	 *
+	 * @throws IOException if the file cannot be read, or the sink fails.
+	 */
+	public int forEach(FrontierSpillStore.ItemSink sink) throws IOException{
+		BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+		try {
+			reader.readLine(); //The header, checked by load.
+			int count=0;
+			String line;
+			while ((line=reader.readLine())!=null){
+				int tab=line.lastIndexOf('\t');
+				if (tab<0){
+					continue;
+				}
+				ItemUrl item;
+				try {
+					item=new ItemUrl(CrawlUrl.parse(line.substring(0, tab)), Integer.parseInt(line.substring(tab+1)));
+				}
+				catch (NumberFormatException e){
+					System.out.println("Malformed line in "+file.getName()+": "+line);
+					continue;
+				}
+				catch (MalformedURLException e){
+					System.out.println("Malformed line in "+file.getName()+": "+line);
+					continue;
+				}
+				sink.add(item);
+				count++;
+			}
+			return count;
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Writer of a checkpoint, taking its URLs one at a time, so that they need not be held in memory. The checkpoint
+	 * replaces the previous one only when committed.
+	 */
+	public static class Writer implements FrontierSpillStore.ItemSink {
+		private File file;
+		private File temp;
+		private PrintWriter writer;
+		private int count=0;
+
+		/**
+		 * Parametric constructor. It starts writing the checkpoint.
+		 *
+		 * @param file location of the checkpoint
+		 * @param crawlDepth maximum crawl depth of the crawl
+		 * @param createdAt time when the checkpoint was taken, in milliseconds since the epoch
+		 *
+		 * @throws IOException if the file cannot be created.
+		 */
+		public Writer(File file, int crawlDepth, long createdAt) throws IOException{
+			this.file=file;
+			this.temp=new File(file.getPath()+".tmp");
+			this.writer=new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), CHARSET)));
+			writer.println(HEADER+"\t"+crawlDepth+"\t"+createdAt);
+		}
+
+		public void add(ItemUrl item){
+			writer.println(item.getUrl().toString()+"\t"+item.getDepth());
+			count++;
+		}
+
+		/**
+		 * @return number of URLs written so far.
+		 */
+		public int getCount(){
+			return count;
+		}
+
+		/**
+		 * Function to finish the checkpoint, replacing the previous one.
+		 *
+		 * @throws IOException if the file cannot be written. The previous checkpoint is then kept.
+		 */
+		public void commit() throws IOException{
+			writer.close();
+			if (writer.checkError()){
+				temp.delete();
+				throw new IOException("Could not write "+temp.getPath());
+			}
+			if (!temp.renameTo(file)){
+				file.delete(); //On some systems an existing file is not replaced by renameTo.
+				if (!temp.renameTo(file)){
+					throw new IOException("Could not replace "+file.getPath());
+				}
+			}
+		}
+
+		/**
+		 * Function to give up the checkpoint, keeping the previous one.
+		 */
+		public void abort(){
+			writer.close();
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Function to load a checkpoint. Only its header is read: its URLs are read with forEach.
+	 *
+	 * @param file location of the checkpoint
+	 *
+	 * @return the checkpoint, or null if there is none.
+	 *
+	 * @throws IOException if the file exists but cannot be read, or is not a checkpoint.
+	 */
+	public static CrawlCheckpoint load(File file) throws IOException{
+		if (!file.exists()){
+			return null;
+		}
+		BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+		try {
+			String line=reader.readLine();
+			String [] header=line==null ? new String[0] : line.split("\t");
+			if (header.length!=3 || !header[0].equals(HEADER)){
+				throw new IOException("Not a crawl checkpoint: "+file.getPath());
+			}
+			int crawlDepth;
+			long createdAt;
+			try {
+				crawlDepth=Integer.parseInt(header[1]);
+				createdAt=Long.parseLong(header[2]);
+			}
+			catch (NumberFormatException e){
+				throw new IOException("Not a crawl checkpoint: "+file.getPath());
+			}
+			return new CrawlCheckpoint(crawlDepth, createdAt, file);
+		}
+		finally {
+			reader.close();
+		}
+	}
+}
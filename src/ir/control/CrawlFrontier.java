@@ -0,0 +1,544 @@
+package ir.control;
+
+import ir.model.CrawlUrl;
+import ir.model.ItemUrl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * CrawlFrontier class, holding the URLs pending to be crawled, next to their depth.
+ * <p>
+ * URLs are indexed by their normalized form (see CrawlUrl), so inserting a URL, detecting a repeated one and keeping the lowest depth
+ * for it take constant time, without resolving hosts.
+ * <p>
+ * Following the front/back queues of the Mercator crawler, pending URLs are partitioned by host: each host has its own
+ * queue (its back queue), in order of insertion. A thread can therefore take the next URL of a given host in constant time,
+ * without scanning or copying the frontier. Threads can also wait until any of their hosts has pending URLs.
+ * <p>
+ * A URL taken from the frontier stays known to it until it is marked as done, after being visited, so that it is not
+ * added again while it is being crawled.
+ * <p>
+ * The frontier also keeps count of the work in flight: URLs taken and not yet done, and tasks that can still add URLs
+ * (see beginTask). When nothing is pending nor in flight, the crawl is over, and all threads waiting on the frontier are woken up.
+ * Every change that can give work to a waiting thread also wakes it up, so threads never need to poll the frontier.
+ * <p>
+ * For checkpoints, it also keeps the URLs whose pages are being processed after being done (see beginPage), so that 
+ * a snapshot of all the URLs still to be crawled, or whose outlinks are still to be added, can be taken at once.
+ * <p>
+ * For deep crawls, the pending URLs kept in memory can be bounded (see setSpilling). URLs beyond the bound are spilled to disk,
+ * by depth (see FrontierSpillStore), and taken back, lowest depth first, whenever the URLs in memory drop to half the bound. 
+ * While URLs of a depth are on disk, URLs of higher depths are spilled too, so the crawl goes on in depth order. Spilled URLs 
+ * are counted as pending. The store detects repeated ones itself, on disk, and a URL added to memory while spilled takes over 
+ * the spilled copies, with the lowest depth. So the memory used by the frontier stays the same, however big it grows.
+ * <p>
+ * A crawl can also be ended at once, as after an error (see close). The frontier then looks empty and finished to every thread,
+ * whatever was pending or in flight, until it is cleared for the next crawl.
+ * <p>
+ * All functions are synchronized on the frontier itself.
+ *
+ */
+public class CrawlFrontier {
+
+	/**All URLs known to the frontier (pending or being crawled), by their normalized form.*/
+	private Map<CrawlUrl,ItemUrl> entries= new HashMap<CrawlUrl,ItemUrl>();
+
+	/**Queue of pending URLs of each host. Only hosts with pending URLs have a queue.*/
+	private Map<String,ArrayDeque<ItemUrl>> hostQueues= new LinkedHashMap<String,ArrayDeque<ItemUrl>>();
+
+	/**URLs whose pages are being processed, between beginPage and endPage.*/
+	private Map<CrawlUrl,ItemUrl> processing= new HashMap<CrawlUrl,ItemUrl>();
+
+	/**Number of pending URLs in memory, over all hosts.*/
+	private int pendingCount=0;
+	
+	/**Store of the pending URLs spilled to disk, or null if all URLs are kept in memory.*/
+	private FrontierSpillStore spill=null;
+	
+	/**Maximum number of pending URLs kept in memory, when spilling.*/
+	private int maxInMemory=Integer.MAX_VALUE;
+	
+	/**Number of URLs taken and not yet done, plus the number of tasks begun and not yet ended.*/
+	private int inFlightCount=0;
+	
+	/**Flag that indicates if the crawl was ended with close. Cleared by clear.*/
+	private boolean closed=false;
+	
+	/**Hosts seen so far.*/
+	private Set<String> knownHosts= new HashSet<String>();
+	
+	/**Hosts seen for the first time, not yet taken by awaitNewHosts.*/
+	private List<String> newHosts= new ArrayList<String>();
+	
+	/**Counter of calls to signal, so that waiting threads can tell they have been signalled.*/
+	private long generation=0;
+	
+	/**Counter of calls to signal and of new host queues, so that a thread dispatching URLs of any host can tell there may be new work.*/
+	private long version=0;
+
+	/**
+	 * Function to add a URL to the frontier. If the URL is already pending, only the lowest of both depths is kept
+	 * (as this has a higher coverage, causing more crawling). If the URL is being crawled, it is not added again.
+	 * <p>
+	 * Threads waiting for work of the host of the URL are woken up.
+	 *
+	 * @param item normalized url, next to its depth.
+	 *
+	 * @return true if the URL was added, or its depth lowered, false otherwise.
+	 */
+	public synchronized boolean offer(ItemUrl item){
+		if (closed){
+			return false;
+		}
+		CrawlUrl key=item.getUrl();
+		ItemUrl existing=entries.get(key);
+		if (existing==null && spill!=null && (pendingCount>=maxInMemory || (spill.size()>0 && item.getDepth()>spill.lowestDepth()))){
+			try {
+				boolean added=spill.add(item);
+				refill(); //Spilled URLs of lower depths may fit in memory.
+				return added;
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Could not spill the frontier to disk. URLs are kept in memory.");
+				return true;
+			}
+		}
+		if (existing==null && spill!=null && spill.size()>0){
+			/**The URL may be spilled already. Its copies are then skipped, and it is kept in memory, with the lowest depth.*/
+			int spilledDepth=spill.remove(key);
+			if (spilledDepth>=0 && spilledDepth<item.getDepth()){
+				item=new ItemUrl(key, spilledDepth);
+			}
+		}
+		return insert(item, existing);
+	}
+	
+	/**
+	 * Helper function to add a URL to the pending URLs in memory, or lower its depth.
+	 * 
+	 * @param item normalized url, next to its depth.
+	 * @param existing entry of the url in the frontier, or null if none.
+	 * 
+	 * @return true if the URL was added, or its depth lowered, false otherwise.
+	 */
+	private boolean insert(ItemUrl item, ItemUrl existing){
+		CrawlUrl key=item.getUrl();
+		if (existing==null){
+			ItemUrl added=new ItemUrl(key, item.getDepth());
+			entries.put(key, added);
+			String host=key.getHost();
+			ArrayDeque<ItemUrl> queue=hostQueues.get(host);
+			if (queue==null){
+				queue=new ArrayDeque<ItemUrl>();
+				hostQueues.put(host, queue);
+				if (knownHosts.add(host)){
+					newHosts.add(host);
+				}
+				version++;
+				notifyAll(); //The host had no pending work so far.
+			}
+			queue.add(added);
+			pendingCount++;
+			return true;
+		}
+		if (item.getDepth()<existing.getDepth()){
+			existing.setDepth(item.getDepth()); //Same object as in the host queue, if still pending.
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Function to take the next pending URL of a host. The URL stays known to the frontier until done is called for it.
+	 *
+	 * @param host hostname
+	 *
+	 * @return next pending url of the host, next to its depth, or null if there is none.
+	 */
+	public synchronized ItemUrl poll(String host){
+		ArrayDeque<ItemUrl> queue=hostQueues.get(host);
+		if (queue==null || closed){
+			return null;
+		}
+		ItemUrl item=queue.poll();
+		if (queue.isEmpty()){
+			hostQueues.remove(host);
+		}
+		pendingCount--;
+		inFlightCount++;
+		refill();
+		return item;
+	}
+	
+	/**
+	 * Helper function to take spilled URLs back into memory, lowest depth first, if the URLs in memory are down to half the bound. 
+	 * It fills the memory up to the bound. URLs already in the frontier only keep the lowest depth.
+	 */
+	private void refill(){
+		if (spill==null || spill.size()==0 || pendingCount>maxInMemory/2){
+			return;
+		}
+		while (pendingCount<maxInMemory){
+			ItemUrl item=spill.poll();
+			if (item==null){
+				break;
+			}
+			insert(item, entries.get(item.getUrl()));
+		}
+	}
+
+	/**
+	 * Function to take the next pending URL, of any host. The URL stays known to the frontier until done is called for it.
+	 *
+	 * @return next pending url, next to its depth, or null if the frontier is empty.
+	 */
+	public synchronized ItemUrl poll(){
+		refill();
+		if (hostQueues.isEmpty() || closed){
+			return null;
+		}
+		return poll(hostQueues.keySet().iterator().next());
+	}
+
+	/**
+	 * Function to forget a URL taken from the frontier, once it has been crawled or discarded.
+	 *
+	 * @param item url taken from the frontier.
+	 */
+	public synchronized void done(ItemUrl item){
+		entries.remove(item.getUrl());
+		inFlightCount--;
+		if (isFinished()){
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Function to count a task that can add URLs to the frontier, such as a page being processed. It must be called before 
+	 * the work that started the task (a URL or another task) is done or ended, so the crawl is never seen as finished in between.
+	 */
+	public synchronized void beginTask(){
+		inFlightCount++;
+	}
+	
+	/**
+	 * Function to signal that a task counted with beginTask is finished, after it has added its URLs.
+	 */
+	public synchronized void endTask(){
+		inFlightCount--;
+		if (isFinished()){
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Function to record that the page of a URL is being processed, and may still add URLs. It must be called before 
+	 * the URL is done.
+	 * 
+	 * @param item url taken from the frontier
+	 */
+	public synchronized void beginPage(ItemUrl item){
+		processing.put(item.getUrl(), new ItemUrl(item.getUrl(), item.getDepth()));
+	}
+	
+	/**
+	 * Function to record that the page of a URL has been processed, after it has added its URLs.
+	 * 
+	 * @param item url passed to beginPage
+	 */
+	public synchronized void endPage(ItemUrl item){
+		processing.remove(item.getUrl());
+	}
+	
+	/**
+	 * Function to take a snapshot of the URLs still to be crawled: pending, being crawled, or whose pages are being processed.
+	 * The URLs in memory are passed first, each once, and then the spilled ones, as they are read from disk. A spilled URL may
+	 * repeat one passed before, if it was found again, at a lower depth or kept in memory, after it was spilled.
+	 * <p>
+	 * Note: The frontier is only locked while the URLs in memory are copied and the spilled segments are noted (see 
+	 * FrontierSpillStore.snapshot). The URLs are passed to the sink, and the segments read, without the lock.
+	 * 
+	 * @param sink receiver of the urls, next to their depth. It gets copies.
+	 * 
+	 * @throws IOException if the spilled URLs cannot be read, or the sink fails.
+	 */
+	public void snapshot(FrontierSpillStore.ItemSink sink) throws IOException{
+		List<ItemUrl> items;
+		FrontierSpillStore.Snapshot spilled=null;
+		synchronized (this){
+			items=snapshot();
+			if (spill!=null){
+				spilled=spill.snapshot();
+			}
+		}
+		try {
+			for (ItemUrl item: items){
+				sink.add(item);
+			}
+			if (spilled!=null){
+				spilled.forEach(sink);
+			}
+		}
+		finally {
+			if (spilled!=null){
+				spilled.close();
+			}
+		}
+	}
+	
+	/**
+	 * Function to take a snapshot of the URLs in memory still to be crawled: pending, being crawled, or whose pages are being processed.
+	 * 
+	 * @return copies of the urls, next to their depth, each once.
+	 */
+	private List<ItemUrl> snapshot(){
+		Map<CrawlUrl,ItemUrl> results=new LinkedHashMap<CrawlUrl,ItemUrl>();
+		for (ItemUrl item: processing.values()){
+			results.put(item.getUrl(), item);
+		}
+		for (ItemUrl item: entries.values()){
+			ItemUrl previous=results.get(item.getUrl());
+			if (previous==null || item.getDepth()<previous.getDepth()){
+				results.put(item.getUrl(), new ItemUrl(item.getUrl(), item.getDepth()));
+			}
+		}
+		return new ArrayList<ItemUrl>(results.values());
+	}
+	
+	/**
+	 * Function to check if the crawl is over: no URL is pending and there is no work in flight that could add one.
+	 * 
+	 * @return true if the crawl is over, or was closed, false otherwise.
+	 */
+	public synchronized boolean isFinished(){
+		return closed || pendingCount==0 && (spill==null || spill.size()==0) && inFlightCount==0;
+	}
+	
+	/**
+	 * Function to wake up all threads waiting for work, for instance after assigning them more hosts.
+	 */
+	public synchronized void signal(){
+		generation++;
+		version++;
+		notifyAll();
+	}
+	
+	/**
+	 * Function to get the number of calls to signal so far. It should be read before the state that is then waited upon.
+	 * 
+	 * @return generation of the frontier.
+	 */
+	public synchronized long getGeneration(){
+		return generation;
+	}
+
+	/**
+	 * Function to wait until at least one of the given hosts has pending URLs, the frontier is signalled, or the crawl is over.
+	 *
+	 * @param hosts hostnames
+	 * @param generation generation of the frontier read before the hostnames. If signal was called since, there is no wait.
+	 *
+	 * @return true if there may be work for the hosts, false if the crawl is over.
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public boolean awaitWork(Collection<String> hosts, long generation) throws InterruptedException{
+		return awaitWork(hosts, generation, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Function to wait until at least one of the given hosts has pending URLs, the frontier is signalled, the crawl is over,
+	 * or some time has passed.
+	 *
+	 * @param hosts hostnames
+	 * @param generation generation of the frontier read before the hostnames. If signal was called since, there is no wait.
+	 * @param timeoutMillis maximum time to wait, in milliseconds. Long.MAX_VALUE for no limit.
+	 *
+	 * @return true if there may be work for the hosts, false if the crawl is over.
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public synchronized boolean awaitWork(Collection<String> hosts, long generation, long timeoutMillis) throws InterruptedException{
+		long deadline=timeoutMillis==Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis()+timeoutMillis;
+		while (true){
+			if (closed){
+				return false;
+			}
+			for (String host: hosts){
+				if (hostQueues.containsKey(host)){
+					return true;
+				}
+			}
+			if (this.generation!=generation){
+				return true;
+			}
+			if (isFinished()){
+				return false;
+			}
+			long remaining=deadline==Long.MAX_VALUE ? 0 : deadline-System.currentTimeMillis();
+			if (deadline!=Long.MAX_VALUE && remaining<=0){
+				return true;
+			}
+			wait(remaining); //0 waits with no limit.
+		}
+	}
+	
+	/**
+	 * Function to get the number of calls to signal and of host queues created so far. It should be read before 
+	 * the hosts are checked for work.
+	 * 
+	 * @return version of the frontier.
+	 */
+	public synchronized long getVersion(){
+		return version;
+	}
+	
+	/**
+	 * Function to wait until a host queue is created, the frontier is signalled, or the crawl is over.
+	 * 
+	 * @param version version of the frontier read before the hosts were checked. If it changed since, there is no wait.
+	 * @param timeoutMillis maximum time to wait, in milliseconds. Long.MAX_VALUE for no limit.
+	 * 
+	 * @return false if the crawl is over, true otherwise.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public synchronized boolean awaitChange(long version, long timeoutMillis) throws InterruptedException{
+		long deadline=timeoutMillis==Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis()+timeoutMillis;
+		while (this.version==version && !isFinished()){
+			long remaining=deadline==Long.MAX_VALUE ? 0 : deadline-System.currentTimeMillis();
+			if (deadline!=Long.MAX_VALUE && remaining<=0){
+				return true;
+			}
+			wait(remaining); //0 waits with no limit.
+		}
+		return !isFinished();
+	}
+	
+	/**
+	 * Function to wait until hosts not seen before are added, or the crawl is over. Each host is returned once.
+	 *
+	 * @return list of new hostnames, empty only if the crawl is over.
+	 *
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public synchronized List<String> awaitNewHosts() throws InterruptedException{
+		while (newHosts.isEmpty() && !isFinished()){
+			wait();
+		}
+		if (closed){
+			return new ArrayList<String>();
+		}
+		List<String> results=new ArrayList<String>(newHosts);
+		newHosts.clear();
+		return results;
+	}
+
+	/**
+	 * Function to check if a host has pending URLs.
+	 *
+	 * @param host hostname
+	 *
+	 * @return true if at least one URL of the host is pending in memory, false otherwise.
+	 */
+	public synchronized boolean hasPending(String host){
+		return !closed && hostQueues.containsKey(host);
+	}
+
+	/**
+	 * Function to get the number of pending URLs of a host.
+	 *
+	 * @param host hostname
+	 *
+	 * @return number of URLs of the host waiting to be polled, in memory.
+	 */
+	public synchronized int pendingCount(String host){
+		ArrayDeque<ItemUrl> queue=hostQueues.get(host);
+		return queue==null ? 0 : queue.size();
+	}
+
+	/**
+	 * Function to get the hosts with pending URLs in memory.
+	 *
+	 * @return list of hostnames. This list can be empty.
+	 */
+	public synchronized List<String> getHosts(){
+		if (closed){
+			return new ArrayList<String>();
+		}
+		return new ArrayList<String>(hostQueues.keySet());
+	}
+
+	/**
+	 * Function to get the number of pending URLs.
+	 *
+	 * @return number of pending URLs, spilled ones included. URLs being crawled are not counted.
+	 */
+	public synchronized long size(){
+		return pendingCount+(spill==null ? 0 : spill.size());
+	}
+
+	/**
+	 * Function to check if there are pending URLs.
+	 *
+	 * @return true if no URL is pending, false otherwise. URLs being crawled are not considered.
+	 */
+	public synchronized boolean isEmpty(){
+		return size()==0;
+	}
+	
+	/**
+	 * Function to bound the number of pending URLs kept in memory, spilling the rest to disk. It should be called while 
+	 * the frontier is empty, and stays in effect until changed.
+	 * 
+	 * @param directory directory for the spilled URLs, or null to keep all URLs in memory.
+	 * @param maxInMemory maximum number of pending URLs kept in memory.
+	 */
+	public synchronized void setSpilling(File directory, int maxInMemory){
+		if (spill!=null){
+			spill.clear();
+		}
+		spill=directory==null ? null : new FrontierSpillStore(directory);
+		this.maxInMemory=directory==null ? Integer.MAX_VALUE : Math.max(1, maxInMemory);
+	}
+
+	/**
+	 * Function to end the crawl at once, keeping its URLs. From then on, until the frontier is cleared, no URL is taken nor added, 
+	 * and the crawl is seen as over, even if URLs taken are still being crawled. Waiting threads are woken up, and find the crawl over.
+	 */
+	public synchronized void close(){
+		closed=true;
+		generation++;
+		version++;
+		notifyAll();
+	}
+
+	/**
+	 * Function to remove all URLs and forget the work in flight, for a new crawl. It must only be called once no thread of 
+	 * the previous crawl can still use the frontier (see close), since the work they still have in flight is no longer counted.
+	 */
+	public synchronized void clear(){
+		entries.clear();
+		processing.clear();
+		hostQueues.clear();
+		pendingCount=0;
+		if (spill!=null){
+			spill.clear(); //The spilled URLs are deleted.
+		}
+		inFlightCount=0;
+		closed=false;
+		knownHosts.clear();
+		newHosts.clear();
+		notifyAll();
+	}
+}
@@ -0,0 +1,196 @@
+package ir.control;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * CrawlMetrics class, counting what the crawler downloaded during a crawl, and what it skipped to avoid downloading it.
+ * <p>
+ * Pages are counted by the crawler. Bytes transferred are counted by the fetcher, for every body it reads (pages, robots.txt 
+ * files, redirects and errors), both as they came through the network and once decoded, in total and per host, so the savings
+ * of compressed transfers can be told.
+ * <p>
+ * Counters can be updated from any thread.
+ *
+ */
+public class CrawlMetrics {
+
+	/**Pages whose body was downloaded.*/
+	private AtomicLong pagesFetched=new AtomicLong();
+
+	/**Bytes of the bodies downloaded.*/
+	private AtomicLong bytesFetched=new AtomicLong();
+
+	/**Bodies cut at the maximum page size.*/
+	private AtomicLong bodiesTruncated=new AtomicLong();
+
+	/**Links not followed because their extension is of a binary file, such as .pdf or .zip.*/
+	private AtomicLong skippedByExtension=new AtomicLong();
+
+	/**Pages not downloaded because their Content-Type cannot be parsed.*/
+	private AtomicLong skippedByContentType=new AtomicLong();
+
+	/**Pages not downloaded because their Content-Length is over the maximum.*/
+	private AtomicLong skippedByContentLength=new AtomicLong();
+
+	/**Bytes of all bodies read, as transferred, and once decoded.*/
+	private AtomicLong bytesTransferred=new AtomicLong();
+	private AtomicLong bytesDecoded=new AtomicLong();
+
+	/**Bytes of all bodies read, per host.*/
+	private ConcurrentMap<String,HostBytes> bytesByHost=new ConcurrentHashMap<String,HostBytes>();
+
+	/**
+	 * Bytes of the bodies read from a host, as transferred, and once decoded.
+	 */
+	public static final class HostBytes {
+		private AtomicLong transferred=new AtomicLong();
+		private AtomicLong decoded=new AtomicLong();
+
+		public long getTransferred(){
+			return transferred.get();
+		}
+
+		public long getDecoded(){
+			return decoded.get();
+		}
+
+		@Override
+		public String toString(){
+			return transferred.get()+"/"+decoded.get();
+		}
+	}
+
+	/**
+	 * Function to count a page whose body was downloaded.
+	 *
+	 * @param bytes size of the body, in bytes
+	 * @param truncated true if the body was cut at the maximum page size
+	 */
+	public void recordFetch(long bytes, boolean truncated){
+		pagesFetched.incrementAndGet();
+		bytesFetched.addAndGet(bytes);
+		if (truncated){
+			bodiesTruncated.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Function to count a body read, of any response.
+	 *
+	 * @param host host that sent the body
+	 * @param transferred size of the body as transferred, in bytes
+	 * @param decoded size of the body once decoded, in bytes. It is the same as transferred if the body was not compressed.
+	 */
+	public void recordTransfer(String host, long transferred, long decoded){
+		bytesTransferred.addAndGet(transferred);
+		bytesDecoded.addAndGet(decoded);
+		HostBytes bytes=bytesByHost.get(host);
+		if (bytes==null){
+			HostBytes created=new HostBytes();
+			bytes=bytesByHost.putIfAbsent(host, created);
+			if (bytes==null){
+				bytes=created;
+			}
+		}
+		bytes.transferred.addAndGet(transferred);
+		bytes.decoded.addAndGet(decoded);
+	}
+
+	public void recordSkippedByExtension(){
+		skippedByExtension.incrementAndGet();
+	}
+
+	public void recordSkippedByContentType(){
+		skippedByContentType.incrementAndGet();
+	}
+
+	public void recordSkippedByContentLength(){
+		skippedByContentLength.incrementAndGet();
+	}
+
+	public long getPagesFetched(){
+		return pagesFetched.get();
+	}
+
+	public long getBytesFetched(){
+		return bytesFetched.get();
+	}
+
+	public long getBodiesTruncated(){
+		return bodiesTruncated.get();
+	}
+
+	public long getSkippedByExtension(){
+		return skippedByExtension.get();
+	}
+
+	public long getSkippedByContentType(){
+		return skippedByContentType.get();
+	}
+
+	public long getSkippedByContentLength(){
+		return skippedByContentLength.get();
+	}
+
+	public long getBytesTransferred(){
+		return bytesTransferred.get();
+	}
+
+	public long getBytesDecoded(){
+		return bytesDecoded.get();
+	}
+
+	/**
+	 * Function to get the bytes read from each host.
+	 *
+	 * @return map from each host to its bytes, sorted by host.
+	 */
+	public Map<String,HostBytes> getBytesByHost(){
+		return Collections.unmodifiableMap(new TreeMap<String,HostBytes>(bytesByHost));
+	}
+
+	/**
+	 * Function to get all counters, but those per host.
+	 *
+	 * @return map from the name of each counter to its value, in a fixed order.
+	 */
+	public Map<String,Long> toMap(){
+		Map<String,Long> results=new LinkedHashMap<String,Long>();
+		results.put("pages_fetched", getPagesFetched());
+		results.put("bytes_fetched", getBytesFetched());
+		results.put("bodies_truncated", getBodiesTruncated());
+		results.put("skipped_by_extension", getSkippedByExtension());
+		results.put("skipped_by_content_type", getSkippedByContentType());
+		results.put("skipped_by_content_length", getSkippedByContentLength());
+		results.put("bytes_transferred", getBytesTransferred());
+		results.put("bytes_decoded", getBytesDecoded());
+		return results;
+	}
+
+	/**
+	 * Function to set all counters to 0.
+	 */
+	public void clear(){
+		pagesFetched.set(0);
+		bytesFetched.set(0);
+		bodiesTruncated.set(0);
+		skippedByExtension.set(0);
+		skippedByContentType.set(0);
+		skippedByContentLength.set(0);
+		bytesTransferred.set(0);
+		bytesDecoded.set(0);
+		bytesByHost.clear();
+	}
+
+	@Override
+	public String toString(){
+		return toMap().toString();
+	}
+}
@@ -0,0 +1,153 @@
+package ir.control;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ * CrawlPipeline class, with the stages that process a page after it has been fetched: parsing, extraction and indexing.
+ * <p>
+ * Each stage has its own pool of threads and its own bounded queue. Submitting a task to a stage whose queue
+ * is full blocks the caller until there is room. The bound is kept with a semaphore in front of the pool, so tasks still go 
+ * through the pool, and are rejected once it is shut down. In this way a slow stage applies backpressure to the stages before it,
+ * and finally to the crawler threads fetching pages, instead of letting pages pile up in memory.
+ * <p>
+ * Each task is counted as work in flight in the frontier (see CrawlFrontier.beginTask), as it can add outlinks to it, so the
+ * crawler can tell when all fetched pages have been fully processed.
+ *
+ */
+public class CrawlPipeline {
+
+	/**Stage in charge of parsing the fetched pages.*/
+	public static final int PARSE=0;
+
+	/**Stage in charge of extracting outlinks, code, programming language and summary from the parsed pages.*/
+	public static final int EXTRACT=1;
+
+	/**Stage in charge of adding the extracted pages to the index.*/
+	public static final int INDEX=2;
+
+	/**Names of the stages, in order.*/
+	private static final String [] STAGE_NAMES={"parse", "extract", "index"};
+
+	/**Pools of threads of each stage.*/
+	private ThreadPoolExecutor [] stages=new ThreadPoolExecutor[STAGE_NAMES.length];
+
+	/**Permits of each stage, one per task waiting or running. A task takes one before it is submitted, and gives it back when it ends.*/
+	private Semaphore [] permits=new Semaphore[STAGE_NAMES.length];
+
+	/**Frontier in which tasks are counted as work in flight.*/
+	private CrawlFrontier frontier;
+
+	/**
+	 * Parametric constructor. It starts the threads of all stages.
+	 *
+	 * @param poolSizes number of threads for the parse, extract and index stages, in this order.
+	 * @param queueCapacity maximum number of tasks waiting in the queue of each stage.
+	 * @param frontier frontier to which the tasks add outlinks.
+	 */
+	public CrawlPipeline(int [] poolSizes, int queueCapacity, CrawlFrontier frontier){
+		this.frontier=frontier;
+		for (int i=0; i<stages.length; i++){
+			final String name=STAGE_NAMES[i];
+			permits[i]=new Semaphore(queueCapacity+poolSizes[i]);
+			stages[i]=new ThreadPoolExecutor(poolSizes[i], poolSizes[i], 0L, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory(){ //Bounded by the permits.
+				private int count=0;
+				public synchronized Thread newThread(Runnable r) {
+					Thread t= new Thread(r, "CrawlPipeline-"+name+"-"+(count++));
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Function to submit a task to a stage. It blocks while the queue of the stage is full.
+	 * The caller must not be done with its own work in the frontier before this function returns.
+	 *
+	 * @param stage one of PARSE, EXTRACT or INDEX
+	 * @param task task to be run by the stage
+	 *
+	 * @throws InterruptedException if interrupted while waiting for room in the queue. The task is not run.
+	 * @throws RejectedExecutionException if the pipeline was shut down. The task is not run.
+	 */
+	public void submit(int stage, final Runnable task) throws InterruptedException{
+		final Semaphore stagePermits=permits[stage];
+		frontier.beginTask();
+		try {
+			stagePermits.acquire();
+		}
+		catch (InterruptedException e){
+			frontier.endTask();
+			throw e;
+		}
+		try {
+			stages[stage].execute(new Runnable(){
+				public void run() {
+					try {
+						task.run();
+					}
+					catch (RuntimeException e){
+						e.printStackTrace();
+					}
+					finally {
+						stagePermits.release();
+						frontier.endTask();
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e){
+			stagePermits.release();
+			frontier.endTask();
+			throw e;
+		}
+	}
+
+	/**
+	 * Function to get the number of tasks waiting in the queue of a stage.
+	 *
+	 * @param stage one of PARSE, EXTRACT or INDEX
+	 *
+	 * @return number of queued tasks.
+	 */
+	public int getQueueDepth(int stage){
+		BlockingQueue<Runnable> queue=stages[stage].getQueue();
+		return queue.size();
+	}
+
+	/**
+	 * Function to get the number of tasks waiting in the queue of each stage.
+	 *
+	 * @return map from the name of each stage to the number of queued tasks, in pipeline order.
+	 */
+	public Map<String,Integer> getQueueDepths(){
+		Map<String,Integer> results=new LinkedHashMap<String,Integer>();
+		for (int i=0; i<stages.length; i++){
+			results.put(STAGE_NAMES[i], getQueueDepth(i));
+		}
+		return results;
+	}
+
+	/**
+	 * Function to stop all stages, after the tasks already submitted are finished. Tasks submitted to a stage once it is 
+	 * stopped are rejected.
+	 *
+	 * @throws InterruptedException if interrupted while waiting for the stages.
+	 */
+	public void shutdown() throws InterruptedException{
+		for (ThreadPoolExecutor stage: stages){
+			stage.shutdown();
+			stage.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+	}
+}
@@ -0,0 +1,428 @@
+package ir.control;
+
+import ir.model.CrawlUrl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * DustRuleLearner class, learning for each host which parameters of the query and which path segments do not change the page
+ * shown (DUST: different URLs with similar text), by comparing the content hashes of the pages fetched.
+ * <p>
+ * Each page fetched is compared with the pages of its host whose URLs differ from its own only in one parameter (added, removed
+ * or with another value) or in one path segment (added or removed). Equal contents are evidence that the parameter or segment
+ * does not change the page, different contents that it does. Once a parameter or segment has enough evidence for it, and none
+ * against it, a rule removing it is added to the URL normalizer for the host: the URLs found afterwards are taken as the same
+ * URL without it, so they are not fetched again. Evidence against it, from pages fetched before the rule was in effect, removes the rule.
+ * <p>
+ * Since the URLs a rule removes are no longer fetched, a rule in effect gets hardly any further evidence, and a wrong one would
+ * keep dropping pages. So rules expire after RULE_LIFETIME_IN_MILLISECONDS: their evidence is forgotten, the URLs are fetched 
+ * and compared again, and the rule is learned again if it still holds. Rules are checked for expiry when they are loaded, 
+ * at the start of each crawl.
+ * <p>
+ * Only the latest URLs fetched are remembered for the comparisons. The evidence is kept in a text file next to the index, so
+ * the rules learned are kept between crawls: one tab-separated line per parameter (?NAME) or segment (/SEGMENT) of a host,
+ * with the number of comparisons for and against it, and the time its rule was learned (0 if it has no rule).
+ * <p>
+ * All functions are synchronized on the learner itself, but for hasRules. The rules added to the normalizer read what they
+ * remove without locks.
+ *
+ */
+public class DustRuleLearner {
+
+	/**Number of comparisons with equal contents needed for a rule. By default 3.*/
+	private static final int MIN_SUPPORT=3;
+
+	/**Maximum number of URLs remembered for comparisons, over all hosts. By default 100000.*/
+	private static final int MAX_REMEMBERED_URLS=100000;
+
+	/**Time a rule stays in effect before its evidence is gathered again. By default 7 days.*/
+	private static final long RULE_LIFETIME_IN_MILLISECONDS=7L*24*60*60*1000;
+
+	/**Maximum number of pages remembered for each URL remembered. By default 8.*/
+	private static final int MAX_VARIANTS_PER_URL=8;
+
+	/**Charset of the file.*/
+	private static final String CHARSET="UTF-8";
+
+	/**A page fetched, remembered under a URL that differs from its own in a parameter or segment, or under its own URL.*/
+	private static final class Variant {
+		/**URL of the page, without trailing /.*/
+		final String url;
+		/**Parameter (?NAME) or segment (/SEGMENT) that makes the difference, or empty for the URL itself.*/
+		final String token;
+		final long contentHash;
+
+		Variant(String url, String token, long contentHash){
+			this.url=url;
+			this.token=token;
+			this.contentHash=contentHash;
+		}
+	}
+
+	/**Evidence about a parameter or segment of a host.*/
+	private static final class Evidence {
+		int support=0;
+		int contradictions=0;
+		boolean active=false;
+		/**Time the rule was learned, in milliseconds since the epoch, or 0 if it has no rule.*/
+		long learnedAt=0;
+	}
+
+	/**
+	 * Rule of a host, removing the parameters and path segments learned. They are replaced as a whole when they change.
+	 */
+	static final class LearnedRule extends UrlNormalizer.Rule {
+		volatile String [] parameters=new String[0];
+		volatile String [] segments=new String[0];
+
+		@Override
+		public void canonicalize(StringBuilder url, int pathStart){
+			String [] segments=this.segments;
+			if (segments.length>0){
+				int pathEnd=UrlNormalizer.pathEnd(url, pathStart);
+				int segmentStart=pathStart;
+				while (segmentStart<pathEnd){
+					int segmentEnd=segmentStart+1;
+					while (segmentEnd<pathEnd && url.charAt(segmentEnd)!='/'){
+						segmentEnd++;
+					}
+					if (UrlNormalizer.matchesAny(url, segmentStart+1, segmentEnd, segments, false)){
+						url.delete(segmentStart, segmentEnd);
+						pathEnd-=segmentEnd-segmentStart;
+					}
+					else {
+						segmentStart=segmentEnd;
+					}
+				}
+			}
+			String [] parameters=this.parameters;
+			if (parameters.length>0){
+				UrlNormalizer.removeParameters(url, pathStart, parameters, false);
+			}
+		}
+	}
+
+	/**Normalizer the rules are added to.*/
+	private UrlNormalizer normalizer;
+
+	/**Pages remembered under each URL, oldest URL first.*/
+	private LinkedHashMap<String,List<Variant>> variants=new LinkedHashMap<String,List<Variant>>(){
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,List<Variant>> eldest){
+			return size()>MAX_REMEMBERED_URLS;
+		}
+	};
+
+	/**Evidence about the parameters and segments of each host.*/
+	private Map<String,Map<String,Evidence>> evidence=new HashMap<String,Map<String,Evidence>>();
+
+	/**Rule of each host with rules, or with rules once. Rules added to the normalizer are never removed from it, only emptied.*/
+	private Map<String,LearnedRule> rules=new HashMap<String,LearnedRule>();
+
+	/**Number of parameters and segments removed by the rules.*/
+	private volatile int activeCount=0;
+
+	/**Flag that indicates if the rules learned and removed are printed.*/
+	private boolean verbose;
+
+	/**
+	 * Parametric constructor.
+	 *
+	 * @param normalizer normalizer the rules learned are added to
+	 * @param verbose true to print the rules learned and removed
+	 */
+	public DustRuleLearner(UrlNormalizer normalizer, boolean verbose){
+		this.normalizer=normalizer;
+		this.verbose=verbose;
+	}
+
+	/**
+	 * Function to learn from a page fetched.
+	 *
+	 * @param url url of the page, in canonical form
+	 * @param contentHash hash of the content of the page
+	 */
+	public synchronized void observe(CrawlUrl url, long contentHash){
+		String text=url.toString();
+		String origin=url.getOrigin();
+		int pathEnd=UrlNormalizer.pathEnd(text, origin.length());
+		String path=text.substring(origin.length(), pathEnd);
+		if (path.endsWith("/")){
+			path=path.substring(0, path.length()-1);
+		}
+		List<String> parameters=new ArrayList<String>();
+		if (pathEnd<text.length()){
+			for (String parameter: text.substring(pathEnd+1).split("&")){
+				if (!parameter.isEmpty()){
+					parameters.add(parameter);
+				}
+			}
+		}
+		String host=url.getHost();
+		String self=origin+path+query(parameters, null);
+		compare(host, self, self, "", contentHash);
+		List<String> names=new ArrayList<String>();
+		for (String parameter: parameters){
+			String name=name(parameter);
+			if (!names.contains(name)){
+				names.add(name);
+				compare(host, self, origin+path+query(parameters, name), "?"+name, contentHash);
+			}
+		}
+		String [] segments=path.split("/");
+		for (int i=1; i<segments.length; i++){ //The path starts with /, so the first one is empty.
+			if (segments[i].isEmpty() || isNumber(segments[i])){
+				continue; //Numbers usually tell pages apart.
+			}
+			StringBuilder base=new StringBuilder(origin);
+			for (int j=1; j<segments.length; j++){
+				if (j!=i){
+					base.append('/').append(segments[j]);
+				}
+			}
+			compare(host, self, base.toString()+query(parameters, null), "/"+segments[i], contentHash);
+		}
+	}
+
+	/**
+	 * Function to check if any rule is in effect, so the URLs found before might be changed by them.
+	 *
+	 * @return true if some parameter or segment is removed from the URLs of some host, false otherwise.
+	 */
+	public boolean hasRules(){
+		return activeCount>0;
+	}
+
+	/**
+	 * Function to forget all evidence, and remove all rules.
+	 */
+	public synchronized void clear(){
+		variants.clear();
+		evidence.clear();
+		for (LearnedRule rule: rules.values()){
+			rule.parameters=new String[0];
+			rule.segments=new String[0];
+		}
+		activeCount=0;
+	}
+
+	/**
+	 * Function to load the evidence saved, adding the rules it supports. The evidence of expired rules is forgotten. 
+	 * Malformed lines are skipped.
+	 *
+	 * @param file location of the evidence
+	 *
+	 * @throws IOException if the file exists but cannot be read.
+	 */
+	public synchronized void load(File file) throws IOException{
+		if (!file.exists()){
+			return;
+		}
+		long now=System.currentTimeMillis();
+		BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+		try {
+			String line;
+			while ((line=reader.readLine())!=null){
+				String [] fields=line.split("\t");
+				if (fields.length<4 || fields.length>5 || fields[1].length()<2){
+					continue;
+				}
+				try {
+					long learnedAt=fields.length==5 ? Long.parseLong(fields[4]) : 0; //Files saved before rules expired have no time.
+					if (learnedAt>0 && now-learnedAt>RULE_LIFETIME_IN_MILLISECONDS){
+						if (verbose){
+							System.out.println("Checking again if the "+(fields[1].charAt(0)=='?' ? "parameter " : "path segment ")
+									+fields[1].substring(1)+" changes the pages of "+fields[0]);
+						}
+						continue;
+					}
+					Evidence item=evidence(fields[0], fields[1]);
+					item.support=Integer.parseInt(fields[2]);
+					item.contradictions=Integer.parseInt(fields[3]);
+					update(fields[0], fields[1], item);
+					if (item.active && learnedAt>0){
+						item.learnedAt=learnedAt;
+					}
+				}
+				catch (NumberFormatException e){
+					System.out.println("Malformed line in "+file.getName()+": "+line);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Function to save the evidence, replacing the file.
+	 *
+	 * @param file location of the evidence
+	 *
+	 * @throws IOException if the file cannot be written.
+	 */
+	public synchronized void save(File file) throws IOException{
+		PrintWriter writer=new PrintWriter(file, CHARSET);
+		for (Map.Entry<String,Map<String,Evidence>> host: evidence.entrySet()){
+			for (Map.Entry<String,Evidence> item: host.getValue().entrySet()){
+				writer.println(host.getKey()+"\t"+item.getKey()+"\t"+item.getValue().support+"\t"+item.getValue().contradictions+"\t"
+						+item.getValue().learnedAt);
+			}
+		}
+		writer.close();
+		if (writer.checkError()){
+			throw new IOException("Could not write "+file.getPath());
+		}
+	}
+
+	/**
+	 * Helper function to compare a page with the pages remembered under a URL, and remember it there.
+	 *
+	 * @param host host of the page
+	 * @param self url of the page, without trailing /
+	 * @param base url to compare under: the url of the page, or the url without a parameter or segment
+	 * @param token parameter (?NAME) or segment (/SEGMENT) removed from the url of the page to get the base, or empty for none
+	 * @param contentHash hash of the content of the page
+	 */
+	private void compare(String host, String self, String base, String token, long contentHash){
+		List<Variant> list=variants.get(base);
+		if (list==null){
+			list=new ArrayList<Variant>(2);
+			variants.put(base, list);
+		}
+		for (Variant variant: list){
+			if (variant.url.equals(self)){
+				return; //The same page fetched again, as in a recrawl.
+			}
+			/**Pages under the same base differ in the token of the one that is not the base itself.*/
+			String difference=token.isEmpty() ? variant.token : variant.token.isEmpty() || variant.token.equals(token) ? token : null;
+			if (difference!=null && !difference.isEmpty()){
+				Evidence item=evidence(host, difference);
+				if (variant.contentHash==contentHash){
+					item.support++;
+				}
+				else {
+					item.contradictions++;
+				}
+				update(host, difference, item);
+			}
+		}
+		if (list.size()<MAX_VARIANTS_PER_URL){
+			list.add(new Variant(self, token, contentHash));
+		}
+	}
+
+	/**
+	 * Helper function to add or remove the rule for a parameter or segment of a host, according to its evidence.
+	 */
+	private void update(String host, String token, Evidence item){
+		boolean active=item.support>=MIN_SUPPORT && item.contradictions==0;
+		if (active==item.active){
+			return;
+		}
+		item.active=active;
+		item.learnedAt=active ? System.currentTimeMillis() : 0;
+		LearnedRule rule=rules.get(host);
+		if (rule==null){
+			rule=new LearnedRule();
+			rules.put(host, rule);
+			normalizer.addRule(host, rule);
+		}
+		String value=token.substring(1);
+		if (token.charAt(0)=='?'){
+			rule.parameters=active ? add(rule.parameters, value) : remove(rule.parameters, value);
+		}
+		else {
+			rule.segments=active ? add(rule.segments, value) : remove(rule.segments, value);
+		}
+		activeCount+=active ? 1 : -1;
+		if (verbose){
+			System.out.println((active ? "Learned that " : "No longer taking that ")+(token.charAt(0)=='?' ? "the parameter " : "the path segment ")
+					+value+" does not change the pages of "+host);
+		}
+	}
+
+	/**
+	 * Helper function to get the evidence about a parameter or segment of a host, creating it the first time.
+	 */
+	private Evidence evidence(String host, String token){
+		Map<String,Evidence> items=evidence.get(host);
+		if (items==null){
+			items=new HashMap<String,Evidence>();
+			evidence.put(host, items);
+		}
+		Evidence item=items.get(token);
+		if (item==null){
+			item=new Evidence();
+			items.put(token, item);
+		}
+		return item;
+	}
+
+	/**
+	 * Helper function to build a query from its parameters, in canonical order.
+	 *
+	 * @param parameters parameters
+	 * @param without name of the parameters left out, or null for none
+	 *
+	 * @return the query with its ?, or empty if no parameter is left.
+	 */
+	private static String query(List<String> parameters, String without){
+		StringBuilder query=new StringBuilder();
+		for (String parameter: parameters){
+			if (without==null || !name(parameter).equals(without)){
+				query.append(query.length()==0 ? '?' : '&').append(parameter);
+			}
+		}
+		return query.toString();
+	}
+
+	private static String name(String parameter){
+		int equals=parameter.indexOf('=');
+		return equals<0 ? parameter : parameter.substring(0, equals);
+	}
+
+	private static boolean isNumber(String segment){
+		for (int i=0; i<segment.length(); i++){
+			if (segment.charAt(i)<'0' || segment.charAt(i)>'9'){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String [] add(String [] values, String value){
+		for (String existing: values){
+			if (existing.equals(value)){
+				return values;
+			}
+		}
+		String [] results=new String[values.length+1];
+		System.arraycopy(values, 0, results, 0, values.length);
+		results[values.length]=value;
+		return results;
+	}
+
+	private static String [] remove(String [] values, String value){
+		List<String> results=new ArrayList<String>();
+		for (String existing: values){
+			if (!existing.equals(value)){
+				results.add(existing);
+			}
+		}
+		return results.toArray(new String[results.size()]);
+	}
+}
@@ -0,0 +1,154 @@
+package ir.control;
+
+import ir.model.CrawlUrl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *
+ * ExclusionTrie class, matching URLs against the list of excluded URLs.
+ * <p>
+ * A URL is excluded if it is one of the excluded URLs, or lies below one of them (the excluded URL followed by /).
+ * Excluded URLs are kept as a trie of path segments per host (by origin), so a URL is checked in time proportional to its length,
+ * whatever the number of excluded URLs.
+ * <p>
+ * The nodes of a trie are never changed once built: adding a URL copies the nodes on its path, and then replaces the root of its host.
+ * So checks need no lock, and always see a complete trie. Additions are synchronized on the trie itself.
+ *
+ */
+public class ExclusionTrie {
+
+	/**A node of the trie, for a path segment.*/
+	private static final class Node {
+		/**Nodes of the next segments, by segment.*/
+		final Map<String,Node> children;
+		/**True if the path up to this segment is excluded.*/
+		final boolean excluded;
+
+		Node(Map<String,Node> children, boolean excluded){
+			this.children=children;
+			this.excluded=excluded;
+		}
+	}
+
+	/**Node without children, nor exclusion.*/
+	private static final Node EMPTY=new Node(Collections.<String,Node>emptyMap(), false);
+
+	/**Root of the trie of each host, for the empty path.*/
+	private ConcurrentHashMap<String,Node> roots= new ConcurrentHashMap<String,Node>();
+
+	/**Number of excluded URLs.*/
+	private volatile int size=0;
+
+	/**
+	 * Function to add an excluded URL.
+	 *
+	 * @param url url to exclude, with the URLs below it
+	 *
+	 * @return true if it was not excluded yet, false if it was already in the trie.
+	 */
+	public synchronized boolean add(CrawlUrl url){
+		String origin=url.getOrigin();
+		Node root=roots.get(origin);
+		boolean [] added=new boolean[1];
+		Node newRoot=insert(root==null ? EMPTY : root, url.getPath(), 0, added);
+		if (added[0]){
+			roots.put(origin, newRoot);
+			size++;
+		}
+		return added[0];
+	}
+
+	/**
+	 * Function to check if a URL is excluded. It never blocks.
+	 *
+	 * @param url url to check
+	 *
+	 * @return true if the url, or one of the URLs above it, is excluded.
+	 */
+	public boolean matches(CrawlUrl url){
+		Node node=roots.get(url.getOrigin());
+		if (node==null){
+			return false;
+		}
+		String path=url.getPath();
+		int start=0;
+		while (true){
+			if (node.excluded){
+				return true;
+			}
+			if (start>path.length()){
+				return false;
+			}
+			int end=segmentEnd(path, start);
+			node=node.children.get(path.substring(start, end));
+			if (node==null){
+				return false;
+			}
+			start=end+1;
+		}
+	}
+
+	/**
+	 * Function to get the number of excluded URLs.
+	 *
+	 * @return number of URLs added.
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * Function to forget all excluded URLs.
+	 */
+	public synchronized void clear(){
+		roots.clear();
+		size=0;
+	}
+
+	/**
+	 * Helper function to insert a path below a node, copying the nodes on the way.
+	 *
+	 * @param node node of the segment before start
+	 * @param path full path
+	 * @param start position of the next segment in the path, or the length of the path plus one if there are no more.
+	 * @param added set to true if the path was not excluded yet
+	 *
+	 * @return the new node, or the same one if nothing changed.
+	 */
+	private Node insert(Node node, String path, int start, boolean [] added){
+		if (start>path.length()){
+			if (node.excluded){
+				return node;
+			}
+			added[0]=true;
+			return new Node(node.children, true);
+		}
+		int end=segmentEnd(path, start);
+		String segment=path.substring(start, end);
+		Node child=node.children.get(segment);
+		Node newChild=insert(child==null ? EMPTY : child, path, end+1, added);
+		if (newChild==child){
+			return node;
+		}
+		Map<String,Node> children=new HashMap<String,Node>(node.children);
+		children.put(segment, newChild);
+		return new Node(children, node.excluded);
+	}
+
+	/**
+	 * Helper function to find the end of a path segment. Segments are separated by /, so the path /a/b has the segments "", "a" and "b".
+	 *
+	 * @param path path
+	 * @param start start of the segment
+	 *
+	 * @return position of the / after the segment, or the length of the path if it is the last one.
+	 */
+	private static int segmentEnd(String path, int start){
+		int end=path.indexOf('/', start);
+		return end<0 ? path.length() : end;
+	}
+}
@@ -0,0 +1,621 @@
+package ir.control;
+
+import ir.model.CrawlUrl;
+import ir.model.ItemUrl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ *
+ * FrontierSpillStore class, keeping on disk the URLs of the frontier that do not fit in memory, by depth.
+ * <p>
+ * Each depth has its own queue, made of append-only segment files. URLs are added to an in-memory batch, and full batches are
+ * written to the current segment of their depth as a block: the URLs of a block are sorted and front-coded (each one stores only
+ * the length of the prefix it shares with the previous one, and the rest), which takes a fraction of the space of the plain URLs.
+ * A segment is sealed when it is first read, and later URLs go to a new one. Segments are deleted once they are read.
+ * <p>
+ * URLs are taken back from the lowest depth first, and within a depth in the order they were added, up to the sorting of each block.
+ * Repeated URLs are not stored: the store keeps the fingerprint of each URL stored, next to its depth, in a table on disk
+ * (see MappedFingerprintTable), so the memory it uses stays the same. A URL stored again at a lower depth is stored once more, 
+ * and the copy of higher depth is then skipped when it is reached, as is the copy of a URL taken back into memory by remove.
+ * <p>
+ * The store is not thread-safe: the frontier uses it under its own lock. Only a snapshot, once taken, is listed without the 
+ * lock (see Snapshot). Until it is closed, segments are not deleted, and it only reads the URLs they held when it was taken.
+ *
+ */
+public class FrontierSpillStore {
+
+	/**Number of URLs written to disk at once, as a block. By default 4096.*/
+	private static final int BATCH_SIZE=4096;
+
+	/**Charset of the URLs.*/
+	private static final Charset CHARSET=Charset.forName("UTF-8");
+
+	/**Receiver of the URLs listed by forEach.*/
+	public interface ItemSink {
+		void add(ItemUrl item) throws IOException;
+	}
+
+	/**Reader of a sealed segment, keeping its position.*/
+	private static final class SegmentReader {
+		final File file;
+		final DataInputStream in;
+		/**URLs left in the current block.*/
+		int remainingInBlock=0;
+		/**Last URL read, as bytes, for decoding the next one.*/
+		byte [] previous=new byte[0];
+		/**Number of URLs read so far.*/
+		long read=0;
+
+		SegmentReader(File file) throws IOException{
+			this.file=file;
+			this.in=new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		}
+
+		/**
+		 * @return next URL of the segment, or null at its end.
+		 */
+		String next() throws IOException{
+			if (remainingInBlock==0){
+				try {
+					remainingInBlock=readVarInt(in);
+				}
+				catch (EOFException e){
+					return null;
+				}
+				previous=new byte[0];
+			}
+			int shared=readVarInt(in);
+			int suffix=readVarInt(in);
+			if (shared>previous.length){
+				throw new IOException("Corrupt frontier segment: "+file.getPath());
+			}
+			byte [] url=new byte[shared+suffix];
+			System.arraycopy(previous, 0, url, 0, shared);
+			in.readFully(url, shared, suffix);
+			previous=url;
+			remainingInBlock--;
+			read++;
+			return new String(url, CHARSET);
+		}
+	}
+
+	/**Queue of the URLs of a depth.*/
+	private static final class DepthQueue {
+		/**Sealed segments not yet read, oldest first.*/
+		ArrayDeque<File> sealed=new ArrayDeque<File>();
+		/**Reader of the oldest segment, once its reading has started.*/
+		SegmentReader reader=null;
+		/**Segment being written, or null if none.*/
+		File writing=null;
+		DataOutputStream writer=null;
+		/**Number of URLs written to the segment being written.*/
+		long written=0;
+		/**URLs not yet written.*/
+		List<String> batch=new ArrayList<String>();
+		/**Number of URLs in the queue, written or not.*/
+		long size=0;
+	}
+
+	/**Directory of the segments.*/
+	private File directory;
+
+	/**Queues by depth.*/
+	private TreeMap<Integer,DepthQueue> queues=new TreeMap<Integer,DepthQueue>();
+
+	/**Number of URLs stored, over all depths.*/
+	private long size=0;
+
+	/**Counter for the names of the segments.*/
+	private long segmentCounter=0;
+
+	/**Name of the file of the fingerprints of the URLs stored, in the directory of the segments.*/
+	private static final String FINGERPRINTS_FILE="stored.fp";
+
+	/**Fingerprints of the URLs stored, each next to its depth (see key). Null until the first URL is stored, or if it failed.*/
+	private MappedFingerprintTable fingerprints=null;
+
+	/**Flag that indicates if repeated URLs are still detected. Cleared if the fingerprints cannot be kept.*/
+	private boolean deduplicating=true;
+
+	/**Number of snapshots not yet closed. Guarded by deletionLock, as snapshots are closed without the lock of the frontier.*/
+	private int openSnapshots=0;
+
+	/**Segments to be deleted once no snapshot is open. Guarded by deletionLock.*/
+	private List<File> deferredDeletions=new ArrayList<File>();
+
+	private final Object deletionLock=new Object();
+
+	/**
+	 * Parametric constructor.
+	 *
+	 * @param directory directory for the segment files. It is created when the first segment is written.
+	 */
+	public FrontierSpillStore(File directory){
+		this.directory=directory;
+	}
+
+	/**
+	 * Function to add a URL, unless it is already stored with the same or a lower depth.
+	 *
+	 * @param item normalized url, next to its depth.
+	 *
+	 * @return true if the url was added, false if it was already stored.
+	 *
+	 * @throws IOException if a batch cannot be written. The url is kept in memory anyway.
+	 */
+	public boolean add(ItemUrl item) throws IOException{
+		String url=item.getUrl().toString();
+		MappedFingerprintTable table=openFingerprints();
+		if (table!=null){
+			long fingerprint=VisitedUrlSet.fingerprint(url);
+			if (lowestDepth(table, fingerprint, item.getDepth())>=0){
+				return false;
+			}
+			try {
+				table.add(key(fingerprint, item.getDepth()));
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Could not record the spilled URLs. Repeated URLs are no longer detected.");
+				closeFingerprints();
+			}
+		}
+		DepthQueue queue=queues.get(item.getDepth());
+		if (queue==null){
+			queue=new DepthQueue();
+			queues.put(item.getDepth(), queue);
+		}
+		queue.batch.add(url);
+		queue.size++;
+		size++;
+		if (queue.batch.size()>=BATCH_SIZE){
+			writeBatch(item.getDepth(), queue);
+		}
+		return true;
+	}
+
+	/**
+	 * Function to remove a URL, as it is taken into memory by other means. Its copies are skipped when they are reached.
+	 *
+	 * @param url normalized url
+	 *
+	 * @return lowest depth at which the url was stored, or -1 if it was not, or repeated URLs are not detected.
+	 */
+	public int remove(CrawlUrl url){
+		MappedFingerprintTable table=fingerprints;
+		if (table==null){
+			return -1;
+		}
+		long fingerprint=VisitedUrlSet.fingerprint(url.toString());
+		int lowest=-1;
+		for (Integer depth: queues.keySet()){
+			if (table.remove(key(fingerprint, depth)) && lowest<0){
+				lowest=depth;
+			}
+		}
+		return lowest;
+	}
+
+	/**
+	 * Function to take the next URL of the lowest depth.
+	 *
+	 * @return the url, next to its depth, or null if the store is empty. If the segments of a depth cannot be read, 
+	 * their URLs are skipped.
+	 */
+	public ItemUrl poll(){
+		while (!queues.isEmpty()){
+			int depth=queues.firstKey();
+			DepthQueue queue=queues.firstEntry().getValue();
+			String url;
+			try {
+				url=next(queue);
+			}
+			catch (IOException e){
+				e.printStackTrace();
+				System.out.println("Could not read the frontier segments of depth "+depth+". Their URLs are skipped.");
+				url=null;
+			}
+			if (url==null){
+				discard(queue);
+				queues.remove(depth);
+				size-=queue.size;
+				continue;
+			}
+			queue.size--;
+			size--;
+			if (queue.size==0){
+				queues.remove(depth);
+			}
+			MappedFingerprintTable table=fingerprints;
+			if (table!=null){
+				/**A copy whose fingerprint is gone was removed, or taken at a lower depth. Otherwise, copies of higher depths are now obsolete.*/
+				long fingerprint=VisitedUrlSet.fingerprint(url);
+				if (!table.remove(key(fingerprint, depth))){
+					continue;
+				}
+				for (Integer higher: queues.tailMap(depth, false).keySet()){
+					table.remove(key(fingerprint, higher));
+				}
+			}
+			try {
+				return new ItemUrl(CrawlUrl.parse(url), depth);
+			}
+			catch (MalformedURLException e){
+				System.out.println("Malformed URL in the frontier segments: "+url);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Function to get the lowest depth of the URLs stored.
+	 *
+	 * @return lowest depth, or -1 if the store is empty.
+	 */
+	public int lowestDepth(){
+		return queues.isEmpty() ? -1 : queues.firstKey();
+	}
+
+	/**
+	 * Function to get the number of URLs stored.
+	 *
+	 * @return number of URLs, copies to be skipped included.
+	 */
+	public long size(){
+		return size;
+	}
+
+	/**
+	 * Function to take a snapshot of the URLs stored, to be listed later (see Snapshot). Only the list of segments, the number 
+	 * of URLs written to each, and a copy of the batches are taken, so it is fast.
+	 *
+	 * @return the snapshot. It must be closed, so the segments read meanwhile can be deleted.
+	 *
+	 * @throws IOException if the segments being written cannot be flushed.
+	 */
+	public Snapshot snapshot() throws IOException{
+		Snapshot snapshot=new Snapshot();
+		synchronized (deletionLock){
+			openSnapshots++;
+		}
+		try {
+			for (Integer depth: queues.keySet()){
+				DepthQueue queue=queues.get(depth);
+				if (queue.reader!=null){
+					snapshot.addSegment(depth, queue.reader.file, queue.reader.read, Long.MAX_VALUE);
+				}
+				for (File file: queue.sealed){
+					snapshot.addSegment(depth, file, 0, Long.MAX_VALUE);
+				}
+				if (queue.writing!=null){
+					queue.writer.flush();
+					snapshot.addSegment(depth, queue.writing, 0, queue.written);
+				}
+				for (String url: queue.batch){
+					snapshot.batch.add(url);
+					snapshot.batchDepths.add(depth);
+				}
+			}
+		}
+		catch (IOException e){
+			snapshot.close();
+			throw e;
+		}
+		return snapshot;
+	}
+
+	/**
+	 * URLs stored when a snapshot was taken. They can be listed without the lock of the frontier, while the store changes: 
+	 * segments are read up to the URLs they held then, and none is deleted until the snapshot is closed.
+	 */
+	public final class Snapshot {
+		private List<File> files=new ArrayList<File>();
+		private List<Integer> depths=new ArrayList<Integer>();
+		/**Number of URLs already taken from each segment, which are skipped.*/
+		private List<Long> skips=new ArrayList<Long>();
+		/**Number of URLs of each segment when the snapshot was taken.*/
+		private List<Long> limits=new ArrayList<Long>();
+		private List<String> batch=new ArrayList<String>();
+		private List<Integer> batchDepths=new ArrayList<Integer>();
+		private boolean closed=false;
+
+		private Snapshot(){
+		}
+
+		private void addSegment(int depth, File file, long skip, long limit){
+			files.add(file);
+			depths.add(depth);
+			skips.add(skip);
+			limits.add(limit);
+		}
+
+		/**
+		 * Function to list the URLs of the snapshot. Segments are read from disk, one at a time, one URL at a time.
+		 *
+		 * @param sink receiver of the urls, next to their depth.
+		 *
+		 * @throws IOException if a segment cannot be read, or the sink fails.
+		 */
+		public void forEach(ItemSink sink) throws IOException{
+			for (int i=0; i<files.size(); i++){
+				SegmentReader reader=new SegmentReader(files.get(i));
+				try {
+					String url;
+					while (reader.read<limits.get(i) && (url=reader.next())!=null){
+						if (reader.read>skips.get(i)){
+							emit(sink, url, depths.get(i));
+						}
+					}
+				}
+				finally {
+					closeQuietly(reader);
+				}
+			}
+			for (int i=0; i<batch.size(); i++){
+				emit(sink, batch.get(i), batchDepths.get(i));
+			}
+		}
+
+		/**
+		 * Function to close the snapshot. Segments read since it was taken are deleted, unless another snapshot is open.
+		 */
+		public void close(){
+			synchronized (deletionLock){
+				if (closed){
+					return;
+				}
+				closed=true;
+				openSnapshots--;
+				if (openSnapshots==0){
+					for (File file: deferredDeletions){
+						file.delete();
+					}
+					deferredDeletions.clear();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Function to remove all URLs, deleting the segment files.
+	 */
+	public void clear(){
+		for (DepthQueue queue: queues.values()){
+			discard(queue);
+		}
+		queues.clear();
+		size=0;
+		closeFingerprints();
+		deduplicating=true;
+		directory.delete(); //Only if empty, so files left by others are kept.
+	}
+
+	/**
+	 * Helper function to close and delete the segments of a queue.
+	 *
+	 * @param queue queue
+	 */
+	private void discard(DepthQueue queue){
+		if (queue.reader!=null){
+			closeQuietly(queue.reader);
+			delete(queue.reader.file);
+			queue.reader=null;
+		}
+		if (queue.writer!=null){
+			try {
+				queue.writer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			delete(queue.writing);
+			queue.writer=null;
+			queue.writing=null;
+		}
+		for (File file: queue.sealed){
+			delete(file);
+		}
+		queue.sealed.clear();
+		queue.batch.clear();
+	}
+
+	/**
+	 * Helper function to take the next URL of a depth, in order: sealed segments, then the segment being written, then the batch.
+	 *
+	 * @param queue queue
+	 *
+	 * @return the url, or null if the queue is empty.
+	 *
+	 * @throws IOException if a segment cannot be read.
+	 */
+	private String next(DepthQueue queue) throws IOException{
+		while (true){
+			if (queue.reader!=null){
+				String url;
+				url=queue.reader.next();
+				if (url!=null){
+					return url;
+				}
+				closeQuietly(queue.reader);
+				delete(queue.reader.file);
+				queue.reader=null;
+			}
+			if (queue.sealed.isEmpty() && queue.writing!=null){
+				/**The segment being written is sealed, so it can be read. Later URLs go to a new one.*/
+				queue.writer.close();
+				queue.sealed.add(queue.writing);
+				queue.writing=null;
+				queue.writer=null;
+				queue.written=0;
+			}
+			if (!queue.sealed.isEmpty()){
+				queue.reader=new SegmentReader(queue.sealed.poll());
+				continue;
+			}
+			return queue.batch.isEmpty() ? null : queue.batch.remove(0);
+		}
+	}
+
+	/**
+	 * Helper function to write the batch of a depth as a block of its current segment.
+	 *
+	 * @param depth depth of the queue
+	 * @param queue queue
+	 *
+	 * @throws IOException if the block cannot be written.
+	 */
+	private void writeBatch(int depth, DepthQueue queue) throws IOException{
+		if (queue.writer==null){
+			directory.mkdirs();
+			queue.writing=new File(directory, "depth"+depth+"-"+(segmentCounter++)+".seg");
+			queue.writer=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(queue.writing)));
+			queue.written=0;
+		}
+		List<String> batch=new ArrayList<String>(queue.batch);
+		Collections.sort(batch);
+		writeVarInt(queue.writer, batch.size());
+		byte [] previous=new byte[0];
+		for (String url: batch){
+			byte [] bytes=url.getBytes(CHARSET);
+			int shared=0;
+			int max=Math.min(previous.length, bytes.length);
+			while (shared<max && previous[shared]==bytes[shared]){
+				shared++;
+			}
+			writeVarInt(queue.writer, shared);
+			writeVarInt(queue.writer, bytes.length-shared);
+			queue.writer.write(bytes, shared, bytes.length-shared);
+			previous=bytes;
+		}
+		queue.written+=batch.size();
+		queue.batch.clear(); //Only once written, so a failed batch stays in memory, and is written with the next one.
+	}
+
+	/**
+	 * Helper function to get the fingerprints of the URLs stored, creating their file if needed.
+	 *
+	 * @return the fingerprints, or null if repeated URLs are not detected.
+	 */
+	private MappedFingerprintTable openFingerprints(){
+		if (fingerprints==null && deduplicating){
+			File file=new File(directory, FINGERPRINTS_FILE);
+			file.delete(); //Left by a previous crawl.
+			try {
+				fingerprints=MappedFingerprintTable.open(file);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Could not record the spilled URLs. Repeated URLs are no longer detected.");
+				deduplicating=false;
+			}
+		}
+		return fingerprints;
+	}
+
+	/**
+	 * Helper function to stop detecting repeated URLs, deleting the fingerprints. They are detected again after clear.
+	 */
+	private void closeFingerprints(){
+		if (fingerprints!=null){
+			fingerprints.close();
+			fingerprints=null;
+			new File(directory, FINGERPRINTS_FILE).delete();
+		}
+		deduplicating=false;
+	}
+
+	/**
+	 * Helper function to get the lowest depth, up to a given one, at which a URL is stored.
+	 *
+	 * @return the depth, or -1 if the url is not stored at that depth or lower.
+	 */
+	private int lowestDepth(MappedFingerprintTable table, long fingerprint, int maxDepth){
+		for (Integer depth: queues.headMap(maxDepth, true).keySet()){
+			if (table.contains(key(fingerprint, depth))){
+				return depth;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Helper function to combine the fingerprint of a URL with its depth, taken modulo 256, in the lowest bits. Never 0.
+	 */
+	private static long key(long fingerprint, int depth){
+		long key=(fingerprint&~0xFFL)|(depth&0xFF);
+		return key==0 ? 0x100 : key;
+	}
+
+	/**
+	 * Helper function to delete a segment, or to defer it while a snapshot is open, as the snapshot may still read it.
+	 */
+	private void delete(File file){
+		synchronized (deletionLock){
+			if (openSnapshots>0){
+				deferredDeletions.add(file);
+			}
+			else {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Helper function to pass a stored URL to a sink.
+	 */
+	private static void emit(ItemSink sink, String url, int depth) throws IOException{
+		try {
+			sink.add(new ItemUrl(CrawlUrl.parse(url), depth));
+		}
+		catch (MalformedURLException e){
+			System.out.println("Malformed URL in the frontier segments: "+url);
+		}
+	}
+
+	private static void closeQuietly(SegmentReader reader){
+		try {
+			reader.in.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Helper function to write a non-negative integer in 7-bit groups, so small values take a single byte.
+	 */
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException{
+		while ((value & ~0x7F)!=0){
+			out.writeByte((value & 0x7F) | 0x80);
+			value>>>=7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * Helper function to read an integer written by writeVarInt.
+	 */
+	private static int readVarInt(DataInputStream in) throws IOException{
+		int value=0;
+		for (int shift=0; shift<32; shift+=7){
+			int b=in.readByte();
+			value|=(b & 0x7F)<<shift;
+			if ((b & 0x80)==0){
+				return value;
+			}
+		}
+		throw new IOException("Malformed number in a frontier segment");
+	}
+}
@@ -0,0 +1,482 @@
+package ir.control;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ *
+ * MappedFingerprintTable class, a set of 64-bit fingerprints kept off the heap, in a memory-mapped file.
+ * <p>
+ * The file is an open-addressing hash table with linear probing: a header, followed by one slot of 8 bytes per fingerprint
+ * (0 marks an empty slot). The operating system pages it in and out as needed, so the table can grow far beyond the heap,
+ * and the garbage collector never sees it. Changes reach the file without any explicit save, and reopening the file makes
+ * the set available at once, without reading it.
+ * <p>
+ * The slots are split into regions of equal capacity, and the highest bits of a fingerprint choose its region. Each region 
+ * has its own lock, so threads checking or adding different fingerprints rarely wait for each other.
+ * <p>
+ * When a region is more than 70% full, the table is rehashed into a new file of twice the capacity, which then replaces 
+ * the old one. As a single mapping is limited to 2 gigabytes, the file is mapped in chunks.
+ * <p>
+ * The header also keeps a mark chosen by the user, saved together with the fingerprints by sync, such as the length of a log
+ * that the set is known to match. The first change after sync resets the mark to -1, so a table left by a crash is told apart.
+ * <p>
+ * Checks can run in parallel. Changes are exclusive within a region.
+ *
+ */
+public class MappedFingerprintTable {
+
+	/**Tells the file apart from other files, and changes with its format.*/
+	private static final long MAGIC=0x4952465054424c32L;
+
+	/**Number of regions, as a power of 2. By default 2^6 (64 regions).*/
+	private static final int REGION_BITS=6;
+
+	/**Number of regions.*/
+	private static final int NUM_REGIONS=1<<REGION_BITS;
+
+	/**Size of the header: magic, capacity of a region, number of regions and mark, padded, followed by the size of each region.*/
+	private static final int HEADER_BYTES=64+NUM_REGIONS*8;
+
+	/**Capacity of each region of a new table, in slots. It must be a power of 2.*/
+	private static final long INITIAL_REGION_CAPACITY=1L<<10;
+
+	/**Maximum ratio of used slots before the table grows.*/
+	private static final double MAX_LOAD=0.7;
+
+	/**Size of each mapped chunk, as a power of 2. By default 2^27 (128 megabytes).*/
+	private static final int CHUNK_BITS=27;
+
+	/**Location of the table.*/
+	private File file;
+
+	/**Mapped chunks of the file.*/
+	private MappedByteBuffer [] chunks;
+
+	/**Number of slots of each region, a power of 2.*/
+	private long capacity;
+
+	/**Number of fingerprints in each region.*/
+	private long [] sizes=new long[NUM_REGIONS];
+
+	/**True if the table changed since the mark was saved.*/
+	private volatile boolean dirty;
+
+	/**Locks of the regions: shared for checks, exclusive for changes. Changes to the whole table hold all of them.*/
+	private ReentrantReadWriteLock [] locks=new ReentrantReadWriteLock[NUM_REGIONS];
+
+	/**
+	 * Private constructor. Use open.
+	 */
+	private MappedFingerprintTable(File file){
+		this.file=file;
+		for (int i=0; i<NUM_REGIONS; i++){
+			locks[i]=new ReentrantReadWriteLock();
+		}
+	}
+
+	/**
+	 * Function to open a table. If the file does not exist, or is not a table, an empty table replaces it.
+	 *
+	 * @param file location of the table
+	 *
+	 * @return the table.
+	 *
+	 * @throws IOException if the file cannot be mapped.
+	 */
+	public static MappedFingerprintTable open(File file) throws IOException{
+		MappedFingerprintTable table=new MappedFingerprintTable(file);
+		if (file.exists() && file.length()>=HEADER_BYTES){
+			MappedByteBuffer [] chunks=map(file, file.length());
+			long magic=chunks[0].getLong(0);
+			long capacity=chunks[0].getLong(8);
+			long regions=chunks[0].getLong(16);
+			if (magic==MAGIC && capacity>0 && Long.bitCount(capacity)==1 && regions==NUM_REGIONS 
+					&& file.length()==HEADER_BYTES+NUM_REGIONS*capacity*8){
+				table.chunks=chunks;
+				table.capacity=capacity;
+				for (int i=0; i<NUM_REGIONS; i++){
+					table.sizes[i]=chunks[0].getLong(64+i*8);
+				}
+				table.dirty=chunks[0].getLong(24)==-1;
+				return table;
+			}
+			System.out.println("Not a fingerprint table, it will be replaced: "+file.getPath());
+		}
+		table.create(file, INITIAL_REGION_CAPACITY);
+		return table;
+	}
+
+	/**
+	 * Function to add a fingerprint.
+	 *
+	 * @param fingerprint fingerprint, never 0
+	 *
+	 * @return true if it was added, false if it was already in the table.
+	 *
+	 * @throws IOException if the table must grow, and the new file cannot be created. The fingerprint is not added.
+	 */
+	public boolean add(long fingerprint) throws IOException{
+		int region=region(fingerprint);
+		while (true){
+			long observedCapacity;
+			locks[region].writeLock().lock();
+			try {
+				if (sizes[region]+1<=capacity*MAX_LOAD){
+					long mask=capacity-1;
+					long slot=fingerprint&mask;
+					long value;
+					while ((value=get(region, slot))!=0){
+						if (value==fingerprint){
+							return false;
+						}
+						slot=(slot+1)&mask;
+					}
+					set(region, slot, fingerprint);
+					setSize(region, sizes[region]+1);
+					return true;
+				}
+				observedCapacity=capacity;
+			}
+			finally {
+				locks[region].writeLock().unlock();
+			}
+			/**The region is full. The whole table grows, unless another thread did it meanwhile, and the fingerprint is added again.*/
+			lockAll();
+			try {
+				if (capacity==observedCapacity){
+					grow();
+				}
+			}
+			finally {
+				unlockAll();
+			}
+		}
+	}
+
+	/**
+	 * Function to check if a fingerprint is in the table.
+	 *
+	 * @param fingerprint fingerprint, never 0
+	 *
+	 * @return true if it is in the table, false otherwise.
+	 */
+	public boolean contains(long fingerprint){
+		int region=region(fingerprint);
+		locks[region].readLock().lock();
+		try {
+			return find(region, fingerprint)>=0;
+		}
+		finally {
+			locks[region].readLock().unlock();
+		}
+	}
+
+	/**
+	 * Function to remove a fingerprint. The fingerprints after it are shifted back, so no deleted marks are left.
+	 *
+	 * @param fingerprint fingerprint, never 0
+	 *
+	 * @return true if it was removed, false if it was not in the table.
+	 */
+	public boolean remove(long fingerprint){
+		int region=region(fingerprint);
+		locks[region].writeLock().lock();
+		try {
+			long hole=find(region, fingerprint);
+			if (hole<0){
+				return false;
+			}
+			long mask=capacity-1;
+			long slot=hole;
+			while (true){
+				slot=(slot+1)&mask;
+				long value=get(region, slot);
+				if (value==0){
+					break;
+				}
+				long home=value&mask;
+				/**The value can fill the hole if its home slot is not cyclically between the hole (excluded) and its slot.*/
+				boolean between=hole<=slot ? (home>hole && home<=slot) : (home>hole || home<=slot);
+				if (!between){
+					set(region, hole, value);
+					hole=slot;
+				}
+			}
+			set(region, hole, 0);
+			setSize(region, sizes[region]-1);
+			return true;
+		}
+		finally {
+			locks[region].writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Function to get the number of fingerprints.
+	 *
+	 * @return number of fingerprints.
+	 */
+	public long size(){
+		long size=0;
+		for (int i=0; i<NUM_REGIONS; i++){
+			locks[i].readLock().lock();
+			try {
+				size+=sizes[i];
+			}
+			finally {
+				locks[i].readLock().unlock();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Function to remove all fingerprints, shrinking the file back to its initial capacity.
+	 *
+	 * @throws IOException if the file cannot be recreated.
+	 */
+	public void clear() throws IOException{
+		lockAll();
+		try {
+			chunks=null;
+			create(file, INITIAL_REGION_CAPACITY);
+		}
+		finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Function to get the mark saved with the fingerprints.
+	 *
+	 * @return mark given to the last call to sync, 0 for a new table, or -1 if the table changed since.
+	 */
+	public long getMark(){
+		lockAll();
+		try {
+			return chunks[0].getLong(24);
+		}
+		finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Function to write the fingerprints to disk, and then a mark, so the mark is only saved once the fingerprints are.
+	 *
+	 * @param mark mark to save
+	 */
+	public void sync(long mark){
+		lockAll();
+		try {
+			force();
+			chunks[0].putLong(24, mark);
+			chunks[0].force();
+			dirty=false;
+		}
+		finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Function to write the fingerprints to disk, and release the mapping. The table cannot be used afterwards.
+	 */
+	public void close(){
+		lockAll();
+		try {
+			if (chunks!=null){
+				force();
+				chunks=null; //The mapping is released once collected.
+			}
+		}
+		finally {
+			unlockAll();
+		}
+	}
+
+	/**
+	 * Helper function to get the region of a fingerprint, from its highest bits. Slots within a region use the lowest ones.
+	 */
+	private static int region(long fingerprint){
+		return (int)(fingerprint>>>(64-REGION_BITS));
+	}
+
+	/**
+	 * Helper function to take the write locks of all regions, always in the same order.
+	 */
+	private void lockAll(){
+		for (int i=0; i<NUM_REGIONS; i++){
+			locks[i].writeLock().lock();
+		}
+	}
+
+	private void unlockAll(){
+		for (int i=NUM_REGIONS-1; i>=0; i--){
+			locks[i].writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Helper function to find the slot of a fingerprint in its region. The lock of the region must be held.
+	 *
+	 * @return slot within the region, or -1 if the fingerprint is not in the table.
+	 */
+	private long find(int region, long fingerprint){
+		long mask=capacity-1;
+		long slot=fingerprint&mask;
+		long value;
+		while ((value=get(region, slot))!=0){
+			if (value==fingerprint){
+				return slot;
+			}
+			slot=(slot+1)&mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Helper function to rehash the table into a new file of twice the capacity, which then replaces the current one.
+	 * The locks of all regions must be held.
+	 *
+	 * @throws IOException if the new file cannot be created. The current table is kept.
+	 */
+	private void grow() throws IOException{
+		File temp=new File(file.getPath()+".tmp");
+		long newCapacity=capacity*2;
+		MappedByteBuffer [] newChunks=allocate(temp, newCapacity);
+		long newMask=newCapacity-1;
+		for (int region=0; region<NUM_REGIONS; region++){
+			long base=region*newCapacity;
+			for (long slot=0; slot<capacity; slot++){
+				long value=get(region, slot);
+				if (value!=0){
+					long s=value&newMask;
+					while (get(newChunks, base+s)!=0){
+						s=(s+1)&newMask;
+					}
+					set(newChunks, base+s, value);
+				}
+			}
+			newChunks[0].putLong(64+region*8, sizes[region]);
+		}
+		newChunks[0].putLong(24, chunks[0].getLong(24));
+		for (MappedByteBuffer chunk: newChunks){
+			chunk.force();
+		}
+		if (!temp.renameTo(file)){
+			file.delete(); //On some systems an existing file is not replaced by renameTo.
+			if (!temp.renameTo(file)){
+				throw new IOException("Could not replace "+file.getPath());
+			}
+		}
+		chunks=newChunks; //The mapping stays valid after the rename.
+		capacity=newCapacity;
+	}
+
+	/**
+	 * Helper function to create an empty table in a file, replacing it, and map it.
+	 */
+	private void create(File file, long capacity) throws IOException{
+		file.delete();
+		chunks=allocate(file, capacity);
+		this.capacity=capacity;
+		for (int i=0; i<NUM_REGIONS; i++){
+			sizes[i]=0;
+		}
+		this.dirty=false;
+	}
+
+	/**
+	 * Helper function to create a file for an empty table with regions of the given capacity, and map it.
+	 *
+	 * @return the mapped chunks.
+	 */
+	private static MappedByteBuffer [] allocate(File file, long capacity) throws IOException{
+		File parent=file.getAbsoluteFile().getParentFile();
+		if (parent!=null){
+			parent.mkdirs();
+		}
+		long length=HEADER_BYTES+NUM_REGIONS*capacity*8;
+		RandomAccessFile raf=new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.setLength(length); //The new bytes are zeros, that is, empty slots and empty regions.
+		}
+		finally {
+			raf.close();
+		}
+		MappedByteBuffer [] chunks=map(file, length);
+		chunks[0].putLong(0, MAGIC);
+		chunks[0].putLong(8, capacity);
+		chunks[0].putLong(16, NUM_REGIONS);
+		chunks[0].putLong(24, 0);
+		return chunks;
+	}
+
+	/**
+	 * Helper function to map a file in chunks.
+	 */
+	private static MappedByteBuffer [] map(File file, long length) throws IOException{
+		long chunkSize=1L<<CHUNK_BITS;
+		int count=(int)((length+chunkSize-1)>>>CHUNK_BITS);
+		MappedByteBuffer [] chunks=new MappedByteBuffer[count];
+		RandomAccessFile raf=new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel=raf.getChannel();
+			for (int i=0; i<count; i++){
+				long start=(long)i<<CHUNK_BITS;
+				chunks[i]=channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(chunkSize, length-start));
+			}
+		}
+		finally {
+			raf.close(); //Mappings stay valid after the file is closed.
+		}
+		return chunks;
+	}
+
+	private void force(){
+		for (MappedByteBuffer chunk: chunks){
+			chunk.force();
+		}
+	}
+
+	/**
+	 * Helper function to record a change of the number of fingerprints of a region. The lock of the region must be held.
+	 * The first change after sync also resets the mark.
+	 */
+	private void setSize(int region, long size){
+		if (!dirty){
+			chunks[0].putLong(24, -1);
+			dirty=true;
+		}
+		sizes[region]=size;
+		chunks[0].putLong(64+region*8, size);
+	}
+
+	private long get(int region, long slot){
+		return get(chunks, region*capacity+slot);
+	}
+
+	private void set(int region, long slot, long value){
+		set(chunks, region*capacity+slot, value);
+	}
+
+	/**
+	 * Helper function to read a slot. As the header and the chunks are multiples of 8 bytes, a slot never spans two chunks.
+	 */
+	private static long get(MappedByteBuffer [] chunks, long slot){
+		long position=HEADER_BYTES+slot*8;
+		return chunks[(int)(position>>>CHUNK_BITS)].getLong((int)(position&((1L<<CHUNK_BITS)-1)));
+	}
+
+	private static void set(MappedByteBuffer [] chunks, long slot, long value){
+		long position=HEADER_BYTES+slot*8;
+		chunks[(int)(position>>>CHUNK_BITS)].putLong((int)(position&((1L<<CHUNK_BITS)-1)), value);
+	}
+}
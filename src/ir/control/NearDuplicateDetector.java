@@ -0,0 +1,215 @@
+package ir.control;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * NearDuplicateDetector class, finding pages whose text is nearly the same as the text of a page indexed before, such as
+ * mirrors, forks, or the permalinks of a question and its answers.
+ * <p>
+ * Each page gets a 64-bit SimHash fingerprint of its text: every shingle (sequence of consecutive words) of the text is hashed,
+ * and each bit of the fingerprint is set if most shingle hashes have it set. Similar texts get fingerprints that differ in few
+ * bits, so two pages are taken as near-duplicates if their fingerprints differ in at most MAX_DISTANCE bits.
+ * <p>
+ * Fingerprints are found by locality-sensitive hashing: they are split in BANDS bands of bits, and kept in one table per band,
+ * under the value of their band. As BANDS is greater than MAX_DISTANCE, two fingerprints that differ in at most MAX_DISTANCE
+ * bits have at least one band in common, so only the fingerprints sharing a band with a page are compared with it.
+ * <p>
+ * The tables are kept in memory, up to MAX_FINGERPRINTS pages. All functions but simHash are synchronized on the detector itself.
+ *
+ */
+public class NearDuplicateDetector {
+
+	/**Maximum number of bits in which the fingerprints of near-duplicates differ. By default 3.*/
+	private static final int MAX_DISTANCE=3;
+
+	/**Number of bands of the fingerprints. It must be greater than MAX_DISTANCE, and divide 64. By default 4 (of 16 bits).*/
+	private static final int BANDS=4;
+
+	/**Number of words of each shingle. By default 3.*/
+	private static final int SHINGLE_SIZE=3;
+
+	/**Minimum number of words of a text to get a fingerprint. Shorter texts are too alike to tell near-duplicates. By default 20.*/
+	private static final int MIN_WORDS=20;
+
+	/**Maximum number of pages kept. Further pages are checked, but not kept. By default 1000000.*/
+	private static final int MAX_FINGERPRINTS=1000000;
+
+	/**Bits of each band.*/
+	private static final int BAND_BITS=64/BANDS;
+
+	/**A page kept: its fingerprint and its URL.*/
+	private static final class Entry {
+		final long fingerprint;
+		final String url;
+
+		Entry(long fingerprint, String url){
+			this.fingerprint=fingerprint;
+			this.url=url;
+		}
+	}
+
+	/**Pages by the value of each band of their fingerprints.*/
+	private List<Map<Integer,List<Entry>>> bands=new ArrayList<Map<Integer,List<Entry>>>();
+
+	/**Pages by URL, so that the fingerprint of a page indexed again is replaced.*/
+	private Map<String,Entry> byUrl=new HashMap<String,Entry>();
+
+	/**
+	 * Default constructor.
+	 */
+	public NearDuplicateDetector(){
+		for (int i=0; i<BANDS; i++){
+			bands.add(new HashMap<Integer,List<Entry>>());
+		}
+	}
+
+	/**
+	 * Function to compute the SimHash fingerprint of a text. Words are sequences of letters and digits, compared in lowercase.
+	 *
+	 * @param text text
+	 *
+	 * @return fingerprint, or 0 if the text is too short to get one.
+	 */
+	public static long simHash(CharSequence text){
+		List<String> words=new ArrayList<String>();
+		StringBuilder word=new StringBuilder();
+		for (int i=0; i<=text.length(); i++){
+			char c=i<text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)){
+				word.append(Character.toLowerCase(c));
+			}
+			else if (word.length()>0){
+				words.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		if (words.size()<MIN_WORDS){
+			return 0;
+		}
+		int [] votes=new int[64];
+		for (int i=0; i+SHINGLE_SIZE<=words.size(); i++){
+			long h=0xcbf29ce484222325L;
+			for (int j=i; j<i+SHINGLE_SIZE; j++){
+				String w=words.get(j);
+				for (int k=0; k<w.length(); k++){
+					h=(h^w.charAt(k))*0x100000001b3L;
+				}
+				h=(h^' ')*0x100000001b3L;
+			}
+			h=mix(h);
+			for (int bit=0; bit<64; bit++){
+				votes[bit]+=((h>>>bit)&1)!=0 ? 1 : -1;
+			}
+		}
+		long fingerprint=0;
+		for (int bit=0; bit<64; bit++){
+			if (votes[bit]>0){
+				fingerprint|=1L<<bit;
+			}
+		}
+		return fingerprint==0 ? 1 : fingerprint; //0 is kept for texts without a fingerprint.
+	}
+
+	/**
+	 * Function to check if a page is a near-duplicate of a page kept, and keep it otherwise. A page kept before under the same
+	 * URL is replaced, and never taken as its near-duplicate.
+	 *
+	 * @param url url of the page
+	 * @param fingerprint fingerprint of the page, 0 for none
+	 *
+	 * @return url of the page it is a near-duplicate of, or null if none (the page is then kept).
+	 */
+	public synchronized String checkAndAdd(String url, long fingerprint){
+		if (fingerprint==0){
+			return null;
+		}
+		for (int band=0; band<BANDS; band++){
+			List<Entry> candidates=bands.get(band).get(band(fingerprint, band));
+			if (candidates==null){
+				continue;
+			}
+			for (Entry candidate: candidates){
+				if (!candidate.url.equals(url) && Long.bitCount(candidate.fingerprint^fingerprint)<=MAX_DISTANCE){
+					return candidate.url;
+				}
+			}
+		}
+		remove(url);
+		if (byUrl.size()<MAX_FINGERPRINTS){
+			Entry entry=new Entry(fingerprint, url);
+			byUrl.put(url, entry);
+			for (int band=0; band<BANDS; band++){
+				Integer key=band(fingerprint, band);
+				List<Entry> entries=bands.get(band).get(key);
+				if (entries==null){
+					entries=new ArrayList<Entry>(2);
+					bands.get(band).put(key, entries);
+				}
+				entries.add(entry);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Function to forget a page.
+	 *
+	 * @param url url of the page
+	 */
+	public synchronized void remove(String url){
+		Entry entry=byUrl.remove(url);
+		if (entry==null){
+			return;
+		}
+		for (int band=0; band<BANDS; band++){
+			Integer key=band(entry.fingerprint, band);
+			List<Entry> entries=bands.get(band).get(key);
+			entries.remove(entry);
+			if (entries.isEmpty()){
+				bands.get(band).remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Function to get the number of pages kept.
+	 *
+	 * @return number of pages.
+	 */
+	public synchronized int size(){
+		return byUrl.size();
+	}
+
+	/**
+	 * Function to forget all pages.
+	 */
+	public synchronized void clear(){
+		byUrl.clear();
+		for (Map<Integer,List<Entry>> table: bands){
+			table.clear();
+		}
+	}
+
+	/**
+	 * Helper function to get the value of a band of a fingerprint.
+	 */
+	private static int band(long fingerprint, int band){
+		return (int)((fingerprint>>>(band*BAND_BITS))&((1L<<BAND_BITS)-1));
+	}
+
+	/**
+	 * Helper function to spread the bits of a hash, so that each bit of the fingerprint depends on all the characters of a shingle.
+	 */
+	private static long mix(long h){
+		h^=h>>>33;
+		h*=0xff51afd7ed558ccdL;
+		h^=h>>>33;
+		h*=0xc4ceb9fe1a85ec53L;
+		h^=h>>>33;
+		return h;
+	}
+}
@@ -0,0 +1,250 @@
+package ir.control;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+
+/**
+ *
+ * PageExtractor class, extracting in a single pass over a parsed page all that the crawler takes from it: the title, the links,
+ * the canonical URL, the code, the text of the body, and the signals for detecting its programming language.
+ * <p>
+ * The code is the text within code elements (&lt;code&gt; tags, or elements of class code), each one followed by a separator.
+ * The text of the body has its whitespace collapsed, as in Element.text(). Scripts and styles are not part of either.
+ * <p>
+ * The buffers are reused from page to page, so an extractor is meant to be kept by a thread, and never shared.
+ *
+ */
+public class PageExtractor implements NodeVisitor {
+
+	/**Separator written after each code element.*/
+	private static final String CODE_SEPARATOR=" ... ";
+
+	/**Programming languages detected, in order of precedence. Those marked with * are only looked for in the code.*/
+	private static final String [][] LANGUAGES={
+		{"javascript", "javascript", "*"}, {"java", "java"}, {"c++", "c++"}, {"c#", "c#"}, {"ruby", "ruby"}, {"scala", " scala "},
+		{"python", "python"}, {"sql", "sql"}, {"assembly", "assembly"}, {"pascal", "pascal"}, {"fortran", "fortran"},
+		{"php", "php", "*"}, {"cuda", "cuda"}, {"latex", "latex"}, {"matlab", "matlab"}, {"opencl", "opencl"}, {"octave", "octave"}};
+
+	/**Capacity over which a buffer is released after a page, so a single large page does not keep its memory. By default 1 megabyte.*/
+	private static final int MAX_RETAINED_CAPACITY=1024*1024;
+
+	private String title;
+	private String canonical;
+	private List<String> links=new ArrayList<String>();
+	private StringBuilder code=new StringBuilder();
+	private StringBuilder text=new StringBuilder();
+	/**Code and text of the page (title included) in lowercase, for detecting the programming language.*/
+	private StringBuilder lowerCode=new StringBuilder();
+	private StringBuilder lowerText=new StringBuilder();
+
+	/**Number of body elements and code elements open at the current node.*/
+	private int bodyDepth;
+	private int codeDepth;
+
+	/**
+	 * Function to extract all from a page, replacing what was extracted from the previous one.
+	 *
+	 * @param doc parsed page
+	 */
+	public void extract(Document doc){
+		title=null;
+		canonical=null;
+		links.clear();
+		code=reuse(code);
+		text=reuse(text);
+		lowerCode=reuse(lowerCode);
+		lowerText=reuse(lowerText);
+		bodyDepth=0;
+		codeDepth=0;
+		new NodeTraversor(this).traverse(doc);
+		if (title==null){
+			title="";
+		}
+		if (text.length()>0 && text.charAt(text.length()-1)==' '){
+			text.setLength(text.length()-1);
+		}
+		appendLowerCase(lowerText, " ");
+		appendLowerCase(lowerText, title);
+	}
+
+	public void head(Node node, int depth){
+		if (node instanceof TextNode){
+			String value=((TextNode)node).getWholeText();
+			if (bodyDepth>0){
+				appendCollapsed(text, value);
+				appendLowerCase(lowerText, value);
+			}
+			if (codeDepth>0){
+				code.append(value);
+				appendLowerCase(lowerCode, value);
+			}
+			return;
+		}
+		if (!(node instanceof Element)){
+			return; //Comments, and the data of scripts and styles.
+		}
+		Element element=(Element)node;
+		String tag=element.tagName();
+		if (tag.equals("a")){
+			if (element.hasAttr("href")){
+				links.add(element.attr("href"));
+			}
+		}
+		else if (tag.equals("link")){
+			if (canonical==null && element.hasAttr("href") && hasToken(element.attr("rel"), "canonical")){
+				canonical=element.attr("href");
+			}
+		}
+		else if (tag.equals("title")){
+			if (title==null){
+				StringBuilder buffer=new StringBuilder();
+				appendCollapsed(buffer, element.text());
+				title=buffer.toString().trim();
+			}
+		}
+		else if (tag.equals("body")){
+			bodyDepth++;
+		}
+		if (tag.equals("code") || element.hasClass("code")){
+			codeDepth++;
+		}
+		if (bodyDepth>0 && (element.isBlock() || tag.equals("br"))){
+			separate(text);
+		}
+	}
+
+	public void tail(Node node, int depth){
+		if (!(node instanceof Element)){
+			return;
+		}
+		Element element=(Element)node;
+		String tag=element.tagName();
+		if (tag.equals("code") || element.hasClass("code")){
+			codeDepth--;
+			if (codeDepth==0){
+				code.append(CODE_SEPARATOR);
+				lowerCode.append(CODE_SEPARATOR);
+			}
+		}
+		if (bodyDepth>0 && element.isBlock()){
+			separate(text);
+		}
+		if (tag.equals("body")){
+			bodyDepth--;
+		}
+	}
+
+	/**
+	 * Function to get the title of the page.
+	 *
+	 * @return title, empty if none.
+	 */
+	public String getTitle(){
+		return title;
+	}
+
+	/**
+	 * Function to get the canonical URL given by the page, with &lt;link rel="canonical"&gt;.
+	 *
+	 * @return the href of the first such link, or null if none.
+	 */
+	public String getCanonical(){
+		return canonical;
+	}
+
+	/**
+	 * Function to get the links of the page.
+	 *
+	 * @return the hrefs of the &lt;a&gt; tags, as written. The list is reused for the next page.
+	 */
+	public List<String> getLinks(){
+		return links;
+	}
+
+	/**
+	 * @return code of the page.
+	 */
+	public String getCode(){
+		return code.toString();
+	}
+
+	/**
+	 * @return text of the body of the page.
+	 */
+	public String getText(){
+		return text.toString();
+	}
+
+	/**
+	 * Function to detect the programming language of the page, by looking for the names of some languages in its code and text.
+	 * The code is checked first for each language. JavaScript and PHP are only looked for in the code, since they are common in
+	 * web pages.
+	 *
+	 * @return the language, or empty if none is found.
+	 */
+	public String detectLanguage(){
+		for (String [] language: LANGUAGES){
+			if (lowerCode.indexOf(language[1])>=0 || (language.length==2 && lowerText.indexOf(language[1])>=0)){
+				return language[0];
+			}
+		}
+		return "";
+	}
+
+	/**
+	 * Helper function to append text with its runs of whitespace collapsed into a single space.
+	 */
+	private static void appendCollapsed(StringBuilder buffer, String value){
+		for (int i=0; i<value.length(); i++){
+			char c=value.charAt(i);
+			if (Character.isWhitespace(c) || c=='\u00a0'){
+				separate(buffer);
+			}
+			else {
+				buffer.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Helper function to end a buffer with a space, unless it is empty or already ends with one.
+	 */
+	private static void separate(StringBuilder buffer){
+		if (buffer.length()>0 && buffer.charAt(buffer.length()-1)!=' '){
+			buffer.append(' ');
+		}
+	}
+
+	private static void appendLowerCase(StringBuilder buffer, String value){
+		for (int i=0; i<value.length(); i++){
+			buffer.append(Character.toLowerCase(value.charAt(i)));
+		}
+	}
+
+	private static boolean hasToken(String value, String token){
+		for (String part: value.trim().split("\\s+")){
+			if (part.equalsIgnoreCase(token)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Helper function to empty a buffer for the next page, or replace it if it grew too large.
+	 */
+	private static StringBuilder reuse(StringBuilder buffer){
+		if (buffer.capacity()>MAX_RETAINED_CAPACITY){
+			return new StringBuilder();
+		}
+		buffer.setLength(0);
+		return buffer;
+	}
+}
@@ -0,0 +1,437 @@
+package ir.control;
+
+import ir.model.FetchResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ *
+ * PageFetcher class, in charge of all requests made by the crawler, for pages and for robots.txt files.
+ * <p>
+ * Requests are made with HttpURLConnection, which keeps idle connections alive in a pool per host, and reuses them for
+ * later requests to the same host. A connection can only be reused once its response has been read to the end and closed,
+ * so the fetcher always reads the whole body (up to a maximum size), including the body of error responses.
+ * This saves the TCP and TLS setup on hosts crawled deeply. The size of the pool (the http.maxConnections system property)
+ * applies to the whole JVM, so it is left to the application (see WebCrawler.configureHttpConnections).
+ * <p>
+ * Every request accepts gzip and deflate compressed bodies, which are decoded while they are read, so a compressed body is
+ * never kept whole. The maximum body size applies to the decoded body. The response is returned as the decoded bytes plus 
+ * headers (see FetchResult), to be parsed afterwards. The bytes of each body, as transferred and decoded, are counted per 
+ * host in the crawl metrics, if given.
+ * <p>
+ * Redirects are followed by the fetcher itself, up to a number of hops, so that the URLs redirected through are known
+ * without requesting them again.
+ * <p>
+ * Pages are fetched with fetchPage, which avoids downloading what the crawler cannot use: bodies whose Content-Type cannot
+ * be parsed, or whose Content-Length (as transferred) is over a maximum, are not read, and their connection is closed instead. Bodies of 
+ * unknown length are read as a stream, and cut at the maximum page size. Links to binary files can be told apart before
+ * any request, by their extension (see hasBinaryExtension).
+ *
+ */
+public class PageFetcher {
+
+	/**Size of the buffer for reading bodies.*/
+	private static final int BUFFER_SIZE=8192;
+
+	/**Extensions of the files that cannot be parsed as pages, in lowercase.*/
+	private static final Set<String> BINARY_EXTENSIONS=new HashSet<String>(Arrays.asList(
+			"7z", "apk", "avi", "bin", "bmp", "bz2", "class", "deb", "dmg", "doc", "docx", "eot", "exe", "flac", "flv", "gif", 
+			"gz", "ico", "iso", "jar", "jpeg", "jpg", "m4a", "m4v", "mkv", "mov", "mp3", "mp4", "mpeg", "mpg", "msi", "odt", 
+			"ogg", "otf", "pdf", "png", "ppt", "pptx", "psd", "rar", "rpm", "svgz", "swf", "tar", "tgz", "tif", "tiff", "ttf", 
+			"war", "wav", "webm", "webp", "wmv", "woff", "woff2", "xls", "xlsx", "xz", "z", "zip"));
+
+	/**Content codings accepted for the bodies, all of which are decoded.*/
+	private static final String ACCEPT_ENCODING="gzip, deflate";
+
+	/**A body read, whether it was cut, and its size as transferred.*/
+	private static final class Body {
+		final byte [] bytes;
+		final boolean truncated;
+		final long transferred;
+
+		Body(byte [] bytes, boolean truncated, long transferred){
+			this.bytes=bytes;
+			this.truncated=truncated;
+			this.transferred=transferred;
+		}
+	}
+
+	/**A stream counting the bytes read through it.*/
+	private static final class CountingInputStream extends FilterInputStream {
+		long count;
+
+		CountingInputStream(InputStream in){
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException{
+			int b=super.read();
+			if (b!=-1){
+				count++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte [] buffer, int offset, int length) throws IOException{
+			int read=super.read(buffer, offset, length);
+			if (read>0){
+				count+=read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException{
+			long skipped=super.skip(n);
+			count+=skipped;
+			return skipped;
+		}
+	}
+
+	/**Timeout for opening a connection, in milliseconds.*/
+	private int connectTimeoutMillis;
+
+	/**Timeout for reading from a connection, in milliseconds.*/
+	private int readTimeoutMillis;
+
+	/**Maximum number of bytes read from a body. Longer bodies are truncated. 0 for no limit.*/
+	private int maxBodyBytes;
+
+	/**Maximum Content-Length of the pages fetched with fetchPage. Longer pages are not read. 0 for no limit.*/
+	private long maxContentLength;
+
+	/**Maximum number of redirects followed for a request.*/
+	private int maxRedirects;
+
+	/**User agent sent with each request.*/
+	private String userAgent;
+
+	/**Referrer sent with each request.*/
+	private String referrer;
+
+	/**Metrics where the bytes read are counted, or null.*/
+	private CrawlMetrics metrics;
+
+	/**
+	 * Parametric constructor.
+	 *
+	 * @param connectTimeoutMillis timeout for opening a connection, in milliseconds.
+	 * @param readTimeoutMillis timeout for reading from a connection, in milliseconds.
+	 * @param maxBodyBytes maximum number of bytes read from a body. 0 for no limit.
+	 * @param maxContentLength maximum Content-Length of the pages fetched with fetchPage. Longer pages are not read. 0 for no limit.
+	 * @param maxRedirects maximum number of redirects followed for a request. Longer chains, including loops, fail.
+	 * @param userAgent user agent sent with each request
+	 * @param referrer referrer sent with each request
+	 * @param metrics metrics where the bytes read from each host are counted, or null for none.
+	 */
+	public PageFetcher(int connectTimeoutMillis, int readTimeoutMillis, int maxBodyBytes, long maxContentLength, int maxRedirects, 
+			String userAgent, String referrer, CrawlMetrics metrics){
+		this.connectTimeoutMillis=connectTimeoutMillis;
+		this.readTimeoutMillis=readTimeoutMillis;
+		this.maxBodyBytes=maxBodyBytes;
+		this.maxContentLength=maxContentLength;
+		this.maxRedirects=maxRedirects;
+		this.userAgent=userAgent;
+		this.referrer=referrer;
+		this.metrics=metrics;
+	}
+
+	/**
+	 * Function to request a URL.
+	 *
+	 * @param url url to request
+	 * @param followRedirects true to follow redirects, recording the urls redirected through, false to return them as responses.
+	 *
+	 * @return the response, whatever its status code.
+	 *
+	 * @throws IOException if the request could not be made, the response could not be read, or there were too many redirects.
+	 */
+	public FetchResult fetch(String url, boolean followRedirects) throws IOException{
+		return fetch(url, followRedirects, null, null);
+	}
+
+	/**
+	 * Function to request a URL only if it changed since a previous version. If it did not, the response has status 304 (Not Modified)
+	 * and no body.
+	 *
+	 * @param url url to request
+	 * @param followRedirects true to follow redirects, recording the urls redirected through, false to return them as responses.
+	 * @param etag ETag of the previous version, or null if unknown.
+	 * @param lastModified Last-Modified date of the previous version, or null if unknown.
+	 *
+	 * @return the response, whatever its status code.
+	 *
+	 * @throws IOException if the request could not be made, the response could not be read, or there were too many redirects.
+	 */
+	public FetchResult fetch(String url, boolean followRedirects, String etag, String lastModified) throws IOException{
+		return fetch(url, followRedirects, etag, lastModified, false);
+	}
+
+	/**
+	 * Function to request a page to be parsed, following redirects, and only if it changed since a previous version, if given.
+	 * The body of a successful response is not read if its Content-Type cannot be parsed (see isParseable), or its Content-Length
+	 * is over the maximum: the response then tells why (see FetchResult.getSkipReason), and has no body.
+	 *
+	 * @param url url to request
+	 * @param etag ETag of the previous version, or null if unknown.
+	 * @param lastModified Last-Modified date of the previous version, or null if unknown.
+	 *
+	 * @return the response, whatever its status code.
+	 *
+	 * @throws IOException if the request could not be made, the response could not be read, or there were too many redirects.
+	 */
+	public FetchResult fetchPage(String url, String etag, String lastModified) throws IOException{
+		return fetch(url, true, etag, lastModified, true);
+	}
+
+	/**
+	 * Function to check if a URL points to a binary file, by the extension of its last path segment, so it can be skipped
+	 * without requesting it.
+	 *
+	 * @param url url
+	 *
+	 * @return true if the extension is of a file that cannot be parsed as a page, such as .pdf, .zip or .png, false otherwise.
+	 */
+	public static boolean hasBinaryExtension(String url){
+		int schemeEnd=url.indexOf("://");
+		int pathStart=url.indexOf('/', schemeEnd<0 ? 0 : schemeEnd+3);
+		if (pathStart<0){
+			return false;
+		}
+		int pathEnd=url.length();
+		for (int i=pathStart; i<url.length(); i++){
+			char c=url.charAt(i);
+			if (c=='?' || c=='#'){
+				pathEnd=i;
+				break;
+			}
+		}
+		int dot=url.lastIndexOf('.', pathEnd-1);
+		if (dot<=url.lastIndexOf('/', pathEnd-1) || pathEnd-dot-1>5){
+			return false;
+		}
+		return BINARY_EXTENSIONS.contains(url.substring(dot+1, pathEnd).toLowerCase());
+	}
+
+	/**
+	 * Function to check if a page can be parsed, by its content type: text, or XML.
+	 *
+	 * @param contentType value of the Content-Type header. It can be null, if not given.
+	 *
+	 * @return true if the page can be parsed, false otherwise.
+	 */
+	public static boolean isParseable(String contentType){
+		if (contentType==null){
+			return true;
+		}
+		String mimeType=contentType.toLowerCase();
+		return mimeType.startsWith("text/") || mimeType.matches("(application|text)/\\w*\\+?xml.*");
+	}
+
+	/**
+	 * Helper function to request a URL.
+	 *
+	 * @param pageOnly true to skip the bodies of successful responses that cannot be parsed, or are over the maximum length.
+	 */
+	private FetchResult fetch(String url, boolean followRedirects, String etag, String lastModified, boolean pageOnly) throws IOException{
+		List<String> redirectChain=new ArrayList<String>();
+		URL current=new URL(url);
+		while (true){
+			HttpURLConnection http=open(current);
+			if (etag!=null){
+				http.setRequestProperty("If-None-Match", etag);
+			}
+			if (lastModified!=null){
+				http.setRequestProperty("If-Modified-Since", lastModified);
+			}
+			try {
+				int status=http.getResponseCode();
+				Map<String,List<String>> headers=new TreeMap<String,List<String>>(String.CASE_INSENSITIVE_ORDER);
+				for (Map.Entry<String,List<String>> header: http.getHeaderFields().entrySet()){
+					if (header.getKey()!=null){ //The status line has no name.
+						headers.put(header.getKey(), new ArrayList<String>(header.getValue()));
+					}
+				}
+				String location=http.getHeaderField("Location");
+				boolean last=!followRedirects || !isRedirect(status) || location==null;
+				if (last && pageOnly && status>=200 && status<300){
+					/**The body is checked by the headers before it is read.*/
+					String skipReason=null;
+					if (!isParseable(http.getContentType())){
+						skipReason=FetchResult.SKIPPED_CONTENT_TYPE;
+					}
+					else if (maxContentLength>0 && http.getContentLengthLong()>maxContentLength){
+						skipReason=FetchResult.SKIPPED_CONTENT_LENGTH;
+					}
+					if (skipReason!=null){
+						http.disconnect(); //The body is not read, so the connection cannot be reused.
+						return new FetchResult(current.toString(), redirectChain, status, headers, new byte[0], false, skipReason, 0);
+					}
+				}
+				InputStream in=status>=400 ? http.getErrorStream() : http.getInputStream();
+				Body body=readBody(in, http);
+				if (metrics!=null){
+					metrics.recordTransfer(current.getHost(), body.transferred, body.bytes.length);
+				}
+				if (last){
+					return new FetchResult(current.toString(), redirectChain, status, headers, body.bytes, body.truncated, null, 
+							body.transferred);
+				}
+				redirectChain.add(current.toString());
+				if (redirectChain.size()>maxRedirects){
+					throw new IOException("Too many redirects ("+maxRedirects+" at most) for: "+url);
+				}
+				current=new URL(current, location); //The location can be relative to the url redirected from.
+			}
+			catch (IOException e){
+				http.disconnect();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Helper function to open a connection to a URL, without following redirects.
+	 *
+	 * @param url url to connect to
+	 *
+	 * @return the connection, not yet connected.
+	 *
+	 * @throws IOException if the url is not http or https.
+	 */
+	private HttpURLConnection open(URL url) throws IOException{
+		URLConnection connection=url.openConnection();
+		if (!(connection instanceof HttpURLConnection)){
+			throw new IOException("Only http and https urls can be fetched: "+url);
+		}
+		HttpURLConnection http=(HttpURLConnection)connection;
+		http.setConnectTimeout(connectTimeoutMillis);
+		http.setReadTimeout(readTimeoutMillis);
+		http.setInstanceFollowRedirects(false);
+		http.setRequestProperty("User-Agent", userAgent);
+		http.setRequestProperty("Referer", referrer);
+		http.setRequestProperty("Accept-Encoding", ACCEPT_ENCODING);
+		return http;
+	}
+
+	/**
+	 * Helper function to check if a status code is a redirect that can be followed.
+	 *
+	 * @param status status code
+	 *
+	 * @return true for 301, 302, 303, 307 and 308, false otherwise.
+	 */
+	private boolean isRedirect(int status){
+		return status==301 || status==302 || status==303 || status==307 || status==308;
+	}
+
+	/**
+	 * Helper function to read a body to the end, so that its connection can be reused, decoding it as it is read if it was 
+	 * compressed. If the decoded body is longer than the maximum, it is truncated and the connection is closed instead.
+	 *
+	 * @param in stream of the body. It can be null if there is no body.
+	 * @param http connection of the body
+	 *
+	 * @return the body.
+	 *
+	 * @throws IOException if the body could not be read.
+	 */
+	private Body readBody(InputStream in, HttpURLConnection http) throws IOException{
+		if (in==null){
+			return new Body(new byte[0], false, 0);
+		}
+		CountingInputStream counter=new CountingInputStream(in);
+		InputStream decoded=counter;
+		ByteArrayOutputStream out=new ByteArrayOutputStream();
+		byte [] buffer=new byte[BUFFER_SIZE];
+		boolean truncated=false;
+		try {
+			decoded=decode(counter, http.getContentEncoding());
+			int read;
+			while ((read=decoded.read(buffer))!=-1){
+				if (maxBodyBytes>0 && out.size()+read>maxBodyBytes){
+					out.write(buffer, 0, maxBodyBytes-out.size());
+					truncated=true;
+					break;
+				}
+				out.write(buffer, 0, read);
+			}
+		}
+		finally {
+			if (truncated){
+				http.disconnect(); //The rest of the body is not read, so the connection cannot be reused.
+			}
+			else {
+				decoded.close(); //Returns the connection to the pool.
+			}
+		}
+		return new Body(out.toByteArray(), truncated, counter.count);
+	}
+
+	/**
+	 * Helper function to decode a body as it is read, by its Content-Encoding.
+	 *
+	 * @param in stream of the body, as transferred
+	 * @param contentEncoding value of the Content-Encoding header, or null if not given.
+	 *
+	 * @return stream of the decoded body. It is the same stream if the body is not encoded, is empty (as in a response to a 
+	 * conditional request), or is encoded with a coding that was not accepted, which is then kept as it came.
+	 *
+	 * @throws IOException if the body could not be read.
+	 */
+	private static InputStream decode(InputStream in, String contentEncoding) throws IOException{
+		if (contentEncoding==null){
+			return in;
+		}
+		String coding=contentEncoding.trim().toLowerCase();
+		boolean gzip=coding.equals("gzip") || coding.equals("x-gzip");
+		if (!gzip && !coding.equals("deflate")){
+			return in;
+		}
+		PushbackInputStream pushback=new PushbackInputStream(in, 2);
+		int first=pushback.read();
+		if (first==-1){
+			return pushback;
+		}
+		int second=pushback.read();
+		if (second!=-1){
+			pushback.unread(second);
+		}
+		pushback.unread(first);
+		if (gzip){
+			return new GZIPInputStream(pushback, BUFFER_SIZE);
+		}
+		/**Deflate bodies should have a zlib header (a multiple of 31, with method 8), but some servers send them without it.*/
+		boolean zlib=second!=-1 && (first&0x0f)==8 && ((first<<8)|second)%31==0;
+		return new InflaterInputStream(pushback, new Inflater(!zlib), BUFFER_SIZE){
+			@Override
+			public void close() throws IOException{
+				try {
+					super.close();
+				}
+				finally {
+					inf.end(); //An Inflater given to the stream is not ended with it.
+				}
+			}
+		};
+	}
+}
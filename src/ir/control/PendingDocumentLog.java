@@ -0,0 +1,209 @@
+package ir.control;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *
+ * PendingDocumentLog class, an append-only log of the documents added to the index since its last commit.
+ * <p>
+ * Each document is stored as the list of its field values. A record is written as: its length, the deflated
+ * field values and a CRC32 checksum. Every record is handed to the operating system in a single write,
+ * so the log survives the JVM being killed. If fsync is requested, it also survives a power failure, at the
+ * cost of a disk flush per document.
+ * <p>
+ * After a commit of the index the log is truncated. If the crawler stops before that, the log is replayed
+ * on the next crawl, so no page is lost. A torn record at the end of the log (from a write interrupted by
+ * the crash) is detected by its checksum and ignored.
+ *
+ */
+public class PendingDocumentLog {
+
+	/**Charset used for the field values.*/
+	private static final String CHARSET="UTF-8";
+
+	/**Location of the log.*/
+	private File file;
+
+	/**Open log file, positioned at its end.*/
+	private RandomAccessFile out;
+
+	/**Flag that indicates if every record must be flushed to disk.*/
+	private boolean syncEachRecord;
+
+	/**Compressor for the records. Only used while holding the lock of this object.*/
+	private Deflater deflater= new Deflater(Deflater.BEST_SPEED);
+
+	/**
+	 * Parametric constructor. It opens (or creates) the log, without reading it.
+	 *
+	 * @param file location of the log
+	 * @param syncEachRecord if true, every record is flushed to disk before append returns.
+	 *
+	 * @throws IOException if the log cannot be opened.
+	 */
+	public PendingDocumentLog(File file, boolean syncEachRecord) throws IOException{
+		this.file=file;
+		this.syncEachRecord=syncEachRecord;
+		this.out=new RandomAccessFile(file, "rw");
+		this.out.seek(this.out.length());
+	}
+
+	/**
+	 * Function to append a document to the log.
+	 *
+	 * @param fields values of the fields of the document. None of them can be null.
+	 *
+	 * @throws IOException if the record could not be written.
+	 */
+	public synchronized void append(String[] fields) throws IOException{
+		ByteArrayOutputStream raw= new ByteArrayOutputStream();
+		DataOutputStream data= new DataOutputStream(raw);
+		data.writeInt(fields.length);
+		for (String field: fields){
+			byte[] bytes=field.getBytes(CHARSET);
+			data.writeInt(bytes.length);
+			data.write(bytes);
+		}
+		data.flush();
+		byte[] uncompressed=raw.toByteArray();
+
+		deflater.reset();
+		deflater.setInput(uncompressed);
+		deflater.finish();
+		ByteArrayOutputStream compressed= new ByteArrayOutputStream(uncompressed.length/4+16);
+		byte[] buffer=new byte[8192];
+		while (!deflater.finished()){
+			int n=deflater.deflate(buffer);
+			compressed.write(buffer, 0, n);
+		}
+		byte[] payload=compressed.toByteArray();
+
+		CRC32 crc= new CRC32();
+		crc.update(payload);
+		ByteBuffer record=ByteBuffer.allocate(4+4+payload.length+8);
+		record.putInt(payload.length);
+		record.putInt(uncompressed.length);
+		record.put(payload);
+		record.putLong(crc.getValue());
+		out.write(record.array()); //A single write for the whole record.
+		if (syncEachRecord){
+			out.getFD().sync();
+		}
+	}
+
+	/**
+	 * Function to read all the complete records in the log. Reading stops at the first record that is
+	 * truncated or fails its checksum.
+	 *
+	 * @return list with the field values of each document, in the order they were appended. This list can be empty.
+	 *
+	 * @throws IOException if the log cannot be read.
+	 */
+	public synchronized List<String[]> readAll() throws IOException{
+		List<String[]> results= new ArrayList<String[]>();
+		DataInputStream in= new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		Inflater inflater= new Inflater();
+		try {
+			while (true){
+				int compressedLength;
+				int uncompressedLength;
+				try {
+					compressedLength=in.readInt();
+					uncompressedLength=in.readInt();
+				} catch (EOFException e){
+					break;
+				}
+				if (compressedLength<0 || uncompressedLength<0){
+					break;
+				}
+				byte[] payload=new byte[compressedLength];
+				long checksum;
+				try {
+					in.readFully(payload);
+					checksum=in.readLong();
+				} catch (EOFException e){
+					break; //Torn record at the end of the log.
+				}
+				CRC32 crc= new CRC32();
+				crc.update(payload);
+				if (crc.getValue()!=checksum){
+					break;
+				}
+
+				byte[] uncompressed=new byte[uncompressedLength];
+				inflater.reset();
+				inflater.setInput(payload);
+				try {
+					inflater.inflate(uncompressed);
+				} catch (DataFormatException e){
+					break;
+				}
+				DataInputStream data= new DataInputStream(new ByteArrayInputStream(uncompressed));
+				String[] fields=new String[data.readInt()];
+				for (int i=0; i<fields.length; i++){
+					byte[] bytes=new byte[data.readInt()];
+					data.readFully(bytes);
+					fields[i]=new String(bytes, CHARSET);
+				}
+				results.add(fields);
+			}
+		}
+		finally {
+			inflater.end();
+			in.close();
+		}
+		return results;
+	}
+
+	/**
+	 * Function to get the current size of the log.
+	 *
+	 * @return size in bytes of the records written since the last truncation.
+	 */
+	public synchronized long length(){
+		try {
+			return out.length();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Function to discard all records. To be called once the documents are safely committed in the index.
+	 *
+	 * @throws IOException if the log cannot be truncated.
+	 */
+	public synchronized void truncate() throws IOException{
+		out.setLength(0);
+		out.seek(0);
+		if (syncEachRecord){
+			out.getFD().sync();
+		}
+	}
+
+	/**
+	 * Function to close the log. Its records are kept.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException{
+		deflater.end();
+		out.close();
+	}
+}
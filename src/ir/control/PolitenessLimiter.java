@@ -0,0 +1,225 @@
+package ir.control;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ *
+ * PolitenessLimiter class, enforcing politeness per host, whichever thread makes the requests.
+ * <p>
+ * At most one request to a host is in progress at any time, and after it finishes the next one can only start
+ * once a delay has passed. The delay of each host adapts to how the host answers:
+ * <ul>
+ * <li>It is a multiple of the average time the host takes to answer, and never less than a minimum. So fast hosts are crawled
+ * faster than slow ones.</li>
+ * <li>It never goes below the Crawl-delay given by the robots.txt of the host, if any.</li>
+ * <li>It backs off (grows exponentially) when the host answers 429 (Too Many Requests) or 503 (Service Unavailable), fails to answer,
+ * or answers much slower than usual. A Retry-After given by the host is honored. Each healthy answer then shrinks it back,
+ * step by step.</li>
+ * </ul>
+ * All delays are capped by a maximum.
+ * <p>
+ * All functions are synchronized on the limiter itself.
+ *
+ */
+public class PolitenessLimiter {
+
+	/**Factor applied to the average response time of a host to get its delay.*/
+	private static final double LATENCY_FACTOR=2.0;
+
+	/**Weight of the last response time in the average response time of a host.*/
+	private static final double LATENCY_WEIGHT=0.2;
+
+	/**A response slower than the average response time times this factor is taken as a sign of overload.*/
+	private static final double SLOW_RESPONSE_FACTOR=3.0;
+
+	/**Factor applied to the backoff of a host when it is overloaded.*/
+	private static final double BACKOFF_GROWTH=2.0;
+
+	/**Factor applied to the backoff of a host after each healthy response.*/
+	private static final double BACKOFF_DECAY=0.75;
+
+	/**State of a host.*/
+	private static class HostState {
+		/**True while a request to the host is in progress.*/
+		boolean busy=false;
+		/**Time from which the next request can start.*/
+		long nextAllowed=0;
+		/**Crawl-delay of the host, in milliseconds, or -1 if none. The longest one given by the origins of the host.*/
+		long crawlDelay=-1;
+		/**Crawl-delay given by each origin of the host (http, https, or other ports), in milliseconds.*/
+		Map<String,Long> originDelays=new HashMap<String,Long>(2);
+		/**Average response time, in milliseconds, or -1 if unknown.*/
+		double averageLatency=-1;
+		/**Factor applied to the delay, 1 for a healthy host.*/
+		double backoff=1;
+		/**Time before which no request can start, as asked by the host with Retry-After.*/
+		long retryAfter=0;
+	}
+
+	/**Minimum time between the end of a request to a host and the start of the next one, in milliseconds.*/
+	private long minDelayMillis;
+
+	/**Maximum time between the end of a request to a host and the start of the next one, in milliseconds.*/
+	private long maxDelayMillis;
+
+	/**State of each host seen.*/
+	private Map<String,HostState> hosts= new HashMap<String,HostState>();
+
+	/**
+	 * Parametric constructor.
+	 *
+	 * @param minDelayMillis minimum time between requests to the same host, in milliseconds.
+	 * @param maxDelayMillis maximum time between requests to the same host, in milliseconds. It also caps Crawl-delay and Retry-After.
+	 */
+	public PolitenessLimiter(long minDelayMillis, long maxDelayMillis){
+		this.minDelayMillis=minDelayMillis;
+		this.maxDelayMillis=Math.max(minDelayMillis, maxDelayMillis);
+	}
+
+	/**
+	 * Function to start a request to a host, if allowed.
+	 *
+	 * @param host hostname
+	 *
+	 * @return 0 if the request can start, and it is then counted as in progress. Otherwise, the time in milliseconds until
+	 * it can start, or Long.MAX_VALUE if another request to the host is in progress.
+	 */
+	public synchronized long tryAcquire(String host){
+		HostState state=state(host);
+		if (state.busy){
+			return Long.MAX_VALUE;
+		}
+		long remaining=Math.max(state.nextAllowed, state.retryAfter)-System.currentTimeMillis();
+		if (remaining>0){
+			return remaining;
+		}
+		state.busy=true;
+		return 0;
+	}
+
+	/**
+	 * Function to signal that a request started with tryAcquire is finished. The next request can start once the current delay
+	 * of the host has passed.
+	 *
+	 * @param host hostname
+	 * @param requested true if the host was actually contacted, false if the request was given up before. In the latter case
+	 * the next request can start at once.
+	 */
+	public synchronized void release(String host, boolean requested){
+		HostState state=state(host);
+		state.busy=false;
+		if (requested){
+			state.nextAllowed=System.currentTimeMillis()+delay(state);
+		}
+	}
+
+	/**
+	 * Function to record how a host answered a request, to adapt its delay.
+	 *
+	 * @param host hostname
+	 * @param statusCode status code of the response, or -1 if there was no response (such as a timeout).
+	 * @param latencyMillis time taken by the request, in milliseconds.
+	 * @param retryAfterMillis time the host asked to wait before the next request, in milliseconds, or 0 if not given.
+	 */
+	public synchronized void recordResponse(String host, int statusCode, long latencyMillis, long retryAfterMillis){
+		HostState state=state(host);
+		long now=System.currentTimeMillis();
+		if (retryAfterMillis>0){
+			state.retryAfter=Math.max(state.retryAfter, now+Math.min(retryAfterMillis, maxDelayMillis));
+		}
+		boolean overloaded=statusCode<0 || statusCode==429 || statusCode==503;
+		if (statusCode>=0){
+			if (state.averageLatency<0){
+				state.averageLatency=latencyMillis;
+			}
+			else {
+				overloaded|=latencyMillis>SLOW_RESPONSE_FACTOR*state.averageLatency && latencyMillis>minDelayMillis;
+				state.averageLatency=(1-LATENCY_WEIGHT)*state.averageLatency+LATENCY_WEIGHT*latencyMillis;
+			}
+		}
+		if (overloaded){
+			state.backoff=Math.min(state.backoff*BACKOFF_GROWTH, (double)maxDelayMillis/Math.max(1, minDelayMillis));
+		}
+		else {
+			state.backoff=Math.max(1, state.backoff*BACKOFF_DECAY);
+		}
+	}
+
+	/**
+	 * Function to set the Crawl-delay of a host, as given by the robots.txt of one of its origins. Each origin has its own
+	 * robots.txt, but requests are limited by host, so the longest Crawl-delay of its origins is kept. It replaces the
+	 * Crawl-delay given before by the same origin, as when its robots.txt is fetched again.
+	 *
+	 * @param host hostname
+	 * @param origin scheme, host and port whose robots.txt gave the Crawl-delay
+	 * @param crawlDelayMillis Crawl-delay in milliseconds, or -1 if none.
+	 */
+	public synchronized void setCrawlDelay(String host, String origin, long crawlDelayMillis){
+		HostState state=state(host);
+		state.originDelays.put(origin, crawlDelayMillis<0 ? -1 : Math.min(crawlDelayMillis, maxDelayMillis));
+		state.crawlDelay=-1;
+		for (long crawlDelay: state.originDelays.values()){
+			state.crawlDelay=Math.max(state.crawlDelay, crawlDelay);
+		}
+	}
+
+	/**
+	 * Function to get the current delay of a host.
+	 *
+	 * @param host hostname
+	 *
+	 * @return time between requests to the host, in milliseconds.
+	 */
+	public synchronized long getDelay(String host){
+		return delay(state(host));
+	}
+
+	/**
+	 * Function to get the average time a host takes to answer.
+	 *
+	 * @param host hostname
+	 *
+	 * @return average response time in milliseconds, or -1 if the host has not answered yet.
+	 */
+	public synchronized double getAverageLatency(String host){
+		HostState state=hosts.get(host);
+		return state==null ? -1 : state.averageLatency;
+	}
+
+	/**
+	 * Function to forget all hosts.
+	 */
+	public synchronized void clear(){
+		hosts.clear();
+	}
+
+	/**
+	 * Helper function to compute the delay of a host from its state.
+	 *
+	 * @param state state of the host
+	 *
+	 * @return delay in milliseconds.
+	 */
+	private long delay(HostState state){
+		double base=Math.max(minDelayMillis, LATENCY_FACTOR*Math.max(0, state.averageLatency));
+		long delay=(long)Math.min(maxDelayMillis, base*state.backoff);
+		return Math.max(delay, state.crawlDelay);
+	}
+
+	/**
+	 * Helper function to get the state of a host, creating it the first time.
+	 *
+	 * @param host hostname
+	 *
+	 * @return state of the host.
+	 */
+	private HostState state(String host){
+		HostState state=hosts.get(host);
+		if (state==null){
+			state=new HostState();
+			hosts.put(host, state);
+		}
+		return state;
+	}
+}
@@ -0,0 +1,212 @@
+package ir.control;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * RecrawlStore class, a side store of the index, keeping for each crawled URL what is needed to tell if it changed since:
+ * its ETag and Last-Modified headers, a hash of its content, and the depth at which it was crawled.
+ * <p>
+ * It is kept in memory during a crawl, and saved as a text file (one tab-separated line per URL) at the end.
+ * The file is written to a temporary file first, and then renamed, so a crash while saving leaves the previous version.
+ * <p>
+ * All functions are synchronized on the store itself.
+ *
+ */
+public class RecrawlStore {
+
+	/**Charset of the file.*/
+	private static final String CHARSET="UTF-8";
+
+	/**
+	 * The version of a page seen on its last crawl.
+	 */
+	public static class PageVersion {
+		private int depth;
+		private String etag;
+		private String lastModified;
+		private long contentHash;
+
+		/**
+		 * Parametric constructor.
+		 *
+		 * @param depth depth at which the page was crawled
+		 * @param etag ETag header, or null if not given
+		 * @param lastModified Last-Modified header, or null if not given
+		 * @param contentHash hash of the body (see hash)
+		 */
+		public PageVersion(int depth, String etag, String lastModified, long contentHash){
+			this.depth=depth;
+			this.etag=etag;
+			this.lastModified=lastModified;
+			this.contentHash=contentHash;
+		}
+
+		public int getDepth(){
+			return depth;
+		}
+
+		public String getEtag(){
+			return etag;
+		}
+
+		public String getLastModified(){
+			return lastModified;
+		}
+
+		public long getContentHash(){
+			return contentHash;
+		}
+	}
+
+	/**Location of the store.*/
+	private File file;
+
+	/**Version of each page, by its normalized url.*/
+	private Map<String,PageVersion> pages= new HashMap<String,PageVersion>();
+
+	/**
+	 * Parametric constructor. The store starts empty.
+	 *
+	 * @param file location of the store
+	 */
+	public RecrawlStore(File file){
+		this.file=file;
+	}
+
+	/**
+	 * Function to load the store from its file, if it exists. Malformed lines are ignored.
+	 *
+	 * @throws IOException if the file exists but cannot be read.
+	 */
+	public synchronized void load() throws IOException{
+		pages.clear();
+		if (!file.exists()){
+			return;
+		}
+		BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+		try {
+			String line;
+			while ((line=reader.readLine())!=null){
+				String [] columns=line.split("\t", -1);
+				if (columns.length!=5){
+					continue;
+				}
+				try {
+					pages.put(columns[0], new PageVersion(Integer.parseInt(columns[1]), emptyToNull(columns[3]),
+							emptyToNull(columns[4]), new BigInteger(columns[2], 16).longValue()));
+				}
+				catch (NumberFormatException e){
+					System.out.println("Malformed line in "+file.getName()+": "+line);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Function to save the store to its file, replacing the previous version.
+	 *
+	 * @throws IOException if the file cannot be written.
+	 */
+	public synchronized void save() throws IOException{
+		File temp=new File(file.getPath()+".tmp");
+		PrintWriter writer=new PrintWriter(new OutputStreamWriter(new FileOutputStream(temp), CHARSET));
+		try {
+			for (Map.Entry<String,PageVersion> page: pages.entrySet()){
+				PageVersion version=page.getValue();
+				writer.println(page.getKey()+"\t"+version.depth+"\t"+Long.toHexString(version.contentHash)+"\t"+
+						nullToEmpty(version.etag)+"\t"+nullToEmpty(version.lastModified));
+			}
+		}
+		finally {
+			writer.close();
+		}
+		if (writer.checkError()){
+			throw new IOException("Could not write "+temp.getPath());
+		}
+		if (!temp.renameTo(file)){
+			file.delete(); //On some systems an existing file is not replaced by renameTo.
+			if (!temp.renameTo(file)){
+				throw new IOException("Could not replace "+file.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Function to get the version of a page seen on its last crawl.
+	 *
+	 * @param url normalized url
+	 *
+	 * @return the version, or null if the page is not in the store.
+	 */
+	public synchronized PageVersion get(String url){
+		return pages.get(url);
+	}
+
+	/**
+	 * Function to store the version of a page.
+	 *
+	 * @param url normalized url
+	 * @param version version of the page
+	 */
+	public synchronized void put(String url, PageVersion version){
+		pages.put(url, version);
+	}
+
+	/**
+	 * Function to get all pages in the store.
+	 *
+	 * @return list of normalized urls. This list can be empty.
+	 */
+	public synchronized List<String> getUrls(){
+		return new ArrayList<String>(pages.keySet());
+	}
+
+	/**
+	 * Function to get the number of pages in the store.
+	 *
+	 * @return number of pages.
+	 */
+	public synchronized int size(){
+		return pages.size();
+	}
+
+	/**
+	 * Function to compute the hash of a content (64-bit FNV-1a).
+	 *
+	 * @param content bytes of the content
+	 *
+	 * @return hash of the content.
+	 */
+	public static long hash(byte [] content){
+		long h=0xcbf29ce484222325L;
+		for (byte b: content){
+			h^=(b&0xff);
+			h*=0x100000001b3L;
+		}
+		return h;
+	}
+
+	private static String emptyToNull(String value){
+		return value.isEmpty() ? null : value;
+	}
+
+	private static String nullToEmpty(String value){
+		return value==null ? "" : value.replace('\t', ' ');
+	}
+}
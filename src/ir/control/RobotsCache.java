@@ -0,0 +1,301 @@
+package ir.control;
+
+import ir.model.FetchResult;
+import ir.model.RobotsRules;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ *
+ * RobotsCache class, keeping the robots.txt rules of each host, by origin (scheme, host and port).
+ * <p>
+ * Rules are fetched once per host, the first time they are needed. If several threads need the rules of the same host at once,
+ * only one of them fetches the file, and the others wait for its result. Rules expire after some time, and are then fetched again.
+ * <p>
+ * Following RFC 9309, a host whose robots.txt does not exist (a 4xx status) is considered to allow everything. A host whose 
+ * robots.txt cannot be reached (a 5xx status, or no answer) is considered to disallow everything, but only for a short time, 
+ * after which the file is fetched again. These rules are not saved.
+ * <p>
+ * The cache can be saved to a text file and loaded from it, so rules are kept from one crawl to the next.
+ *
+ */
+public class RobotsCache {
+
+	/**Charset of the file.*/
+	private static final String CHARSET="UTF-8";
+
+	/**Time after which the rules of a host expire, in milliseconds.*/
+	private long ttlMillis;
+
+	/**Time after which the rules of a host whose robots.txt could not be reached expire, in milliseconds.*/
+	private long retryMillis;
+
+	/**Signals if the hosts whose robots.txt could not be fetched are reported.*/
+	private boolean verbose;
+
+	/**User agent whose rules are kept.*/
+	private String userAgent;
+
+	/**Rules of each origin, as the task fetching them. The task is done once the rules are known.*/
+	private ConcurrentHashMap<String,FutureTask<RobotsRules>> entries= new ConcurrentHashMap<String,FutureTask<RobotsRules>>();
+
+	/**
+	 * Parametric constructor.
+	 *
+	 * @param ttlMillis time after which the rules of a host expire, in milliseconds.
+	 * @param retryMillis time after which the rules of a host whose robots.txt could not be reached expire, in milliseconds.
+	 * @param userAgent user agent whose rules are kept (see RobotsRules.parse)
+	 * @param verbose true to report the hosts whose robots.txt could not be fetched
+	 */
+	public RobotsCache(long ttlMillis, long retryMillis, String userAgent, boolean verbose){
+		this.ttlMillis=ttlMillis;
+		this.retryMillis=retryMillis;
+		this.userAgent=userAgent;
+		this.verbose=verbose;
+	}
+
+	/**
+	 * Function to get the rules of a host, fetching them if they are not known or have expired.
+	 * <p>
+	 * Note: It blocks while the rules are fetched, by this thread or by another one.
+	 *
+	 * @param origin scheme, host and port of the host, such as http://host:port
+	 * @param fetcher fetcher to use if the rules must be fetched
+	 *
+	 * @return the rules of the host.
+	 */
+	public RobotsRules get(String origin, PageFetcher fetcher){
+		while (true){
+			FutureTask<RobotsRules> task=entries.get(origin);
+			if (task!=null && task.isDone()){
+				RobotsRules rules=result(task, origin);
+				if (!isExpired(rules)){
+					return rules;
+				}
+				FutureTask<RobotsRules> refresh=newTask(origin, fetcher);
+				if (entries.replace(origin, task, refresh)){
+					refresh.run();
+					return result(refresh, origin);
+				}
+				continue; //Another thread refreshed it first.
+			}
+			if (task==null){
+				FutureTask<RobotsRules> fetch=newTask(origin, fetcher);
+				task=entries.putIfAbsent(origin, fetch);
+				if (task==null){
+					fetch.run();
+					return result(fetch, origin);
+				}
+			}
+			return result(task, origin);
+		}
+	}
+
+	/**
+	 * Function to get the rules of a host, only if they are known and have not expired. It never blocks.
+	 *
+	 * @param origin scheme, host and port of the host, such as http://host:port
+	 *
+	 * @return the rules of the host, or null if they are not known yet.
+	 */
+	public RobotsRules getIfPresent(String origin){
+		FutureTask<RobotsRules> task=entries.get(origin);
+		if (task==null || !task.isDone()){
+			return null;
+		}
+		RobotsRules rules=result(task, origin);
+		return isExpired(rules) ? null : rules;
+	}
+
+	/**
+	 * Function to forget all hosts.
+	 */
+	public void clear(){
+		entries.clear();
+	}
+
+	/**
+	 * Function to load the rules saved in a file, replacing the ones known. Expired rules are skipped, and so are malformed lines.
+	 * <p>
+	 * Each line holds an origin, the time its rules were fetched, its Crawl-delay, and then its rules, all separated by tabs.
+	 * Rules start with + for Allow and - for Disallow.
+	 *
+	 * @param file file to read. If it does not exist, the cache is left empty.
+	 *
+	 * @throws IOException if the file exists but cannot be read.
+	 */
+	public void load(File file) throws IOException{
+		entries.clear();
+		if (!file.exists()){
+			return;
+		}
+		BufferedReader reader=new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+		try {
+			String line;
+			while ((line=reader.readLine())!=null){
+				String [] columns=line.split("\t");
+				if (columns.length<3){
+					continue;
+				}
+				try {
+					List<RobotsRules.Rule> rules=new ArrayList<RobotsRules.Rule>();
+					for (int i=3; i<columns.length; i++){
+						if (columns[i].length()>1){
+							rules.add(new RobotsRules.Rule(columns[i].charAt(0)=='+', columns[i].substring(1)));
+						}
+					}
+					RobotsRules loaded=new RobotsRules(rules, Long.parseLong(columns[2]), Long.parseLong(columns[1]));
+					if (!isExpired(loaded)){
+						entries.put(columns[0], done(loaded));
+					}
+				}
+				catch (NumberFormatException e){
+					System.out.println("Malformed line in "+file.getName()+": "+line);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Function to save the rules known, and not expired, to a file, replacing it. Rules of hosts whose robots.txt 
+	 * could not be reached are left out, so they are fetched again.
+	 *
+	 * @param file file to write
+	 *
+	 * @throws IOException if the file cannot be written.
+	 */
+	public void save(File file) throws IOException{
+		PrintWriter writer=new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), CHARSET));
+		try {
+			for (Map.Entry<String,FutureTask<RobotsRules>> entry: entries.entrySet()){
+				if (!entry.getValue().isDone()){
+					continue;
+				}
+				RobotsRules rules=result(entry.getValue(), entry.getKey());
+				if (isExpired(rules) || rules.isUnreachable()){
+					continue;
+				}
+				StringBuilder line=new StringBuilder();
+				line.append(entry.getKey()).append('\t').append(rules.getFetchedAt()).append('\t').append(rules.getCrawlDelayMillis());
+				for (RobotsRules.Rule rule: rules.getRules()){
+					line.append('\t').append(rule.isAllow() ? '+' : '-').append(rule.getPattern());
+				}
+				writer.println(line.toString());
+			}
+		}
+		finally {
+			writer.close();
+		}
+		if (writer.checkError()){
+			throw new IOException("Could not write "+file.getPath());
+		}
+	}
+
+	/**
+	 * Helper function to create the task fetching the robots.txt of a host. The task never fails: if the file does not exist,
+	 * its result allows everything, and if it cannot be reached, its result disallows everything.
+	 *
+	 * @param origin scheme, host and port of the host
+	 * @param fetcher fetcher to use
+	 *
+	 * @return the task, not yet run.
+	 */
+	private FutureTask<RobotsRules> newTask(final String origin, final PageFetcher fetcher){
+		return new FutureTask<RobotsRules>(new Callable<RobotsRules>(){
+			public RobotsRules call(){
+				String robotsLink=origin+"/robots.txt";
+				int status;
+				try {
+					FetchResult robots=fetcher.fetch(robotsLink, true);
+					status=robots.getStatusCode();
+					if (status>=200 && status<300){
+						return RobotsRules.parse(new String(robots.getBody(), CHARSET), userAgent, System.currentTimeMillis());
+					}
+				}
+				catch (Exception e){
+					status=-1; //No answer.
+				}
+				if (status>=400 && status<500){
+					if (verbose){
+						System.out.println("No robots.txt at "+origin+" (status "+status+"), will proceed without it.");
+					}
+					return RobotsRules.allowAll(System.currentTimeMillis());
+				}
+				if (verbose){
+					System.out.println("Could not reach robots.txt at "+origin+(status<0 ? "" : " (status "+status+")")+
+							", its host will not be crawled until it is fetched again.");
+				}
+				return RobotsRules.disallowAll(System.currentTimeMillis());
+			}
+		});
+	}
+
+	/**
+	 * Helper function to create a task that is already done, for rules known beforehand.
+	 *
+	 * @param rules rules
+	 *
+	 * @return the task.
+	 */
+	private FutureTask<RobotsRules> done(final RobotsRules rules){
+		FutureTask<RobotsRules> task=new FutureTask<RobotsRules>(new Callable<RobotsRules>(){
+			public RobotsRules call(){
+				return rules;
+			}
+		});
+		task.run();
+		return task;
+	}
+
+	/**
+	 * Helper function to wait for the rules of a task. If the thread is interrupted while waiting, the rules allow everything,
+	 * are not cached, and the thread stays interrupted.
+	 *
+	 * @param task task fetching the rules
+	 * @param origin origin of the host, for messages
+	 *
+	 * @return the rules.
+	 */
+	private RobotsRules result(FutureTask<RobotsRules> task, String origin){
+		try {
+			return task.get();
+		}
+		catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			return RobotsRules.allowAll(0);
+		}
+		catch (ExecutionException e){ //Not expected, since the tasks catch their exceptions.
+			e.printStackTrace();
+			System.out.println("Failed to load the excluded list: robots.txt from "+origin+", will proceed without it.");
+			return RobotsRules.allowAll(0);
+		}
+	}
+
+	/**
+	 * Helper function to check if rules have expired.
+	 *
+	 * @param rules rules
+	 *
+	 * @return true if they were fetched longer ago than their time to live, shorter if the file could not be reached.
+	 */
+	private boolean isExpired(RobotsRules rules){
+		return System.currentTimeMillis()-rules.getFetchedAt()>(rules.isUnreachable() ? retryMillis : ttlMillis);
+	}
+}
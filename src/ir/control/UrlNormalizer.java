@@ -0,0 +1,802 @@
+package ir.control;
+
+import ir.model.CrawlUrl;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ *
+ * UrlNormalizer class, turning the links found in pages into the canonical form of the URLs used by the crawler.
+ * <p>
+ * The canonical form of a URL has:
+ * <ul>
+ * <li>its scheme and host in lowercase, without user information, and its port only if it is not the default one.</li>
+ * <li>its path resolved against the base URL, with its . and .. segments removed, \ taken as /, spaces encoded as %20 and
+ * the hexadecimal digits of escapes in uppercase.</li>
+ * <li>its query, if any, without empty parameters, and with its parameters sorted by name (parameters of the same name keep
+ * their order), encoded as the path.</li>
+ * <li>no fragment, nor trailing / (unless the path is only / and there is a query).</li>
+ * </ul>
+ * Links that do not point to another page (empty ones, only a fragment, or with a scheme that has no host, such as javascript:
+ * or mailto:) have no canonical form.
+ * <p>
+ * The link is scanned once, and the canonical form is written to a single buffer. Only the parameters of a query are
+ * held apart, to be sorted.
+ * <p>
+ * Site-specific rules can then change the canonical form of the URLs of a host, and also give URLs that show the same
+ * page a common key, for detecting repeated pages (see Rule). Rules for all hosts are applied first, then the rules
+ * of the host, in the order they were added. The rules of a host are found in a hash table, by the host in the buffer, 
+ * so rules can be added for many hosts, such as the rules learned by DustRuleLearner.
+ * <p>
+ * Normalizing is thread-safe. Rules can be added at any time, and are seen by the URLs normalized afterwards.
+ *
+ */
+public class UrlNormalizer {
+
+	/**
+	 * A site-specific rule. Both functions work in place, on the canonical form of a URL, and do nothing by default.
+	 */
+	public static abstract class Rule {
+
+		/**
+		 * Function to change the canonical form of a URL.
+		 *
+		 * @param url canonical form, maybe with a trailing /, which is removed afterwards
+		 * @param pathStart position of the path, right after the host and port
+		 */
+		public void canonicalize(StringBuilder url, int pathStart){
+		}
+
+		/**
+		 * Function to turn the canonical form of a URL into its key: URLs of the same page should have the same key.
+		 *
+		 * @param url canonical form of the url, to be turned into its key
+		 * @param pathStart position of the path, right after the host and port
+		 */
+		public void key(StringBuilder url, int pathStart){
+		}
+	}
+
+	/**Rules for all hosts, and hosts with rules. Replaced as a whole when a rule is added.*/
+	private static final class Registry {
+		final Rule [] globalRules;
+		/**Hosts with rules, in an open-addressing table with linear probing (null marks an empty slot). Its length is a power of 2.*/
+		final String [] hosts;
+		/**Rules of each host, in the slot of the host.*/
+		final Rule [][] hostRules;
+		/**Number of hosts with rules.*/
+		final int count;
+
+		Registry(Rule [] globalRules, String [] hosts, Rule [][] hostRules, int count){
+			this.globalRules=globalRules;
+			this.hosts=hosts;
+			this.hostRules=hostRules;
+			this.count=count;
+		}
+
+		/**
+		 * @return the rules of the host between start and end, or null if the host has none.
+		 */
+		Rule [] find(CharSequence text, int start, int end){
+			int mask=hosts.length-1;
+			int slot=spread(hash(text, start, end))&mask;
+			String host;
+			while ((host=hosts[slot])!=null){
+				if (regionEquals(host, text, start, end)){
+					return hostRules[slot];
+				}
+				slot=(slot+1)&mask;
+			}
+			return null;
+		}
+
+		/**
+		 * Helper function to put the rules of a host in a table, which must have an empty slot for it.
+		 */
+		static void put(String [] hosts, Rule [][] hostRules, String host, Rule [] rules){
+			int mask=hosts.length-1;
+			int slot=spread(host.hashCode())&mask;
+			while (hosts[slot]!=null && !hosts[slot].equals(host)){
+				slot=(slot+1)&mask;
+			}
+			hosts[slot]=host;
+			hostRules[slot]=rules;
+		}
+	}
+
+	/**Number of slots of the first table of hosts.*/
+	private static final int INITIAL_HOST_SLOTS=16;
+
+	/**Rules in effect.*/
+	private volatile Registry registry=new Registry(new Rule[0], new String[INITIAL_HOST_SLOTS], new Rule[INITIAL_HOST_SLOTS][], 0);
+
+	/**Sorts the parameters of a query by name, keeping the order of the parameters of the same name.*/
+	private static final Comparator<String> PARAMETER_ORDER=new Comparator<String>(){
+		public int compare(String a, String b){
+			int aEnd=a.indexOf('=');
+			int bEnd=b.indexOf('=');
+			return a.substring(0, aEnd<0 ? a.length() : aEnd).compareTo(b.substring(0, bEnd<0 ? b.length() : bEnd));
+		}
+	};
+
+	/**
+	 * Function to create a normalizer with the rules for the sites known to the crawler: the session identifiers of all hosts,
+	 * stackoverflow.com and github.com.
+	 *
+	 * @return the normalizer.
+	 */
+	public static UrlNormalizer withDefaultRules(){
+		UrlNormalizer normalizer=new UrlNormalizer();
+		normalizer.addRule(null, new SessionIdRule());
+		Rule stackOverflow=new StackOverflowRule();
+		normalizer.addRule("stackoverflow.com", stackOverflow);
+		normalizer.addRule("www.stackoverflow.com", stackOverflow);
+		Rule gitHub=new GitHubRule();
+		normalizer.addRule("github.com", gitHub);
+		normalizer.addRule("www.github.com", gitHub);
+		return normalizer;
+	}
+
+	/**
+	 * Function to add a rule.
+	 *
+	 * @param host host whose URLs the rule applies to, in lowercase, or null for all hosts.
+	 * @param rule rule
+	 */
+	public synchronized void addRule(String host, Rule rule){
+		Registry current=registry;
+		if (host==null){
+			Rule [] globalRules=append(current.globalRules, rule);
+			registry=new Registry(globalRules, current.hosts, current.hostRules, current.count);
+			return;
+		}
+		host=host.toLowerCase();
+		Rule [] rules=current.find(host, 0, host.length());
+		int count=rules==null ? current.count+1 : current.count;
+		int slots=current.hosts.length;
+		while (count*2>slots){
+			slots*=2; //At most half of the slots are used, so probes stay short.
+		}
+		String [] hosts=new String[slots];
+		Rule [][] hostRules=new Rule[slots][];
+		for (int i=0; i<current.hosts.length; i++){
+			if (current.hosts[i]!=null){
+				Registry.put(hosts, hostRules, current.hosts[i], current.hostRules[i]);
+			}
+		}
+		Registry.put(hosts, hostRules, host, rules==null ? new Rule[]{rule} : append(rules, rule));
+		registry=new Registry(current.globalRules, hosts, hostRules, count);
+	}
+
+	/**
+	 * Function to normalize an absolute URL.
+	 *
+	 * @param url absolute url
+	 *
+	 * @return canonical form of the url, or null if it is not an absolute URL with a host.
+	 *
+	 * @throws MalformedURLException if the host is empty, or the port invalid.
+	 */
+	public String normalize(String url) throws MalformedURLException{
+		return normalize(url, null);
+	}
+
+	/**
+	 * Function to normalize a link, resolving it against the URL of the page where it was found.
+	 *
+	 * @param href link, absolute or relative
+	 * @param base url of the page, in canonical form, or null if the link must be absolute.
+	 *
+	 * @return canonical form of the link, or null if it does not point to another page.
+	 *
+	 * @throws MalformedURLException if the host is empty, or the port invalid.
+	 */
+	public String normalize(String href, CrawlUrl base) throws MalformedURLException{
+		if (href==null){
+			return null;
+		}
+		int start=0;
+		int end=href.indexOf('#'); //The fragment is not kept.
+		if (end<0){
+			end=href.length();
+		}
+		while (start<end && href.charAt(start)<=' '){
+			start++;
+		}
+		while (end>start && href.charAt(end-1)<=' '){
+			end--;
+		}
+		if (start==end){
+			return null; //The page itself.
+		}
+		int queryStart=href.indexOf('?', start);
+		if (queryStart<0 || queryStart>end){
+			queryStart=end;
+		}
+		int schemeEnd=schemeEnd(href, start, queryStart);
+		StringBuilder url=new StringBuilder(end-start+(base==null ? 0 : base.toString().length()));
+		int position;
+		boolean relativePath=false;
+		boolean samePath=false;
+		if (schemeEnd>0){
+			if (queryStart<schemeEnd+3 || href.charAt(schemeEnd+1)!='/' || href.charAt(schemeEnd+2)!='/'){
+				return null; //No host, as in javascript: or mailto:
+			}
+			for (int i=start; i<schemeEnd; i++){
+				url.append(Character.toLowerCase(href.charAt(i)));
+			}
+			url.append("://");
+			position=appendAuthority(url, href, schemeEnd+3, queryStart);
+		}
+		else if (base==null){
+			return null;
+		}
+		else if (queryStart-start>=2 && isSlash(href.charAt(start)) && isSlash(href.charAt(start+1))){
+			url.append(base.getScheme()).append("://");
+			position=appendAuthority(url, href, start+2, queryStart);
+		}
+		else {
+			url.append(base.getOrigin());
+			position=start;
+			samePath=start==queryStart; //Only a query, as in ?page=2
+			relativePath=!samePath && !isSlash(href.charAt(start));
+		}
+		int pathStart=url.length();
+		if (samePath || relativePath){
+			/**The link keeps the path of the base, or replaces its last segment.*/
+			String baseUrl=base.toString();
+			int basePathStart=base.getOrigin().length();
+			int basePathEnd=baseUrl.indexOf('?', basePathStart);
+			if (basePathEnd<0){
+				basePathEnd=baseUrl.length();
+			}
+			int lastSlash=samePath ? basePathEnd-1 : baseUrl.lastIndexOf('/', basePathEnd-1);
+			if (lastSlash>=basePathStart){
+				url.append(baseUrl, basePathStart, lastSlash+1);
+			}
+			else {
+				url.append('/');
+			}
+		}
+		appendEncoded(url, href, position, queryStart, true);
+		removeDotSegments(url, pathStart);
+		if (queryStart<end){
+			appendQuery(url, href, queryStart+1, end);
+		}
+		Registry current=registry;
+		for (Rule rule: current.globalRules){
+			rule.canonicalize(url, pathStart);
+		}
+		Rule [] hostRules=current.find(url, url.indexOf("://")+3, hostEnd(url, pathStart));
+		if (hostRules!=null){
+			for (Rule rule: hostRules){
+				rule.canonicalize(url, pathStart);
+			}
+		}
+		int pathEnd=pathEnd(url, pathStart);
+		boolean hasQuery=pathEnd<url.length();
+		if (pathEnd>pathStart && url.charAt(pathEnd-1)=='/' && (!hasQuery || pathEnd-1>pathStart)){
+			url.deleteCharAt(pathEnd-1);
+		}
+		else if (pathEnd==pathStart && hasQuery){
+			url.insert(pathStart, '/'); //A query needs a path.
+		}
+		return url.toString();
+	}
+
+	/**
+	 * Function to get the key of a URL, shared by the URLs that show the same page, according to the rules of its host.
+	 *
+	 * @param url url in canonical form
+	 *
+	 * @return key of the url. Without rules for its host, the url itself.
+	 */
+	public String key(CrawlUrl url){
+		String host=url.getHost();
+		Rule [] hostRules=registry.find(host, 0, host.length());
+		if (hostRules==null){
+			return url.toString();
+		}
+		StringBuilder key=new StringBuilder(url.toString());
+		int pathStart=url.getOrigin().length();
+		for (Rule rule: hostRules){
+			rule.key(key, pathStart);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Helper function to find the end of the scheme of a link.
+	 *
+	 * @return position of the : after the scheme, or -1 if the link has no scheme.
+	 */
+	private static int schemeEnd(String href, int start, int end){
+		if (!isAsciiLetter(href.charAt(start))){
+			return -1;
+		}
+		for (int i=start+1; i<end; i++){
+			char c=href.charAt(i);
+			if (c==':'){
+				return i;
+			}
+			if (!(isAsciiLetter(c) || (c>='0' && c<='9') || c=='+' || c=='-' || c=='.')){
+				return -1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Helper function to append the host and port of a link, in canonical form.
+	 *
+	 * @param url buffer, holding the scheme and ://
+	 * @param href link
+	 * @param start position of the authority in the link
+	 * @param end end of the link
+	 *
+	 * @return position of the path in the link.
+	 *
+	 * @throws MalformedURLException if the host is empty, or the port invalid.
+	 */
+	private static int appendAuthority(StringBuilder url, String href, int start, int end) throws MalformedURLException{
+		int authorityEnd=start;
+		int hostStart=start;
+		while (authorityEnd<end && !isSlash(href.charAt(authorityEnd))){
+			if (href.charAt(authorityEnd)=='@'){
+				hostStart=authorityEnd+1; //User information is not kept.
+			}
+			authorityEnd++;
+		}
+		int hostEnd=authorityEnd;
+		for (int i=authorityEnd-1; i>=hostStart; i--){
+			char c=href.charAt(i);
+			if (c==':'){
+				hostEnd=i;
+				break;
+			}
+			if (c==']' || !(c>='0' && c<='9')){
+				break;
+			}
+		}
+		if (hostEnd>hostStart && href.charAt(hostEnd-1)=='.'){
+			hostEnd--; //A fully qualified host, as example.com.
+		}
+		if (hostEnd==hostStart){
+			throw new MalformedURLException("no host: "+href);
+		}
+		int schemeLength=url.length()-3;
+		for (int i=hostStart; i<hostEnd; i++){
+			url.append(Character.toLowerCase(href.charAt(i)));
+		}
+		int portStart=hostEnd;
+		while (portStart<authorityEnd && href.charAt(portStart)!=':'){
+			portStart++; //Skips the trailing dot, if any.
+		}
+		if (portStart+1<authorityEnd){
+			int port=0;
+			for (int i=portStart+1; i<authorityEnd; i++){
+				port=port*10+(href.charAt(i)-'0');
+				if (port>65535){
+					throw new MalformedURLException("invalid port: "+href);
+				}
+			}
+			if (port!=defaultPort(url, schemeLength)){
+				url.append(':').append(port);
+			}
+		}
+		return authorityEnd;
+	}
+
+	/**
+	 * Helper function to append the path or a parameter of a link, encoding spaces and writing escapes in uppercase.
+	 *
+	 * @param path true for a path, where \ is taken as /
+	 */
+	private static void appendEncoded(StringBuilder url, String href, int start, int end, boolean path){
+		for (int i=start; i<end; i++){
+			char c=href.charAt(i);
+			if (c=='\\' && path){
+				url.append('/');
+			}
+			else if (c==' '){
+				url.append("%20");
+			}
+			else if (c=='%' && i+2<end && isHexDigit(href.charAt(i+1)) && isHexDigit(href.charAt(i+2))){
+				url.append('%').append(Character.toUpperCase(href.charAt(i+1))).append(Character.toUpperCase(href.charAt(i+2)));
+				i+=2;
+			}
+			else {
+				url.append(c);
+			}
+		}
+	}
+
+	/**
+	 * Helper function to append the query of a link, without empty parameters, and with its parameters sorted by name.
+	 *
+	 * @param url buffer
+	 * @param href link
+	 * @param start position of the query in the link, after the ?
+	 * @param end end of the query
+	 */
+	private static void appendQuery(StringBuilder url, String href, int start, int end){
+		List<String> parameters=new ArrayList<String>();
+		int parameterStart=start;
+		while (parameterStart<end){
+			int parameterEnd=href.indexOf('&', parameterStart);
+			if (parameterEnd<0 || parameterEnd>end){
+				parameterEnd=end;
+			}
+			if (parameterEnd>parameterStart){
+				StringBuilder parameter=new StringBuilder(parameterEnd-parameterStart);
+				appendEncoded(parameter, href, parameterStart, parameterEnd, false);
+				parameters.add(parameter.toString());
+			}
+			parameterStart=parameterEnd+1;
+		}
+		if (parameters.isEmpty()){
+			return;
+		}
+		Collections.sort(parameters, PARAMETER_ORDER); //The sort is stable.
+		char separator='?';
+		for (String parameter: parameters){
+			url.append(separator).append(parameter);
+			separator='&';
+		}
+	}
+
+	/**
+	 * Helper function to remove the parameters of the query of a URL with the given names, in place. If none is left,
+	 * the ? is removed too.
+	 *
+	 * @param url canonical form of the url
+	 * @param pathStart position of the path
+	 * @param names names of the parameters
+	 * @param ignoreCase true if names are compared ignoring case, false otherwise.
+	 */
+	static void removeParameters(StringBuilder url, int pathStart, String [] names, boolean ignoreCase){
+		int queryStart=pathEnd(url, pathStart);
+		int parameterStart=queryStart+1;
+		while (parameterStart<url.length()){
+			int parameterEnd=parameterStart;
+			int nameEnd=-1;
+			while (parameterEnd<url.length() && url.charAt(parameterEnd)!='&'){
+				if (nameEnd<0 && url.charAt(parameterEnd)=='='){
+					nameEnd=parameterEnd;
+				}
+				parameterEnd++;
+			}
+			if (nameEnd<0){
+				nameEnd=parameterEnd;
+			}
+			if (matchesAny(url, parameterStart, nameEnd, names, ignoreCase)){
+				/**The parameter is removed with the & before it, or after it if it is the first one.*/
+				if (parameterStart>queryStart+1){
+					url.delete(parameterStart-1, parameterEnd);
+					parameterStart--;
+				}
+				else {
+					url.delete(parameterStart, Math.min(parameterEnd+1, url.length()));
+				}
+			}
+			else {
+				parameterStart=parameterEnd+1;
+			}
+		}
+		if (queryStart==url.length()-1){
+			url.setLength(queryStart);
+		}
+	}
+
+	/**
+	 * Helper function to remove the . and .. segments of a path, in place. A .. segment removes the segment before it, if any.
+	 *
+	 * @param url buffer
+	 * @param pathStart position of the path, which is empty or starts with /
+	 */
+	static void removeDotSegments(StringBuilder url, int pathStart){
+		int length=url.length();
+		int read=pathStart;
+		int write=pathStart;
+		while (read<length){
+			int segmentStart=read+1; //After the /
+			int segmentEnd=segmentStart;
+			while (segmentEnd<length && url.charAt(segmentEnd)!='/'){
+				segmentEnd++;
+			}
+			int segmentLength=segmentEnd-segmentStart;
+			boolean dot=segmentLength==1 && url.charAt(segmentStart)=='.';
+			boolean dotDot=segmentLength==2 && url.charAt(segmentStart)=='.' && url.charAt(segmentStart+1)=='.';
+			if (dot || dotDot){
+				if (dotDot){
+					while (write>pathStart && url.charAt(--write)!='/'){
+						//Goes back to the / before the last segment written.
+					}
+				}
+				if (segmentEnd==length){
+					url.setCharAt(write++, '/'); //The path ends with a directory.
+				}
+			}
+			else {
+				for (int i=read; i<segmentEnd; i++){
+					url.setCharAt(write++, url.charAt(i));
+				}
+			}
+			read=segmentEnd;
+		}
+		url.setLength(write);
+	}
+
+	/**
+	 * Helper function to find the end of the host of a URL, before its port if any.
+	 */
+	private static int hostEnd(StringBuilder url, int pathStart){
+		int hostStart=url.indexOf("://")+3;
+		for (int i=hostStart; i<pathStart; i++){
+			if (url.charAt(i)==':'){
+				return i;
+			}
+		}
+		return pathStart;
+	}
+
+	/**
+	 * Helper function to find the end of the path of a URL.
+	 *
+	 * @return position of the ? of the query, or the length of the url if it has no query.
+	 */
+	static int pathEnd(CharSequence url, int pathStart){
+		for (int i=pathStart; i<url.length(); i++){
+			if (url.charAt(i)=='?'){
+				return i;
+			}
+		}
+		return url.length();
+	}
+
+	/**
+	 * Helper function to hash a part of a text, as String.hashCode does for a whole string.
+	 */
+	private static int hash(CharSequence text, int start, int end){
+		int h=0;
+		for (int i=start; i<end; i++){
+			h=31*h+text.charAt(i);
+		}
+		return h;
+	}
+
+	private static int spread(int h){
+		return h^(h>>>16);
+	}
+
+	private static boolean regionEquals(String value, CharSequence text, int start, int end){
+		if (value.length()!=end-start){
+			return false;
+		}
+		for (int i=0; i<value.length(); i++){
+			if (value.charAt(i)!=text.charAt(start+i)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Helper function to check if a part of a text equals any of the given strings.
+	 */
+	static boolean matchesAny(CharSequence text, int start, int end, String [] values, boolean ignoreCase){
+		for (String value: values){
+			if (value.length()!=end-start){
+				continue;
+			}
+			boolean same=true;
+			for (int i=0; i<value.length() && same; i++){
+				char c=text.charAt(start+i);
+				same=(ignoreCase ? Character.toLowerCase(c) : c)==value.charAt(i);
+			}
+			if (same){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Helper function to get the default port of the scheme at the start of a buffer.
+	 *
+	 * @return 80 for http, 443 for https, -1 otherwise.
+	 */
+	private static int defaultPort(StringBuilder url, int schemeLength){
+		if (schemeLength==4 && url.indexOf("http")==0){
+			return 80;
+		}
+		if (schemeLength==5 && url.indexOf("https")==0){
+			return 443;
+		}
+		return -1;
+	}
+
+	private static Rule [] append(Rule [] rules, Rule rule){
+		Rule [] results=new Rule[rules.length+1];
+		System.arraycopy(rules, 0, results, 0, rules.length);
+		results[rules.length]=rule;
+		return results;
+	}
+
+	private static boolean isSlash(char c){
+		return c=='/' || c=='\\';
+	}
+
+	private static boolean isAsciiLetter(char c){
+		return (c>='a' && c<='z') || (c>='A' && c<='Z');
+	}
+
+	private static boolean isHexDigit(char c){
+		return (c>='0' && c<='9') || (c>='a' && c<='f') || (c>='A' && c<='F');
+	}
+
+	/**
+	 * Helper function to find the end of the path segment starting at a position.
+	 *
+	 * @return position of the next / or ?, or the length of the url.
+	 */
+	private static int segmentEnd(StringBuilder url, int start){
+		int end=start;
+		while (end<url.length() && url.charAt(end)!='/' && url.charAt(end)!='?'){
+			end++;
+		}
+		return end;
+	}
+
+	/**
+	 * Helper function to check if another path segment follows the one ending at a position.
+	 */
+	private static boolean hasNextSegment(StringBuilder url, int segmentEnd){
+		return segmentEnd<url.length() && url.charAt(segmentEnd)=='/';
+	}
+
+	/**
+	 * Helper function to check if a path segment is made of digits only.
+	 */
+	private static boolean isNumber(StringBuilder url, int start, int end){
+		if (end<=start){
+			return false;
+		}
+		for (int i=start; i<end; i++){
+			if (url.charAt(i)<'0' || url.charAt(i)>'9'){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Helper function to check if a path segment equals a string.
+	 */
+	private static boolean segmentEquals(StringBuilder url, int start, int end, String segment){
+		if (end-start!=segment.length()){
+			return false;
+		}
+		for (int i=0; i<segment.length(); i++){
+			if (url.charAt(start+i)!=segment.charAt(i)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Rule for all hosts: session identifiers are removed, both as path parameters, such as /page;jsessionid=1234, and as
+	 * parameters of the query, such as ?PHPSESSID=1234.
+	 */
+	static class SessionIdRule extends Rule {
+		private static final String [] NAMES={"jsessionid", "phpsessid", "aspsessionid", "sessionid", "sid"};
+
+		@Override
+		public void canonicalize(StringBuilder url, int pathStart){
+			int i=pathStart;
+			int pathEnd=pathEnd(url, pathStart);
+			while (i<pathEnd){
+				if (url.charAt(i)!=';'){
+					i++;
+					continue;
+				}
+				int nameEnd=i+1;
+				while (nameEnd<url.length() && url.charAt(nameEnd)!='=' && !isParameterEnd(url.charAt(nameEnd))){
+					nameEnd++;
+				}
+				int paramEnd=nameEnd;
+				while (paramEnd<url.length() && !isParameterEnd(url.charAt(paramEnd))){
+					paramEnd++;
+				}
+				if (nameEnd<url.length() && url.charAt(nameEnd)=='=' && matchesAny(url, i+1, nameEnd, NAMES, true)){
+					url.delete(i, paramEnd);
+					pathEnd-=paramEnd-i;
+				}
+				else {
+					i=paramEnd;
+				}
+			}
+			removeParameters(url, pathStart, NAMES, true);
+		}
+
+		private static boolean isParameterEnd(char c){
+			return c=='/' || c==';' || c=='?';
+		}
+	}
+
+	/**
+	 * Rule for stackoverflow.com: the URLs of a question (/questions/NUMBER/title) are kept up to the title, dropping any
+	 * answer after it. They all share the key /questions/NUMBER, whatever the title.
+	 */
+	static class StackOverflowRule extends Rule {
+		@Override
+		public void canonicalize(StringBuilder url, int pathStart){
+			int idEnd=questionIdEnd(url, pathStart);
+			if (idEnd>=0 && hasNextSegment(url, idEnd)){
+				int titleEnd=segmentEnd(url, idEnd+1);
+				if (titleEnd>idEnd+1){
+					url.setLength(titleEnd); //The query, if any, is dropped too.
+				}
+			}
+		}
+
+		@Override
+		public void key(StringBuilder url, int pathStart){
+			int idEnd=questionIdEnd(url, pathStart);
+			if (idEnd>=0){
+				url.setLength(idEnd);
+			}
+		}
+
+		/**
+		 * @return end of the question number, if the path is /questions/NUMBER..., or -1 otherwise.
+		 */
+		private static int questionIdEnd(StringBuilder url, int pathStart){
+			int segmentStart=pathStart+1;
+			int segmentEnd=segmentEnd(url, segmentStart);
+			if (!segmentEquals(url, segmentStart, segmentEnd, "questions") || !hasNextSegment(url, segmentEnd)){
+				return -1;
+			}
+			int idEnd=segmentEnd(url, segmentEnd+1);
+			return isNumber(url, segmentEnd+1, idEnd) ? idEnd : -1;
+		}
+	}
+
+	/**
+	 * Rule for github.com: owners and repositories are not case-sensitive, so they are lowercased in the key, and the .git
+	 * of a repository is dropped. A file and a folder are shown at /OWNER/REPO/blob/REF/PATH and /OWNER/REPO/tree/REF/PATH,
+	 * and GitHub redirects one to the other, so both share a key.
+	 */
+	static class GitHubRule extends Rule {
+		@Override
+		public void canonicalize(StringBuilder url, int pathStart){
+			int ownerEnd=segmentEnd(url, pathStart+1);
+			if (hasNextSegment(url, ownerEnd)){
+				int repoEnd=segmentEnd(url, ownerEnd+1);
+				if (!hasNextSegment(url, repoEnd) && repoEnd-ownerEnd>5 && url.indexOf(".git", repoEnd-4)==repoEnd-4){
+					url.delete(repoEnd-4, repoEnd);
+				}
+			}
+		}
+
+		@Override
+		public void key(StringBuilder url, int pathStart){
+			int ownerEnd=segmentEnd(url, pathStart+1);
+			int repoEnd=hasNextSegment(url, ownerEnd) ? segmentEnd(url, ownerEnd+1) : ownerEnd;
+			for (int i=pathStart+1; i<repoEnd; i++){
+				url.setCharAt(i, Character.toLowerCase(url.charAt(i)));
+			}
+			if (hasNextSegment(url, repoEnd)){
+				int viewEnd=segmentEnd(url, repoEnd+1);
+				if (segmentEquals(url, repoEnd+1, viewEnd, "blob")){
+					url.replace(repoEnd+1, viewEnd, "tree");
+				}
+			}
+		}
+	}
+}
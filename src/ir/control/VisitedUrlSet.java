@@ -0,0 +1,417 @@
+package ir.control;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *
+ * VisitedUrlSet class, a concurrent set of visited URLs, next to the set of their hosts.
+ * <p>
+ * URLs are not stored as objects. Each one is reduced to a 64-bit fingerprint of its canonical form, which is stored in
+ * open-addressing hash tables of primitive longs. This keeps the memory per URL in the order of 16 bytes. The tables
+ * are striped: each fingerprint belongs to one of several tables, with its own lock, so threads checking different
+ * URLs rarely wait for each other.
+ * <p>
+ * Optionally, a Bloom filter is checked before the tables. It is updated and read without locks, and answers most
+ * checks for URLs that were not visited (the common case for newly found outlinks) without touching the tables.
+ * <p>
+ * For very large crawls, the fingerprints can be kept off the heap instead, in a memory-mapped file (see open and 
+ * MappedFingerprintTable, striped in the same way). The file then holds the set between crawls, and is ready as soon as 
+ * it is opened. The Bloom filter is not used in this case, as it would have to be rebuilt from the whole file, and the heap 
+ * tables are only allocated once a URL is added to them. If the file cannot grow, the URLs that do not fit are kept in the 
+ * heap tables instead, and the file is not marked as matching anything, so the next crawl rebuilds it.
+ * <p>
+ * Two different URLs could share a fingerprint. With 64 bits this is very unlikely (around one in a million for a
+ * crawl of several million URLs), and its only effect is that one of them is not crawled.
+ *
+ */
+public class VisitedUrlSet {
+
+	/**Number of tables. It must be a power of 2.*/
+	private static final int NUM_STRIPES=64;
+
+	/**Initial capacity of each table. It must be a power of 2.*/
+	private static final int INITIAL_STRIPE_CAPACITY=256;
+
+	/**Number of bits set in the Bloom filter per URL.*/
+	private static final int BLOOM_HASHES=4;
+
+	/**Tables of fingerprints. 0 marks an empty slot. A table is null until its first fingerprint.*/
+	private long [][] stripes=new long[NUM_STRIPES][];
+
+	/**Number of fingerprints in each table.*/
+	private int [] stripeSizes=new int[NUM_STRIPES];
+
+	/**Locks of the tables.*/
+	private Object [] stripe_locks=new Object[NUM_STRIPES];
+
+	/**Bits of the Bloom filter, or null if it is not used.*/
+	private AtomicLongArray bloom=null;
+
+	/**Number of bits of the Bloom filter, minus one. The number of bits is a power of 2.*/
+	private long bloomMask;
+
+	/**Table of fingerprints in a mapped file, or null if the fingerprints are kept in the heap tables.*/
+	private volatile MappedFingerprintTable mapped=null;
+
+	/**True if some fingerprints could not be added to the mapped file, and are kept in the heap tables instead.*/
+	private volatile boolean heapFallback=false;
+
+	/**Set of visited hosts, including their protocol.*/
+	private ConcurrentHashMap<String,Boolean> hosts= new ConcurrentHashMap<String,Boolean>();
+
+	/**
+	 * Parametric constructor.
+	 *
+	 * @param bloomFilterBits number of bits of the Bloom filter, rounded up to a power of 2. 0 for no Bloom filter.
+	 * For few false positives it should be at least 10 times the expected number of URLs.
+	 */
+	public VisitedUrlSet(long bloomFilterBits){
+		for (int i=0; i<NUM_STRIPES; i++){
+			stripe_locks[i]=new Object();
+		}
+		if (bloomFilterBits>0){
+			long bits=Long.highestOneBit(Math.max(64, bloomFilterBits-1))<<1;
+			bloom=new AtomicLongArray((int)Math.min(Integer.MAX_VALUE, bits/64));
+			bloomMask=(long)bloom.length()*64-1;
+		}
+	}
+
+	/**
+	 * Function to add a URL to the set.
+	 *
+	 * @param key canonical form of the url
+	 * @param host protocol and hostname of the url
+	 *
+	 * @return true if the URL was added, false if it was already in the set.
+	 */
+	public boolean add(String key, String host){
+		hosts.putIfAbsent(host, Boolean.TRUE);
+		long fingerprint=fingerprint(key);
+		MappedFingerprintTable mappedTable=mapped;
+		if (mappedTable!=null){
+			try {
+				return mappedTable.add(fingerprint);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("The visited set file could not grow. The URL is kept in memory instead: "+key);
+				if (mappedTable.contains(fingerprint)){
+					return false;
+				}
+				heapFallback=true;
+			}
+		}
+		int stripe=(int)(fingerprint>>>58)&(NUM_STRIPES-1);
+		boolean added;
+		synchronized (stripe_locks[stripe]){
+			added=insert(stripe, fingerprint);
+		}
+		if (added && bloom!=null){
+			for (int i=0; i<BLOOM_HASHES; i++){
+				long bit=bloomBit(fingerprint, i);
+				int word=(int)(bit>>>6);
+				long mask=1L<<bit;
+				long current;
+				do {
+					current=bloom.get(word);
+				} while ((current&mask)==0 && !bloom.compareAndSet(word, current, current|mask));
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Function to check if a URL is in the set.
+	 *
+	 * @param key canonical form of the url
+	 *
+	 * @return true if the URL is in the set, false otherwise.
+	 */
+	public boolean contains(String key){
+		long fingerprint=fingerprint(key);
+		MappedFingerprintTable mappedTable=mapped;
+		if (mappedTable!=null){
+			if (mappedTable.contains(fingerprint)){
+				return true;
+			}
+			if (!heapFallback){
+				return false;
+			}
+		}
+		if (bloom!=null){
+			for (int i=0; i<BLOOM_HASHES; i++){
+				long bit=bloomBit(fingerprint, i);
+				if ((bloom.get((int)(bit>>>6))&(1L<<bit))==0){
+					return false; //Definitely not visited.
+				}
+			}
+		}
+		int stripe=(int)(fingerprint>>>58)&(NUM_STRIPES-1);
+		synchronized (stripe_locks[stripe]){
+			long [] table=stripes[stripe];
+			if (table==null){
+				return false;
+			}
+			int mask=table.length-1;
+			for (int slot=(int)fingerprint&mask; table[slot]!=0; slot=(slot+1)&mask){
+				if (table[slot]==fingerprint){
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Function to check if a host is in the set.
+	 *
+	 * @param host protocol and hostname
+	 *
+	 * @return true if a URL of the host was added, false otherwise.
+	 */
+	public boolean containsHost(String host){
+		return hosts.containsKey(host);
+	}
+
+	/**
+	 * Function to remove a URL from the set. Its host stays in the set.
+	 *
+	 * @param key canonical form of the url
+	 *
+	 * @return true if the URL was removed, false if it was not in the set.
+	 */
+	public boolean remove(String key){
+		long fingerprint=fingerprint(key);
+		MappedFingerprintTable mappedTable=mapped;
+		if (mappedTable!=null){
+			if (mappedTable.remove(fingerprint)){
+				return true;
+			}
+			if (!heapFallback){
+				return false;
+			}
+		}
+		/**A Bloom filter cannot forget the URL, so it will only let it through to the tables.*/
+		int stripe=(int)(fingerprint>>>58)&(NUM_STRIPES-1);
+		synchronized (stripe_locks[stripe]){
+			long [] table=stripes[stripe];
+			if (table==null){
+				return false;
+			}
+			int mask=table.length-1;
+			int hole=-1;
+			for (int slot=(int)fingerprint&mask; table[slot]!=0; slot=(slot+1)&mask){
+				if (table[slot]==fingerprint){
+					hole=slot;
+					break;
+				}
+			}
+			if (hole<0){
+				return false;
+			}
+			/**The fingerprints after it are shifted back, unless that would move them before their home slot.*/
+			for (int slot=(hole+1)&mask; table[slot]!=0; slot=(slot+1)&mask){
+				int home=(int)table[slot]&mask;
+				boolean between=hole<=slot ? (home>hole && home<=slot) : (home>hole || home<=slot);
+				if (!between){
+					table[hole]=table[slot];
+					hole=slot;
+				}
+			}
+			table[hole]=0;
+			stripeSizes[stripe]--;
+		}
+		return true;
+	}
+
+	/**
+	 * Function to keep the fingerprints in a memory-mapped file from now on, instead of the heap. If the file holds a set, 
+	 * it is used as it is. Otherwise the set is empty. The URLs added before are forgotten, and so are the hosts.
+	 *
+	 * @param file location of the set
+	 *
+	 * @throws IOException if the file cannot be mapped. The set is then left as it was.
+	 */
+	public void open(File file) throws IOException{
+		MappedFingerprintTable mappedTable=MappedFingerprintTable.open(file);
+		close();
+		clear();
+		mapped=mappedTable;
+	}
+
+	/**
+	 * Function to stop using the memory-mapped file, if any, writing it to disk first. The set is then empty, in the heap.
+	 */
+	public void close(){
+		MappedFingerprintTable mappedTable=mapped;
+		if (mappedTable!=null){
+			mapped=null;
+			mappedTable.close();
+			if (heapFallback){
+				clearStripes();
+			}
+			hosts.clear();
+		}
+	}
+
+	/**
+	 * Function to write the memory-mapped file to disk, with a mark telling what it matches, such as the length of 
+	 * the visited file. Nothing is done if the set is in the heap. If some URLs were kept in the heap, as the file could not 
+	 * grow, the file is written with the mark -1 instead, as it does not hold them.
+	 *
+	 * @param mark mark to save
+	 */
+	public void sync(long mark){
+		MappedFingerprintTable mappedTable=mapped;
+		if (mappedTable!=null){
+			mappedTable.sync(heapFallback ? -1 : mark);
+		}
+	}
+
+	/**
+	 * Function to get the mark saved in the memory-mapped file.
+	 *
+	 * @return mark given to the last call to sync, 0 for a new file, or -1 if the set changed since, or is in the heap.
+	 */
+	public long getMark(){
+		MappedFingerprintTable mappedTable=mapped;
+		return mappedTable==null ? -1 : mappedTable.getMark();
+	}
+
+	/**
+	 * Function to get the number of URLs in the set.
+	 *
+	 * @return number of urls.
+	 */
+	public long size(){
+		MappedFingerprintTable mappedTable=mapped;
+		long size=0;
+		if (mappedTable!=null){
+			size=mappedTable.size();
+			if (!heapFallback){
+				return size;
+			}
+		}
+		for (int i=0; i<NUM_STRIPES; i++){
+			synchronized (stripe_locks[i]){
+				size+=stripeSizes[i];
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Function to remove all URLs and hosts. A memory-mapped file, if used, is emptied.
+	 */
+	public void clear(){
+		MappedFingerprintTable mappedTable=mapped;
+		if (mappedTable!=null){
+			try {
+				mappedTable.clear();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("The visited set file could not be emptied. The visited set is kept in memory.");
+				close();
+			}
+		}
+		clearStripes();
+		hosts.clear();
+	}
+
+	/**
+	 * Helper function to empty the heap tables and the Bloom filter.
+	 */
+	private void clearStripes(){
+		for (int i=0; i<NUM_STRIPES; i++){
+			synchronized (stripe_locks[i]){
+				stripes[i]=null;
+				stripeSizes[i]=0;
+			}
+		}
+		if (bloom!=null){
+			for (int i=0; i<bloom.length(); i++){
+				bloom.set(i, 0);
+			}
+		}
+		heapFallback=false;
+	}
+
+	/**
+	 * Helper function to insert a fingerprint in a table, creating it if needed, and growing it if it is half full. 
+	 * The lock of the table must be held.
+	 *
+	 * @param stripe position of the table
+	 * @param fingerprint fingerprint to insert
+	 *
+	 * @return true if inserted, false if it was already there.
+	 */
+	private boolean insert(int stripe, long fingerprint){
+		long [] table=stripes[stripe];
+		if (table==null){
+			table=new long[INITIAL_STRIPE_CAPACITY];
+			stripes[stripe]=table;
+		}
+		int mask=table.length-1;
+		int slot=(int)fingerprint&mask;
+		while (table[slot]!=0){
+			if (table[slot]==fingerprint){
+				return false;
+			}
+			slot=(slot+1)&mask;
+		}
+		table[slot]=fingerprint;
+		stripeSizes[stripe]++;
+		if (stripeSizes[stripe]*2>table.length){
+			long [] grown=new long[table.length*2];
+			int grownMask=grown.length-1;
+			for (long value: table){
+				if (value!=0){
+					int s=(int)value&grownMask;
+					while (grown[s]!=0){
+						s=(s+1)&grownMask;
+					}
+					grown[s]=value;
+				}
+			}
+			stripes[stripe]=grown;
+		}
+		return true;
+	}
+
+	/**
+	 * Helper function to get the position of one of the bits of a fingerprint in the Bloom filter.
+	 *
+	 * @param fingerprint fingerprint of the url
+	 * @param i number of the bit, from 0 to BLOOM_HASHES-1
+	 *
+	 * @return position of the bit.
+	 */
+	private long bloomBit(long fingerprint, int i){
+		long h1=fingerprint;
+		long h2=(fingerprint>>>32)|(fingerprint<<32);
+		return (h1+i*h2)&bloomMask;
+	}
+
+	/**
+	 * Function to compute the 64-bit fingerprint of a string (FNV-1a, followed by a final mix of the bits). Never 0.
+	 *
+	 * @param key string
+	 *
+	 * @return fingerprint of the string.
+	 */
+	static long fingerprint(String key){
+		long h=0xcbf29ce484222325L;
+		for (int i=0; i<key.length(); i++){
+			h^=key.charAt(i);
+			h*=0x100000001b3L;
+		}
+		h^=h>>>33;
+		h*=0xff51afd7ed558ccdL;
+		h^=h>>>33;
+		h*=0xc4ceb9fe1a85ec53L;
+		h^=h>>>33;
+		return h==0 ? 1 : h;
+	}
+}
@@ -1,43 +1,62 @@
 package ir.control;
 
+import ir.model.CrawlUrl;
+import ir.model.FetchResult;
 import ir.model.ItemUrl;
+import ir.model.RobotsRules;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.TextField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.index.MultiFields;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.Version;
 import org.apache.lucene.document.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
-import org.jsoup.Connection.Response;
 import org.jsoup.Jsoup;
 
 
@@ -56,43 +75,46 @@ import net.sf.classifier4J.summariser.*;
  * Each one crawls a specific set of hosts (which are assigned by the main thread, running the innerCrawl function), 
  * with a wait time between requests to the same host.
  * <p>
- * The WebCrawler object acts as manager, loading/creating the index and starting/restarting the threads to run 
+ * The WebCrawler object acts as manager, loading/creating the index and starting the threads (once each, on an executor) to run 
  * over the seeds and newly found URLs. Additionally it oversees the assignment of hostnames to threads, and the
  * checking of URLs before visiting.
  * <p>
  * The processing overall begins with the Main Thread loading the lists of visited and excluded pages. Then, it validates
  * that the seeds are correct and visits the first one, indexing it. This visit is distinguished from others, because if 
- * an index must be created, it is done at this point. After visiting the first page, the main thread extracts from it
- * a set of normalized tentativeUrls. Then it further checks them and adds them to a queue of sorts, called nextUrls.
+ * an index must be created, it is done at this point. After visiting the first page, its outlinks are normalized, checked 
+ * and added to a queue of sorts, called the frontier (see CrawlFrontier).
  * <p>
- * Then it starts threads, assigning each one to a hostname from nextUrls, so each helper thread can index a page and 
- * in turn extract a set of normalized tentativeUrls from each page. 
+ * Then it starts threads, assigning each one to a hostname from the frontier, so each helper thread can index a page and 
+ * in turn add its checked outlinks to the frontier. The frontier keeps a single entry per normalized URL, with its lowest depth.
+ * For deep crawls, the frontier only keeps a bounded number of pending URLs in memory, and spills the rest to disk.
  * <p>
- * Then these are then checked by the main thread (WebCrawler), and inserted in nextUrls. 
- * <p>
- * This queue can then be scanned by each helper thread, in search of URLs from their assigned hostnames. 
+ * Each helper thread then takes URLs from the frontier, only for their assigned hostnames: the frontier keeps a separate queue for each host.
+ * While none of its hostnames has pending URLs, a helper thread waits on the frontier, which wakes it up as soon as there is work for it.
  *<p>
- * More specifically the helper threads themselves request a connection to a host, in order to get a page from each URL (using Jsoup)
- * and/or to get a robots.txt file for complying with exclusion requests from servers. 
- * They index the pages found (using a Lucene Index), and according to depth restrictions, they crawl outlinks, 
- * adding them to the list of tentativeUrls. 
- * They also mark each page as visited. To do this they remove it from the queue of nextUrls and insert it into
- * a list called visitedUrls.
+ * More specifically the helper threads themselves request a connection to a host, in order to get a page from each URL (using a PageFetcher,
+ * which reuses connections to the same host) and/or to get a robots.txt file for complying with exclusion requests from servers. 
+ * They hand the pages fetched over to a pipeline (see CrawlPipeline), whose stages parse the pages, extract their information and 
+ * index them (using a Lucene Index). According to depth restrictions, the extract stage also crawls outlinks, adding them to the frontier. 
+ * Each stage has its own threads and a bounded queue, so a slow stage makes the helper threads wait, instead of slowing down the others.
+ * The helper threads also mark each page as visited. To do this they remove it from the frontier and insert it into
+ * the visited set (see VisitedUrlSet), which keeps a fingerprint per URL, and append it to the visited file.
  * <p>
- * The processing stops in the main thread when all threads are finished and the lists for tentativeUrls and nextUrls are empty. 
- * Then the thread joins the helper threads.
+ * The processing stops when the frontier is empty and no URL or page is still being processed, as counted by the frontier. 
+ * Then the frontier wakes up all threads: the helper threads finish, and the main thread waits for them.
  * <p>
  * In general, before attempting to access a URLs from a list, we carry out the following 5 steps:
  * 				1) check if they are repeated in the current list or when joined with another list, 
  * 				2) check if they are already visited,
- * 				3) normalize them: in our code, this means to remove text preceeded by ?,#, javascript:, " ", and checking
- * 				   for malformed exceptions for urls.
+ * 				3) normalize them (see UrlNormalizer): in our code, this means to resolve them against their page, lowercase
+ * 				   their scheme and host, sort the parameters of their query, remove their fragment, dot segments and session 
+ * 				   identifiers, and apply the rules of their site, checking for malformed exceptions for urls. The rules of a 
+ * 				   site include the parameters and path segments learned not to change its pages (see DustRuleLearner).
  * 				4) check if they are valid &
  * 				5) check if they are to be excluded.*This has to be done in the updated list.
  * <p>
- * Support for interacting with servers using the robots.txt protocol is provided, although in a very 
- * simple way, and not parsing complex disallow expressions that use wildcards, such as 
- *                                                                             "Disallow: /?This#Line%20/*+*OrThis"
+ * Support for interacting with servers using the robots.txt protocol is provided (see RobotsRules): Allow and Disallow lines,
+ * including wildcards and $, and Crawl-delay. The robots.txt of each host is fetched once, and cached (see RobotsCache) 
+ * for some time, also from one crawl to the next. The plain paths disallowed are also kept in the list of excluded URLs.
  * <p>
  * By accessing the source code, the VERBOSE and DEBUG_MODE flags can be changed so as to print status
  * messages during the run.
@@ -126,11 +148,8 @@ import net.sf.classifier4J.summariser.*;
 	 *  PERFORM MORE TESTS OF THE CHECK FAIL-SAFE PROPERTIES OF ERRORS WHILE VISITING THE FIRST URL IN THE SEEDS LIST.
 	 * 		These properties are present in the remaining URLS, as they are handled in helper threads.    
 	 * <p>
-	 *  ADD MORE SITE-SPECIFIC CHECKS FOR DUPLICATE PAGES. THIS COULD BE DONE IN THE isVisited FUNCTION, FOLLOWING OUR
-	 *  APPROACH FOR STACKOVERFLOW. ADDITIONALLY THE SAME COULD BE DONE FOR NORMALIZING.
-	 *  <p>
-	 *  IMPROVE USE OF LUCENE LOCKS TO AVOID org.apache.lucene.store.LockObtainFailedExceptions AND THUS AVOID STALLS OR NOT
-	 *  INDEXING OF SOME PAGES.
+	 *  ADD MORE SITE-SPECIFIC CHECKS FOR DUPLICATE PAGES. THIS COULD BE DONE WITH MORE RULES FOR THE URL NORMALIZER, 
+	 *  FOLLOWING OUR APPROACH FOR STACKOVERFLOW AND GITHUB.
 	 *  <p>
 	 *  WORK ON SITE INDPENDENT DUPLICATE URL OR PAGE DETECTION
 	 *  <p>
@@ -164,35 +183,94 @@ public class WebCrawler {
 	/**Maximum number of threads. By default 100.*/
 	private static int MAX_NUM_THREADS=100;
 	
+	/**Estimated time of a fetch from a host that has not answered yet, for balancing the load of the threads. By default 500 milliseconds.*/
+	private static int DEFAULT_FETCH_TIME_IN_MILLISECONDS=500;
+	
+	/**Time after which an idle thread checks again for a host to take over from an overloaded one. By default 1000 milliseconds.*/
+	private static int STEAL_CHECK_INTERVAL_IN_MILLISECONDS=1000;
+	
+	/**Maximum number of fetches in progress when fetching on virtual threads. By default 1000.*/
+	private static int MAX_NUM_VIRTUAL_FETCHES=1000;
+	
 	/**Minimum document length for indexing. By default 20.*/
 	private static int MINIMUM_DOC_LENGTH_FOR_INDEXING=20;
 	
-	/**Wait time for each thread between requests to a host. By default 500 milliseconds.*/
-	private static int WAIT_TIME_IN_MILLISECONDS_THREADS=500; 
+	/**Minimum wait time between requests to a host. The actual wait adapts to each host (see PolitenessLimiter). By default 250 milliseconds.*/
+	private static int MIN_WAIT_TIME_IN_MILLISECONDS_HOSTS=250; 
 	
-	/**Wait time for main thread before attempting to join an apparently idle thread and then restart it. By default 500 milliseconds.*/
-	private static int WAIT_TIME_IN_MILLISECONDS_MAIN_THREAD=500; //Wait time for main thread
+	/**Maximum wait time between requests to a host, also capping Crawl-delay and Retry-After. By default 30 seconds.*/
+	private static int MAX_WAIT_TIME_IN_MILLISECONDS_HOSTS=30000; 
 	
 	/**Name of visited file. By default visited.txt*/
 	private static String VISITED_FILE="visited.txt";
 	
+	/**Name of the file holding the visited set, as a memory-mapped table of URL fingerprints. By default visited.fp*/
+	private static String VISITED_SET_FILE="visited.fp";
+	
+	/**Number of bits of the Bloom filter in front of the visited set, only used if the visited set file cannot be opened and 
+	 * the set is kept in memory. 0 for no Bloom filter. By default 0, as the set is normally kept in its file. 2^24 bits 
+	 * (2 megabytes) are enough for about 1.5 million URLs with few false positives.*/
+	private static long VISITED_BLOOM_FILTER_BITS=0;
+	
 	/**Name of excluded file. By default excluded.txt*/
 	private static String EXCLUDED_FILE="excluded.txt";
 	
+	/**Name of the file where the robots.txt rules of the hosts visited are cached. By default robots_cache.txt*/
+	private static String ROBOTS_CACHE_FILE="robots_cache.txt";
+	
+	/**Name of the file where the evidence for the URL rules learned from the pages crawled is kept (see DustRuleLearner). By default dust_rules.txt*/
+	private static String DUST_RULES_FILE="dust_rules.txt";
+	
+	/**Time after which the cached robots.txt rules of a host are fetched again. By default 24 hours.*/
+	private static long ROBOTS_TTL_IN_MILLISECONDS=24*60*60*1000L;
+	
+	/**Time after which the robots.txt of a host that could not be reached is fetched again. Until then, the host is not crawled. 
+	 * By default 10 minutes.*/
+	private static long ROBOTS_RETRY_IN_MILLISECONDS=10*60*1000L;
+	
+	/**Name of the store of ETags, Last-Modified dates and content hashes of the crawled pages. By default recrawl.txt*/
+	private static String RECRAWL_FILE="recrawl.txt";
+	
+	/**Name of the checkpoint of the current crawl, for resuming it. By default checkpoint.txt*/
+	private static String CHECKPOINT_FILE="checkpoint.txt";
+	
+	/**Name of the folder, within the index folder, where the URLs of the frontier that do not fit in memory are spilled. By default frontier*/
+	private static String FRONTIER_SPILL_FOLDER="frontier";
+	
+	/**Maximum number of pending URLs of the frontier kept in memory. Further URLs are spilled to disk. By default 100000.*/
+	private static int MAX_FRONTIER_URLS_IN_MEMORY=100000;
+	
+	/**Name of the log of documents not yet committed to the index. By default pending.log*/
+	private static String PENDING_LOG_FILE="pending.log";
+	
+	/**Flag that indicates if each entry of the pending log is flushed to disk. If false, entries survive a crash of the JVM, but not
+	 * of the operating system. By default false.*/
+	private static boolean SYNC_PENDING_LOG=false;
+	
 	/**Name of location for default index. By default the folder default_index*/
 	private static String DEFAULT_INDEX_FOLDER="default_index";
 	
-	/**User agent name, for Jsoup. This prevents some exceptions. By default: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_9_2) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/33.0.1750.152 Safari/537.36.*/
+	/**User agent name, for the fetcher. This prevents some exceptions. By default: Mozilla/5.0 (Macintosh; Intel Mac OS X 10_9_2) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/33.0.1750.152 Safari/537.36.*/
 	private static String USER_AGENT="Mozilla/5.0 (Macintosh; Intel Mac OS X 10_9_2) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/33.0.1750.152 Safari/537.36";
 
-	/**Referrer name, for Jsoup. This prevents some exceptions. By default: http://www.google.com*/
+	/**Referrer name, for the fetcher. This prevents some exceptions. By default: http://www.google.com*/
 	private static String REFERRER="http://www.google.com";
 	
+	/**Maximum number of idle connections kept alive per host by HttpURLConnection, which the fetcher uses. As it applies to 
+	 * the whole JVM, it is set once, when the crawler is created, and only if not set already (see configureHttpConnections). By default 5.*/
+	private static int MAX_CONNECTIONS_PER_HOST=5;
+	
+	/**Maximum size of the pages fetched. Longer pages are truncated, as they are read. By default 1 megabyte.*/
+	private static int MAX_PAGE_SIZE_IN_BYTES=1024*1024;
+	
+	/**Maximum Content-Length of the pages fetched. Pages that declare a longer one are not downloaded at all. By default 10 megabytes.*/
+	private static long MAX_CONTENT_LENGTH_IN_BYTES=10*1024*1024;
+	
+	/**Maximum number of redirects followed for a page. Longer chains, and redirect loops, are not crawled. By default 10.*/
+	private static int MAX_REDIRECTS=10;
+	
 	/**Additional class members*/
 
-	/**Seed for randomization*/
-	private Random rand = new Random(); //Seed for randomization
-	
 	/**Current index folder.*/
 	private String currentIndexFolder=null; //Directory for index
 	
@@ -205,35 +283,114 @@ public class WebCrawler {
 	/**Maximum crawl depth for a given run. */
 	private int maxCrawlDepth;
 
-	/** The following 3 lists determine the processing workflow:
-	 * 	After each web page is visited, a list of tentativeUrls can be established. These are normalized Urls.
-	 *  Shortly after this list can be improved, by validating it. It results in the nextUrls list.
-	 *  Finally, after being visited, they can be removed from all lists and inserted in the visited list.
+	/** The following structures determine the processing workflow:
+	 * 	After each web page is visited, its outlinks are normalized and validated. The ones that pass are added to the frontier.
+	 *  Finally, after being visited, they are removed from the frontier and inserted in the visited list.
 	 * */
 	
-	/**Pool of URLs that could be used, tentatively, for crawling. They are stored as elements of type ItemUrl, so they can be grouped with their depth.*/
-	private List <ItemUrl> tentativeUrls= new ArrayList<ItemUrl>();  
-	/**Lock for synchronized access to tentativeUrls*/
-	private Object tentativeUrls_lock = new int[1];
-
-	/**Pool of validated URLs for crawling. They are stored as elements of type ItemUrl, so they can be grouped with their depth.*/
-	private List <ItemUrl> nextUrls= new ArrayList<ItemUrl>(); //Pool of validated URLs for crawling, next to their depth. 
-
-	/**Lock for synchronized access to nextUrls*/
-	private Object nextUrls_lock = new int[1];
+	/**Frontier of validated URLs for crawling. They are stored as elements of type ItemUrl, so they can be grouped with their depth.*/
+	private CrawlFrontier frontier= new CrawlFrontier();
 
-	/**List of visited URLs*/
-	private List <URL> visitedUrls= new ArrayList<URL>();
-	/**Lock for synchronized access to visitedUrls*/
-	private Object visitedUrls_lock = new int[1];
-	/**List of excluded URLs, built by complying with robots.txt standard.*/
-	private List <URL> excludedUrls= new ArrayList<URL>();  
+	/**Set of visited URLs and hosts.*/
+	private VisitedUrlSet visitedUrls= new VisitedUrlSet(VISITED_BLOOM_FILTER_BITS);
+	/**Writer appending the newly visited URLs to the visited file during a crawl. Null if not crawling.*/
+	private PrintWriter visitedWriter=null;
+	
+	/**Normalizer of the URLs found, with the rules of the sites known to the crawler.*/
+	private UrlNormalizer normalizer=UrlNormalizer.withDefaultRules();
+	
+	/**Learner of the query parameters and path segments that do not change the pages of each host, adding rules for them to the normalizer.*/
+	private DustRuleLearner dustRules=new DustRuleLearner(normalizer, VERBOSE);
+	
+	/**Counters of what was downloaded and skipped during the current crawl.*/
+	private CrawlMetrics metrics=new CrawlMetrics();
+	
+	/**Detector of pages nearly the same as pages indexed before, which are then not indexed.*/
+	private NearDuplicateDetector nearDuplicates=new NearDuplicateDetector();
+	
+	/**Extractor of each thread of the extract stage, reusing its buffers from page to page.*/
+	private ThreadLocal<PageExtractor> extractors=new ThreadLocal<PageExtractor>(){
+		@Override
+		protected PageExtractor initialValue(){
+			return new PageExtractor();
+		}
+	};
+	
+	/**Visited file of the current crawl, or null if not open.*/
+	private File visitedFile=null;
+	/**List of excluded URLs, built by complying with robots.txt standard. Each URL is only listed once.*/
+	private List <CrawlUrl> excludedUrls= new ArrayList<CrawlUrl>();  
 	/**Lock for synchronized access to excludedUrls*/
 	private Object excludedUrls_lock = new int[1];
+	/**Trie of the excluded URLs, for checking URLs against them without a lock.*/
+	private ExclusionTrie exclusions= new ExclusionTrie();
+	/**Cache of the robots.txt rules of each host.*/
+	private RobotsCache robotsCache= new RobotsCache(ROBOTS_TTL_IN_MILLISECONDS, ROBOTS_RETRY_IN_MILLISECONDS, USER_AGENT, VERBOSE);
+	/**Rules of each host (by origin) whose Crawl-delay and disallowed paths have been applied during the current crawl.
+	 * Rules fetched again when they expire are applied again.*/
+	private Map<String,RobotsRules> appliedRobotsRules= new ConcurrentHashMap<String,RobotsRules>();
+	
 	
+	/**Commit policy: commit the index after this number of documents. 0 for no limit. By default 500.*/
+	private int commitEveryNDocuments=500;
 	
-	/**Lock for granting all threads concurrent access to the stored index.*/
-	private Object index_lock = new int[1]; 
+	/**Commit policy: commit the index after this number of seconds, if there are pending documents. 0 for no limit. By default 30.*/
+	private int commitEveryNSeconds=30;
+	
+	/**Commit policy: commit the index after this number of megabytes of pending documents. 0 for no limit. By default 16.*/
+	private int commitEveryNMegabytes=16;
+	
+	/**Commit scheduler for the index writer of the current crawl.*/
+	private CommitScheduler commitScheduler=null;
+	
+	/**Log of the documents not yet committed to the index during the current crawl.*/
+	private PendingDocumentLog pendingLog=null;
+	
+	/**Number of threads of the parse stage of the pipeline. By default, the number of processors.*/
+	private int parseThreads=Runtime.getRuntime().availableProcessors();
+	
+	/**Number of threads of the extract stage of the pipeline. By default, the number of processors.*/
+	private int extractThreads=Runtime.getRuntime().availableProcessors();
+	
+	/**Number of threads of the index stage of the pipeline. By default 2.*/
+	private int indexThreads=2;
+	
+	/**Maximum number of pages waiting in front of each stage of the pipeline. By default 100.*/
+	private int pipelineQueueCapacity=100;
+	
+	/**Pipeline processing the pages fetched during the current crawl.*/
+	private CrawlPipeline pipeline=null;
+	
+	/**Timeout for opening a connection to a host, in milliseconds. By default 3000.*/
+	private int connectTimeoutMillis=3000;
+	
+	/**Timeout for reading a response from a host, in milliseconds. By default 3000.*/
+	private int readTimeoutMillis=3000;
+	
+	/**Fetcher making the requests of the current crawl.*/
+	private PageFetcher fetcher=null;
+	
+	/**Limiter enforcing politeness per host during the current crawl.*/
+	private PolitenessLimiter limiter=null;
+	
+	/**Time between checkpoints of a crawl, in seconds. 0 for no checkpoints. By default 60.*/
+	private int checkpointIntervalSeconds=60;
+	
+	/**Timer taking the checkpoints of the current crawl. Null if not used.*/
+	private ScheduledExecutorService checkpointTimer=null;
+	
+	/**Flag that indicates if crawls on an existing index refresh the pages visited before. By default false.*/
+	private boolean recrawlMode=false;
+	
+	/**Store of the versions of the pages crawled, to skip the unchanged ones when crawling them again.*/
+	private RecrawlStore recrawlStore=null;
+	
+	/**Signals if the current crawl refreshes the pages visited before. Only then are stored versions used to skip pages.*/
+	private volatile boolean refreshingPages=false;
+	
+	/**Index writer shared by all threads during a crawl. It is opened once in innerCrawl and closed after the final join.
+	 * IndexWriter is thread-safe, so the threads add documents to it concurrently, without further locking.*/
+	private IndexWriter indexWriter=null;
 	
 	/**Map to connect hostname to index of specialized thread, in charge of visiting pages in this domain.*/
 	private Map<String,Integer> hostIndex= new HashMap<String,Integer>(200); 
@@ -241,11 +398,33 @@ public class WebCrawler {
 	/**Thread in charge of the crawling.*/
 	private List<CrawlerThread> threads= new ArrayList<CrawlerThread>(); 
 	
+	/**Lock for synchronized access to hostIndex and threads while crawling, since idle threads take hosts over from other threads.*/
+	private Object assignment_lock = new int[1];
+	
+	/**Executor running the helper threads of the current crawl, or its fetches when fetching on virtual threads.*/
+	private ExecutorService workers=null;
+	
+	/**Flag that indicates if each fetch runs on its own virtual thread, instead of on helper threads owning their hosts. By default false.*/
+	private boolean virtualThreadFetching=false;
+	
 	/**Functions */
 	
 	/**Protected constructor function, to defeat instantiation. */
 	protected WebCrawler(){
 		 // Exists only to defeat instantiation.
+		configureHttpConnections();
+	}
+	
+	/**
+	 * Function to size the pool of idle connections that HttpURLConnection keeps alive per host, and the fetcher reuses.
+	 * The pool is shared by the whole JVM, and sized when the first request is made, so this is the only place where it is set: 
+	 * once, when the crawler is created. A size set already by the application (the http.maxConnections system property) is kept.
+	 * Connections are kept alive by default, unless the application turned it off (the http.keepAlive system property).
+	 */
+	private static void configureHttpConnections(){
+		if (System.getProperty("http.maxConnections")==null){
+			System.setProperty("http.maxConnections", String.valueOf(MAX_CONNECTIONS_PER_HOST));
+		}
 	}
 	
 	/**getInstance function, for singleton use*/
@@ -271,37 +450,93 @@ public class WebCrawler {
 	 * 
 	 * */
 	public void crawl(List<URL> seeds, int crawlDepth, String indexFolderAddress,  boolean resetIndex) throws InterruptedException {
-		try {
-			innerCrawl(seeds, crawlDepth, indexFolderAddress, resetIndex);
+		/**From here on, URLs are handled as CrawlUrl objects, whose comparisons do not resolve hosts.*/
+		List<CrawlUrl> crawlSeeds= new ArrayList<CrawlUrl>();
+		for (URL seed: seeds){
+			try {
+				crawlSeeds.add(CrawlUrl.fromURL(seed));
+			} catch (MalformedURLException e) {
+				e.printStackTrace();
+				System.out.println("Seed discarded, as it has no host: "+seed.toString());
+			}
 		}
-		catch(InterruptedException e){
-			System.out.println("Crawling Suspended:");
-			System.out.println("Unfortunately there has been an exception that we could not handle.");
-			System.out.println("Please close the window and try with other urls.");
-			isCrawling=false;
+		monitoredCrawl(crawlSeeds, null, crawlDepth, indexFolderAddress, resetIndex);
+	}
+	
+	/**
+	 * Function to resume a crawl from its latest checkpoint, taken periodically while crawling (see setCheckpointInterval). 
+	 * The crawl goes on with the same depth, over the existing index, from the URLs that were still to be crawled.
+	 * The checkpoint is removed once the crawl is completed.
+	 * 
+	 * @param indexFolderAddress index location of the crawl to resume
+	 * 
+	 * @throws InterruptedException
+	 */
+	public void resume(String indexFolderAddress) throws InterruptedException {
+		String folder=indexFolderAddress.equals("DEFAULT") ? DEFAULT_INDEX_FOLDER : indexFolderAddress;
+		CrawlCheckpoint checkpoint;
+		try {
+			checkpoint=CrawlCheckpoint.load(new File(folder+"/"+CHECKPOINT_FILE));
+		} catch (IOException e) {
 			e.printStackTrace();
+			System.out.println("Crawling not resumed: The checkpoint in the selected directory could not be read.");
+			return;
 		}
-		catch(ArrayIndexOutOfBoundsException e1){
-			System.out.println("Crawling Suspended:");
-			System.out.println("Unfortunately there has been an exception that we could not handle.");
-			System.out.println("Please close the window and try with other urls.");
-			isCrawling=false;
-			e1.printStackTrace();
+		if (checkpoint==null){
+			System.out.println("Crawling not resumed: There is no checkpoint in the selected directory.");
+			return;
+		}
+		if (VERBOSE){
+			System.out.println("Resuming the crawl from its checkpoint of "+new java.util.Date(checkpoint.getCreatedAt())+".");
+		}
+		monitoredCrawl(new ArrayList<CrawlUrl>(), checkpoint, checkpoint.getCrawlDepth(), indexFolderAddress, false);
+	}
+	
+	/**
+	 * Function to monitor the crawling for exceptions, and keep consistency. It launches the crawling by calling the private function
+	 * innerCrawl, where the crawling is actually carried out.
+	 * 
+	 * @param seeds list of URLs corresponding to non-validated seeds.
+	 * @param resumed checkpoint of a crawl being resumed, with the URLs still to be crawled. Null for a new crawl.
+	 * @param crawlDepth crawling depth
+	 * @param indexFolderAddress index location
+	 * @param resetIndex boolean flag indicating if the crawler should reset or create the index
+	 * 
+	 * @throws InterruptedException
+	 */
+	private void monitoredCrawl(List<CrawlUrl> seeds, CrawlCheckpoint resumed, int crawlDepth, String indexFolderAddress,  boolean resetIndex) throws InterruptedException {
+		try {
+			innerCrawl(seeds, resumed, crawlDepth, indexFolderAddress, resetIndex);
 		}
-		catch(IndexOutOfBoundsException e2){
+		catch(InterruptedException | IndexOutOfBoundsException e){ //ArrayIndexOutOfBoundsException included.
 			System.out.println("Crawling Suspended:");
 			System.out.println("Unfortunately there has been an exception that we could not handle.");
 			System.out.println("Please close the window and try with other urls.");
-			isCrawling=false;
-			e2.printStackTrace();
+			abortCrawl();
+			e.printStackTrace();
 		}
 
 	}
 	
+	/**
+	 * Function to tear down a crawl suspended by an exception, releasing all it holds. The latest checkpoint is kept, to resume the crawl.
+	 */
+	private void abortCrawl(){
+		stopCheckpointTimer();
+		frontier.close(); //Helper threads find the crawl over, and are waited for.
+		stopWorkers();
+		stopPipeline();
+		closeIndexWriter();
+		closeVisitedWriter();
+		closeRecrawlStore();
+		isCrawling=false;
+	}
+	
 	/**
 	 * Function that implements the crawling over a set of seeds
 	 * 
 	 * @param seeds list of URLs corresponding to non-validated seeds. They are already checked for MalformedExpression.
+	 * @param resumed checkpoint of a crawl being resumed, with the URLs still to be crawled. Null for a new crawl.
 	 * @param crawlDepth crawling depth
 	 * @param indexFolderAddress index location
 	 * @param resetIndex boolean flag indicating if the crawler should reset or create the index
@@ -310,21 +545,28 @@ public class WebCrawler {
 	 * 
 	 * @author Gabriel
 	 */
-	private void innerCrawl(List<URL> seeds, int crawlDepth, String indexFolderAddress,  boolean resetIndex) throws InterruptedException{
+	private void innerCrawl(List<CrawlUrl> seeds, final CrawlCheckpoint resumed, int crawlDepth, String indexFolderAddress,  boolean resetIndex) throws InterruptedException{
 		isCrawling=true;
+		boolean replayPendingDocuments=!resetIndex; //Pages left uncommitted by a previous crawl are only recovered if the index is not reset.
+		boolean recrawl=recrawlMode && !resetIndex && resumed==null; //Pages visited before are refreshed, instead of skipped.
+		boolean appendToVisitedFile=!resetIndex && !recrawl; //Likewise, the visited file is only extended if the index is not reset, and not refreshed.
+		refreshingPages=recrawl;
+		List<CrawlUrl> previouslyVisited= new ArrayList<CrawlUrl>(); //Pages to be refreshed. Will only be used in recrawl mode.
 		threads.clear();
 		hostIndex.clear();
 		this.maxCrawlDepth=crawlDepth;
 		this.currentIndexFolder=indexFolderAddress;
 		
-		tentativeUrls.clear();
-		nextUrls.clear();
+		frontier.clear();
+		visitedUrls.close();
 		visitedUrls.clear();
 		excludedUrls.clear();
+		exclusions.clear();
+		metrics.clear();
 		
-		List <URL> previouslyVisitedUrls = new ArrayList<URL>(); //Will only be used in VERBOSE mode.
-		List <URL> previouslyExcludedUrls = new ArrayList<URL>(); //Will only be used in VERBOSE mode.
-		List<URL> auxURLs= new ArrayList<URL>();//Auxiliary array
+		List <String> previouslyVisitedUrls = new ArrayList<String>(); //Will only be used in VERBOSE mode.
+		List <CrawlUrl> previouslyExcludedUrls = new ArrayList<CrawlUrl>(); //Will only be used in VERBOSE mode.
+		List<CrawlUrl> auxURLs= new ArrayList<CrawlUrl>();//Auxiliary array
 		usingNonDefaultIndex=false;
 		if (indexFolderAddress.equals(DEFAULT_INDEX_FOLDER)||indexFolderAddress.equals("DEFAULT")){
 			indexFolderAddress=DEFAULT_INDEX_FOLDER;
@@ -332,44 +574,101 @@ public class WebCrawler {
 		else{
 			usingNonDefaultIndex=true;
 		}
+		frontier.setSpilling(new File(indexFolderAddress+"/"+FRONTIER_SPILL_FOLDER), MAX_FRONTIER_URLS_IN_MEMORY);
 		
 		if (VERBOSE){
 			System.out.println("Crawling will begin shortly. It might take several minutes.");
 			System.out.println("Note: HttpConnection exceptions might be shown for given URLs and servers. These pages are not indexed.");
-			System.out.println("Note: Non-determinism in multi-threading with JVM and implicit use of Lucene's locks might cause eventual stalls, but the crawling is not interrupted and resumes after a minute.");
-			System.out.println("Unless the program stops fully, these exceptions and stalls can be considered irrelevant.");
+			System.out.println("Unless the program stops fully, these exceptions can be considered irrelevant.");
 			if (!DEBUG_MODE)
 				System.out.println("For more messages during the execution, the DEBUG_MODE flag could be used.(Only configurable in the code)");
 		}
 		
+		/**The URL rules learned from the pages crawled before are only kept if the index is. They are loaded before the visited
+		 * URLs, whose keys are normalized with them, as they are during the crawl.*/
+		dustRules.clear();
+		if (!resetIndex){
+			try {
+				dustRules.load(new File(indexFolderAddress+"/"+DUST_RULES_FILE));
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("The URL rules learned before could not be loaded. They will be learned again.");
+			}
+		}
+		
 		/**Processing if the user wants to use an existing index...*/
+		boolean visitedSetLoaded=false; //The visited set is in place for the crawl.
 		if (!resetIndex){ //User requests to start from a created index
 			
 			/**Here we load the visited and excluded lists*/
-			if (!seeds.isEmpty()){
+			if (!seeds.isEmpty() || resumed!=null){
 				BufferedReader reader=null;  
-				try {
-					reader = new BufferedReader(new FileReader(indexFolderAddress+"/"+VISITED_FILE));
-					String line = null;
-					while ((line = reader.readLine()) !=null){
-						markAsVisited(new URL((line.toString()))); //The visited URLs file is read and loaded to the visited array.
+				if (!recrawl){
+					visitedSetLoaded=openVisitedSet(indexFolderAddress);
+				}
+				if (visitedSetLoaded){
+					/**The visited set file matches the visited file, so it is used as it is.*/
+					if (VERBOSE){
+						previouslyVisitedUrls.addAll(new TreeSet<String>(readLines(new File(indexFolderAddress+"/"+VISITED_FILE), 0)));
 					}
 				}
-				catch (Exception e) {
-					e.printStackTrace();
-					System.out.println("Visited URLs file not found");
-				} finally {
+				else {
 					try {
-						reader.close();
-					} catch (Exception e) {
-					  e.printStackTrace();
+						reader = new BufferedReader(new FileReader(indexFolderAddress+"/"+VISITED_FILE));
+						visitedSetLoaded=!recrawl; //In recrawl mode the set stays empty, so it is opened later on.
+						String line = null;
+						while ((line = reader.readLine()) !=null){
+							/**The visited URLs file is read and loaded to the visited set. Just in case, URLs are normalized first.
+							 * Repeated ones are only added once. This is only needed when the visited set file is missing, 
+							 * or does not match the visited file, as after a crash.*/
+							try {
+								CrawlUrl url=CrawlUrl.parse(normalizer.normalize(line));
+								if (recrawl){
+									previouslyVisited.add(url); //Not marked as visited, so it can be crawled again.
+								}
+								else if (visitedUrls.add(normalizer.key(url), url.getOrigin()) && VERBOSE){
+									previouslyVisitedUrls.add(url.toString());
+								}
+							} catch (MalformedURLException e) {
+								e.printStackTrace();
+								System.out.println("One of the previously visited URLs was considered invalid:"+line);
+							}
+						}
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+						System.out.println("Visited URLs file not found");
+					} finally {
+						try {
+							reader.close();
+						} catch (Exception e) {
+						  e.printStackTrace();
+						}
+					}
+				}
+				if (resumed!=null && visitedSetLoaded){
+					/**The URLs of a crawl being resumed are crawled even if visited, as their outlinks may not have been, so they
+					 * are removed from the visited set. They are read from the checkpoint one at a time, as it can be large.*/
+					try {
+						resumed.forEach(new FrontierSpillStore.ItemSink(){
+							public void add(ItemUrl item){
+								visitedUrls.remove(normalizer.key(item.getUrl()));
+							}
+						});
+					} catch (IOException e) {
+						e.printStackTrace();
+						System.out.println("The checkpoint could not be read. Some URLs still to be crawled may be taken as visited.");
 					}
 				}
 				try {
 					reader = new BufferedReader(new FileReader(indexFolderAddress+"/"+EXCLUDED_FILE));
 					String line = null;
 					while ((line = reader.readLine()) !=null){
-						excludedUrls.add(new URL((line.toString()))); //The excluded URLs file is read and loaded to the excluded array.
+						/**The excluded URLs file is read and loaded to the excluded array and trie. Repeated ones are only added once.*/
+						CrawlUrl url=CrawlUrl.parse(line);
+						if (exclusions.add(url)){
+							excludedUrls.add(url);
+						}
 					}
 				}
 				catch (Exception e) {
@@ -405,45 +704,16 @@ public class WebCrawler {
 				}
 			}
 			
-			/**Just in case we will remove repeated elements from the visitedUrls list.*/
-			auxURLs.addAll(removeRepeated(visitedUrls));
-			visitedUrls.clear();
-			visitedUrls.addAll(auxURLs);
-			
-			auxURLs.clear();
-			
-			/**Just in case, we will also normalize all elements in the visitedUrls list*/
-			threads.add(new CrawlerThread(0)); //Here we use a dummy thread, to use some functions of a crawlerThread object. This is not an actual thread.
-			for (URL url: visitedUrls){
-				try {
-					auxURLs.add(new URL (threads.get(0).normalize(url.toString())));
-				} catch (MalformedURLException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-					System.out.println("One of the previously visited URLs was considered invalid:"+url.toString());
-				}
-			}
-			threads.clear();//End of use of dummy thread
-			visitedUrls.clear();
-			visitedUrls.addAll(auxURLs);
-			
 			if (VERBOSE){ //Here we print the previouslyVisited URLs and previouslyExcluded URLs
-				previouslyVisitedUrls.addAll(visitedUrls);
 				if (!previouslyVisitedUrls.isEmpty()){
 					System.out.println("********************************************");
 					System.out.println("Previously visited URLs: ");
 					
 					/**This extra processing is to print them alphabetically */
 					
-					String [] list = new String [previouslyVisitedUrls.size()];
-					int i=0;
-					for (URL url: previouslyVisitedUrls){  
-						list[i]=url.toString();
-						i++;
-					}
-					Arrays.sort(list);
-					for (int j=0; j<previouslyVisitedUrls.size(); j++){
-						System.out.println(list[j]);
+					Collections.sort(previouslyVisitedUrls);
+					for (String url: previouslyVisitedUrls){
+						System.out.println(url);
 					}
 					System.out.println("********************************************");
 				}
@@ -457,7 +727,7 @@ public class WebCrawler {
 					
 					String [] list = new String [previouslyExcludedUrls.size()];
 					int i=0;
-					for (URL url: previouslyExcludedUrls){  
+					for (CrawlUrl url: previouslyExcludedUrls){  
 						list[i]=url.toString();
 						i++;
 					}
@@ -468,8 +738,7 @@ public class WebCrawler {
 					System.out.println("********************************************");
 					System.out.println("Crawling is being carried out. It might take several minutes.");
 					System.out.println("Note: HttpConnection exceptions might be shown for given URLs and servers. These pages are not indexed.");
-					System.out.println("Note: Non-determinism in multi-threading with JVM and implicit use of Lucene's locks might cause eventual stalls, but the crawling is not interrupted and resumes after a minute.");
-					System.out.println("Unless the program stops fully, these exceptions and stalls can be considered irrelevant.");
+					System.out.println("Unless the program stops fully, these exceptions can be considered irrelevant.");
 					if (!DEBUG_MODE)
 						System.out.println("For more messages during the execution, the DEBUG_MODE flag could be used.(Only configurable in the code)");
 					System.out.println("********************************************");
@@ -501,7 +770,11 @@ public class WebCrawler {
 		 */
 		
 		auxURLs.clear();
-		auxURLs.addAll(removeIfExistsInOtherList(seeds, visitedUrls));
+		for (CrawlUrl seed: seeds){
+			if (!isVisited(seed)){
+				auxURLs.add(seed);
+			}
+		}
 		seeds.clear();
 		seeds.addAll(auxURLs);
 		
@@ -513,20 +786,84 @@ public class WebCrawler {
 		seeds.addAll(auxURLs);
 		
 
-		if (!seeds.isEmpty()){//If seeds are not empty after steps 1, 2, 5... Most of the program runs inside this branch.
+		/**Likewise, the robots.txt rules cached are only kept if the index is.*/
+		robotsCache.clear();
+		appliedRobotsRules.clear();
+		if (!resetIndex){
+			try {
+				robotsCache.load(new File(indexFolderAddress+"/"+ROBOTS_CACHE_FILE));
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("The cached robots.txt rules could not be loaded. They will be fetched again.");
+			}
+		}
+		
+		/**The versions of the pages crawled before are only kept if the index is.*/
+		recrawlStore=new RecrawlStore(new File(indexFolderAddress+"/"+RECRAWL_FILE));
+		if (!resetIndex){
+			try {
+				recrawlStore.load();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("The versions of the pages crawled before could not be loaded. They will be fetched in full.");
+			}
+		}
+		
+		if (!seeds.isEmpty() || !previouslyVisited.isEmpty() || resumed!=null){//If seeds are not empty after steps 1, 2, 5 (or there are pages to refresh, or a crawl to resume)... Most of the program runs inside this branch.
+			
+			/**The index writer is opened once for the whole crawl. If the index must be created, it is done at this point.*/
+			try {
+				indexWriter=openIndexWriter(indexFolderAddress, resetIndex);
+				startCommitScheduler(indexFolderAddress, replayPendingDocuments);
+				/**Near-duplicates are checked against the pages in the index, if it is kept.*/
+				nearDuplicates.clear();
+				if (!resetIndex){
+					loadFingerprints();
+				}
+			} catch (IOException e) {
+				closeIndexWriter();
+				e.printStackTrace();
+				System.out.println("Crawling not carried out: The index in the selected directory could not be opened for writing.");
+				isCrawling=false;
+				return;
+			}
+			
+			/**Newly visited URLs are appended to the visited file as they are marked. The file is only kept if the index is,
+			 * and it is rewritten in recrawl mode, where the pages visited before are marked again.*/
+			long visitedFileStart=0;
+			if (!visitedSetLoaded){
+				/**The visited set starts empty, kept in its file next to the index.*/
+				try {
+					visitedUrls.open(new File(indexFolderAddress+"/"+VISITED_SET_FILE));
+					visitedUrls.clear();
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.out.println("The visited set file could not be opened. The visited set will be kept in memory.");
+				}
+			}
+			try {
+				File visitedFile=new File(indexFolderAddress+"/"+VISITED_FILE);
+				if (!appendToVisitedFile){
+					visitedFile.delete();
+				}
+				visitedFileStart=visitedFile.length();
+				visitedWriter=new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(visitedFile, true), "UTF-8")));
+				this.visitedFile=visitedFile;
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("The visited URLs file could not be opened. Visited URLs will not be stored.");
+			}
 			
 			threads.add(new CrawlerThread(0)); //Here we use a dummy thread, to use some functions of a crawlerThread object. This is not an actual thread.
 		    
 			//Now seeds are normalized and validated before being used. Steps (3) and (4)
-			for (URL seed : seeds) {
+			for (CrawlUrl seed : seeds) {
 				
-		    	String tempURL=threads.get(0).normalize(seed.toString());//Note that this is a partial normalization, for a full normalization a base URL is needed.
-		    	
 		    	try {
-		    		URL url2=new URL (tempURL);
+		    		CrawlUrl url2=CrawlUrl.parse(normalizer.normalize(seed.toString()));
 					if (isValid(url2)){
 						if (!isExcluded(url2)){ //Step (5), again after normalization.
-							nextUrls.add(new ItemUrl(url2,0));
+							frontier.offer(new ItemUrl(url2,0));
 						}
 					}
 					
@@ -536,93 +873,60 @@ public class WebCrawler {
 				}
 		    }
 			
-		    if (!nextUrls.isEmpty()){
+		    /**In recrawl mode, the pages visited before are added to the frontier, at the depth at which they were crawled.
+		     * Pages without a stored version are only indexed again.*/
+		    for (CrawlUrl url: previouslyVisited){
+		    	RecrawlStore.PageVersion version=recrawlStore.get(url.toString());
+		    	int depth=version!=null ? version.getDepth() : maxCrawlDepth;
+		    	if (depth<=maxCrawlDepth && isValid(url) && !isExcluded(url)){
+		    		frontier.offer(new ItemUrl(url, depth));
+		    	}
+		    }
+		    
+		    /**When resuming a crawl, the URLs that were still to be crawled are added to the frontier, with their depth.
+		     * They are streamed from the checkpoint, so the frontier spills them to disk again if they are too many.*/
+		    if (resumed!=null){
+		    	try {
+		    		int count=resumed.forEach(new FrontierSpillStore.ItemSink(){
+		    			public void add(ItemUrl item){
+		    				if (item.getDepth()<=maxCrawlDepth && isValid(item.getUrl()) && !isExcluded(item.getUrl())){
+		    					frontier.offer(item);
+		    				}
+		    			}
+		    		});
+		    		if (VERBOSE){
+		    			System.out.println("Resuming the crawl with "+count+" URLs still to be crawled.");
+		    		}
+		    	} catch (IOException e) {
+		    		e.printStackTrace();
+		    		System.out.println("The checkpoint could not be read. The crawl goes on from the URLs read so far.");
+		    	}
+		    }
+		    
+		    limiter=new PolitenessLimiter(MIN_WAIT_TIME_IN_MILLISECONDS_HOSTS, MAX_WAIT_TIME_IN_MILLISECONDS_HOSTS);
+		    fetcher=new PageFetcher(connectTimeoutMillis, readTimeoutMillis, MAX_PAGE_SIZE_IN_BYTES, MAX_CONTENT_LENGTH_IN_BYTES, MAX_REDIRECTS, 
+		    		USER_AGENT, REFERRER, metrics);
+		    pipeline=new CrawlPipeline(new int[]{parseThreads, extractThreads, indexThreads}, pipelineQueueCapacity, frontier);
+		    startCheckpointTimer(indexFolderAddress);
+		    
+		    ItemUrl firstUrl=frontier.poll();
+		    if (firstUrl!=null){
 		    	/** To start the process we crawl the first seed.
 				*   This case is distinguished from others, because here the index can be created
 				* */
 		    	//Note we can visit because steps 1-5 have already been carried out.
 		    	
-		    	if (nextUrls.get(0).getDepth()+1<=maxCrawlDepth){//According to depth we can crawl or simply index
-		    		List<URL> newPages= new ArrayList<URL>();
-					try {//Now we index the page from the first URL and obtain a list of it's outlinks
-						
-						//We start by getting the excluded list of the host
-						if(!isVisitedHost(nextUrls.get(0).getUrl())){
-							newPages = threads.get(0).getExcludedList(nextUrls.get(0).getUrl());
-							if (!newPages.isEmpty()){
-								excludedUrls.addAll(newPages);
-								auxURLs.clear();
-								auxURLs.addAll(removeRepeated(excludedUrls));
-								excludedUrls.clear();
-								excludedUrls.addAll(auxURLs);
-							}
-						}
-						newPages = threads.get(0).crawlAndIndexPage(nextUrls.get(0).getUrl(), resetIndex); //Note the use of createIndex instead of false
-					} catch (Exception e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}	
-					for (URL page: newPages){
-						tentativeUrls.add(new ItemUrl(page, 1)); //We add the outlink list to tentativeUrls, with depth 1
-					}
-					/**Now we carry out steps (1) and (2) and (5) for the list of tentativeURLs
-					 * */
-					tentativeUrls=cleanUrlList(tentativeUrls);
-					tentativeUrls=removeVisited(tentativeUrls, visitedUrls);
-					tentativeUrls=removeExcluded(tentativeUrls, excludedUrls);
-		    	}
-		    	else if (nextUrls.get(0).getDepth()==maxCrawlDepth){ //We will simply index the page
-		    		org.jsoup.nodes.Document doc=null;
-					try {
-						String startUrl=nextUrls.get(0).getUrl().toString();
-						
-						//Before indexing we will get the excluded list of the host
-						if(!isVisitedHost(nextUrls.get(0).getUrl())){
-							auxURLs = threads.get(0).getExcludedList(nextUrls.get(0).getUrl());
-							if (!auxURLs.isEmpty()){
-								excludedUrls.addAll(auxURLs);
-								auxURLs.clear();
-								auxURLs.addAll(removeRepeated(excludedUrls));
-								excludedUrls.clear();
-								excludedUrls.addAll(auxURLs);
-							}
-						}
-
-						doc = Jsoup.connect(startUrl).userAgent(USER_AGENT).referrer(REFERRER).get();
-												
-						/**The following while loop tries to catch redirects and mark as visited all the intermediate URLs
-						 * It checks if the location of the retrieved document is the same as the one from the 
-						 * requested URL.*/
-						
-						while(!threads.get(0).normalize(doc.location()).equals(startUrl)){
-							String aux=startUrl;
-							Response response = Jsoup.connect(startUrl).userAgent(USER_AGENT).referrer(REFERRER).followRedirects(false).execute();
-							startUrl=response.header("location");
-							if(aux==null || startUrl==null){ //If the response has no header or fails, we stop the loop
-								startUrl=threads.get(0).normalize(doc.location());
-							}
-							else if(aux==startUrl){ //If the response traps the request in a single site, we stop the loop
-								startUrl=threads.get(0).normalize(doc.location());
-							}
-							else {
-								startUrl=threads.get(0).normalize(startUrl, aux);
-								try {
-									markAsVisited(new URL(startUrl));//Note we mark all URLs as visited, except for the starting one, which is marked later.
-								} catch (MalformedURLException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-								}
-							}
-						}
-						threads.get(0).indexPage(doc, new URL (threads.get(0).normalize(doc.location())), resetIndex);//Note the use of createIndex instead of false
-
-					} catch (Exception e1) {
+				try {//Now we fetch the page from the first URL. The pipeline indexes it and adds its outlinks to the frontier, according to depth.
+					
+					//We start by getting the excluded list of the host
+					loadRobotsRules(firstUrl.getUrl());
+					threads.get(0).crawlAndIndexPage(firstUrl, resetIndex); //Note the use of createIndex instead of false
+				} catch (Exception e) {
 					// TODO Auto-generated catch block
-						e1.printStackTrace();
-					} 
-		    	}
-		    	markAsVisited(nextUrls.get(0).getUrl()); //The first URL seed is now marked as visited and removed from the nextUrls list.	
-		    	nextUrls.remove(0);
+					e.printStackTrace();
+				}	
+		    	markAsVisited(firstUrl.getUrl()); //The first URL seed is now marked as visited and done in the frontier.	
+		    	frontier.done(firstUrl);
 		    }
 		    
 		    threads.clear();//End of dummy thread use
@@ -630,260 +934,92 @@ public class WebCrawler {
 		    /** Now that the index is created at least for one document, we can start processing while using an existing index.
 		     * */
 		    
-		    
-		    /*Boolean variables used to avoid synchronization issues.*/
-		    boolean tue=tentativeUrls.isEmpty(); 
-		    boolean nue=nextUrls.isEmpty();
-		    boolean tb=threadsBusy();
-
-		    /**Start of parallelized execution*/
-		    while (!tue || !nue || tb){ /**The crawling proceeds as long as there are items in the tentativeUrls or the nextUrls, 
-		    	                        * or there are threads busy.
-		    	                        * 
-		    	                        * In this while loop threads will be created and/or restarted, as well as assigned to specific hostnames. 
-		    	                        * 
-		    	                        * The threads themselves will consult the nextUrls list and crawl and/or index, according to their hostnames. 
-		    	                        * The detected outlinks from the threads will be stored in the tentativeUrls list.
-		    	                        * 
-		    	                        * This list will be processed in this loop by the main thread, and then added to the nextUrls list, so threads
-		    	                        * can process these URLs.
-		    	                        * 
-		    	                        * During this while loop we will perform steps 1, 2 and 4 over the nextUrls and tentativeUrls lists.
-		    	                        * Step 3 is performed by the helper threads.
-		    	                        * 
-		    	                        **/
-		    	
-		    	List<ItemUrl> nextUrls2= new ArrayList<ItemUrl>(); //To improve synchronization, we work with local copies.
-		    	synchronized (nextUrls_lock){
-		    		nextUrls2.addAll(cleanUrlList(nextUrls)); 
-		    		nextUrls.clear();
-		    		nextUrls.addAll(nextUrls2);
-		    	}
-		    	
-		    	for (ItemUrl url : nextUrls2){ //We will iterate over all pending urls, and assign to a host. Otherwise we just check if its already assigned.
-		    		String host=url.getUrl().getHost();
-		    		int selectedThread=-1;
-		    		/**The hostIndex map will be used to map each thread to a host
-		    		 * No locking will be required since it is only used by the main thread.
-		    		 * */
-		    		if(hostIndex.get(host)==null){ //No thread specialized on this host
-		    			if (threads.size()>=MAX_NUM_THREADS){ //We cannot assign to a new thread
-		    												 
-		    				selectedThread=getFreeThread(); //So we try to assign to the first free thread.
-		    				
-		    				if (selectedThread==-1){     //All threads are busy, so we assign to a random thread.
-		    					 selectedThread=rand.nextInt((threads.size()-1) + 1); //Suggestions for future work: Perhaps load balancing might be better
-		    				}
-			    			threads.get(selectedThread).addHost(host);//We add the host to the threads hostnames list
-			    			hostIndex.put(host, selectedThread); //We assign the host to the thread
-			    			
-			    			/**Wait before attempting join. 
-			    			 * This gives threads a chance to start and get busy, before the following check.
-			    			 */
-			    			Thread.sleep(WAIT_TIME_IN_MILLISECONDS_MAIN_THREAD);  
-			    			
-			    			if (!threads.get(selectedThread).isBusy()){//If the assigned thread isn't busy we have to restart it
-			    				if(!threads.get(selectedThread).t.equals(Thread.currentThread())){
-			    					try {
-			    						if (VERBOSE){
-			    							System.out.println("Main thread joining thread:"+selectedThread);
-			    						}
-			    						threads.get(selectedThread).t.join(); /**So as not to cancel the thread we join it. 
-			    						* If the thread was not busy, this shouldn't be a problem.
-			    						* */
-			    					}
-			    					catch (InterruptedException e) {
-			    						System.out.println("Main thread Interrupted");
-			   						}
-			   					}
-			    				/**Now we start a new thread with the same hostnames as the previous
-			    				thread, AND the new hostname as well, but assigned to the current set of nextUrls.*/
-			    				
-			    				threads.get(selectedThread).t= new Thread (threads.get(selectedThread)); 
-			    				threads.get(selectedThread).t.start();
-			    				
-			    				if (VERBOSE)
-	    							System.out.println("Selected Thread Restarted: "+selectedThread);			    		
-			   				}
-		    				/**If the selected thread was busy, then it will find the hostname in it's list and process the corresponding pages.*/	
-		    			}
-		    			else{ //Threads available for starting
-		    				threads.add(new CrawlerThread(threads.size()));
-		    				selectedThread=threads.size()-1;
-			    			threads.get(selectedThread).addHost(host);
-			    			hostIndex.put(host, selectedThread);
-		    				threads.get(selectedThread).t= new Thread (threads.get(selectedThread));
-		    				threads.get(selectedThread).t.start();
-		    			}
-		    		}
-		    		else {//A specialized thread already exists for this hostname
-		    			selectedThread=hostIndex.get(host);
-		    			
-		    			/**Wait before attempting join. 
-		    			 * This gives threads a chance to start and get busy, before the following check.
-		    			 */
-		    			
-		    			Thread.sleep(WAIT_TIME_IN_MILLISECONDS_MAIN_THREAD);
-		    			if (!threads.get(selectedThread).isBusy()){
-		    				if(!threads.get(selectedThread).t.equals(Thread.currentThread())){//If the assigned thread isn't busy we have to restart it
-		    					try {
-		    						if (VERBOSE){
-		    							System.out.println("Main thread joining (at this point) thread:"+selectedThread);
-		    						}
-		    						threads.get(selectedThread).t.join(); /**So as not to cancel the thread we join it. 
-		    						* If the thread was not busy, this shouldn't be a problem.
-		    						* */
-		    					}
-		   						catch (InterruptedException e) {
-		   							System.out.println("Main thread Interrupted");
-		   						}
-		   					}
-		    				/**Now we start a new thread with the same hostnames as the previous
-		    				thread, but assigned to the current set of nextUrls.*/
-
-		    				threads.get(selectedThread).t= new Thread (threads.get(selectedThread));	
-		    				threads.get(selectedThread).t.start();
-			    			if (VERBOSE)
-	    						System.out.println("Selected Thread Restarted (at this point): "+selectedThread);
+		    if (virtualThreadFetching){
+		    	/**Each fetch runs on its own virtual thread, and the main thread dispatches the URLs of all hosts.*/
+		    	dispatchOnVirtualThreads();
+		    }
+		    else {
+			    workers=Executors.newCachedThreadPool(new ThreadFactory(){
+					private int count=0;
+					public synchronized Thread newThread(Runnable r) {
+						return new Thread(r, "CrawlerThread-"+(count++));
+					}
+				});
 
-	    				}
-	    				/**If the selected thread was busy, then it will find the hostname in it's list and process the corresponding pages.*/	
-		    		}
-		    	}
-		    	
-		    	nextUrls2.clear();
-		    	
-		    	//Now the main thread must process the tentativeUrls, adding those that are valid, to the nextUrls list.
-		    	List<ItemUrl> tentativeUrls2=new ArrayList<ItemUrl>();
-		    	synchronized (tentativeUrls_lock){
-		    		tentativeUrls2.addAll(tentativeUrls);
-		    		tentativeUrls.clear();
-		    	}
-		    	List<ItemUrl> tentativeValidUrls= new ArrayList<ItemUrl>();;
-		    	for (ItemUrl url: tentativeUrls2){
-		    			if (isValid(url.getUrl())){//Step (4)
-		    				tentativeValidUrls.add(url); 
-		    			}
-		    	}
-		    	tentativeUrls2.clear();
+			    /**Start of parallelized execution*/
+			    List<String> newHosts=frontier.awaitNewHosts();
+			    while (!newHosts.isEmpty()){ /**The crawling proceeds until the frontier is empty and no URL or page is still being processed.
+			    	                        * 
+			    	                        * In this while loop the main thread only assigns each new hostname to a thread, starting threads as needed.
+			    	                        * It sleeps until the frontier reports new hostnames, or the end of the crawl.
+			    	                        * 
+			    	                        * The threads themselves will consult the frontier and crawl and/or index, according to their hostnames. 
+			    	                        * They are started once, and wait on the frontier while they have no work.
+			    	                        * The detected outlinks are checked by the extract stage of the pipeline (steps 1, 2, 4 and 5), and
+			    	                        * added to the frontier, so threads can process these URLs.
+			    	                        * 
+			    	                        **/
 		    	
-		    	/**Now the main thread checks if among the tentativeValidUrls there are repeated URLs. 
-		    	*  If so, it will only allow the one with the lowest depth. Step(1)
-		    	**/
-		    	tentativeUrls2.addAll(cleanUrlList(tentativeValidUrls));//Step (1)
-		    	
-		    	/**Now the main thread checks for excluded URLs in the tentative list
-		    	 */
-				/** Now we remove the excluded URLs from the seeds list (Step(5))
-				 */
-		    	tentativeValidUrls.clear();
-				synchronized (excludedUrls_lock){
-					tentativeValidUrls.addAll(removeExcluded(tentativeUrls2, excludedUrls));
-				}
-				tentativeUrls2.clear();
-				tentativeUrls2.addAll(tentativeValidUrls);
-				
-		    	nextUrls2.addAll(tentativeUrls2);
-
-		    	List<URL> visitedUrls2 = new ArrayList<URL> ();
-		    	synchronized (visitedUrls_lock){
-		    		visitedUrls2.addAll(visitedUrls);
-		    	}
-		    	synchronized (nextUrls_lock){
-		    		List <ItemUrl> auxList = new ArrayList<ItemUrl>();
-		    		auxList.addAll(nextUrls);
-		    		auxList.addAll(nextUrls2); //tentative URLs
-		    		nextUrls.clear();
-		    		nextUrls.addAll(cleanUrlList(auxList));//From repeated URLs, only the one with lower depth is kept while merging tentative URLs and nextURLs (Step (1))
-		    		auxList.clear();
-		    		auxList.addAll(nextUrls);
-		    		nextUrls.clear();
-		    		nextUrls.addAll(removeVisited(auxList, visitedUrls2));//Step (2)
-		    		nue=nextUrls.isEmpty();		    		//Update of flags
-		    	}
-		    	synchronized (tentativeUrls_lock){
-		    		tue=tentativeUrls.isEmpty();//Update of flags
-		    	}
-		    	tb=threadsBusy(); //Update of flags
+			    	for (String host : newHosts){
+			    		int selectedThread=-1;
+			    		/**The hostIndex map will be used to map each thread to a host
+			    		 * It is locked, since idle threads can take hosts over (see stealHost).
+			    		 * */
+			    		synchronized (assignment_lock){
+				    		if(hostIndex.get(host)!=null){ //A specialized thread already exists for this hostname
+				    			continue;
+				    		}
+				    		if (threads.size()>=MAX_NUM_THREADS){ //We cannot start a new thread
+				    			selectedThread=getLeastLoadedThread(); //So we assign to the thread with the least work ahead.
+				    			threads.get(selectedThread).addHost(host);//We add the host to the threads hostnames list
+				    			hostIndex.put(host, selectedThread); //We assign the host to the thread
+				    		}
+				    		else{ //Threads available for starting
+				    			threads.add(new CrawlerThread(threads.size()));
+				    			selectedThread=threads.size()-1;
+				    			threads.get(selectedThread).addHost(host);
+				    			hostIndex.put(host, selectedThread);
+				    			workers.execute(threads.get(selectedThread));
+				    		}
+			    		}
+			    		if (threads.size()>=MAX_NUM_THREADS){
+			    			frontier.signal(); //The thread may be waiting for work of its other hosts.
+			    		}
+			    		if (DEBUG_MODE){
+			    			System.out.println("Host "+host+" assigned to thread "+selectedThread);
+			    		}
+			    	}
 		    	
-	    		if (DEBUG_MODE){
-	    			System.out.println("Main thread is still alive!: Stopping flags:"+!tue+" "+!nue+" "+tb);
-	    			if (tue && nue && tb){
-	    				System.out.println("At this point Main thread is only waiting for threads to finish.");
-	    				System.out.println("Threads Status:");
-	    				for (int i=0; i<threads.size(); i++){
-	    					System.out.println("Thread "+i+" isBusy="+threads.get(i).isBusy());
-	    				}
-	    			}
-	    		}
-		    	if(!tue || !nue || tb){//If the while loop will continue...
-		    		try {
-						Thread.sleep(WAIT_TIME_IN_MILLISECONDS_MAIN_THREAD); //Wait while everyone else does the work.
-					} catch (InterruptedException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
-		    		if (DEBUG_MODE){
-		    			System.out.println("Main thread Slept 1 second. Stopping flags:"+!tue+" "+!nue+" "+tb);
-		    		}
-		    	}
-
-		    	//The flags are updated after the short nap.
-		    	synchronized (nextUrls_lock){
-		    		nue=nextUrls.isEmpty();
-		    	}
-		    	synchronized (tentativeUrls_lock){
-		    		tue=tentativeUrls.isEmpty();
-		    	}
-		    	tb=threadsBusy();
+			    	if (DEBUG_MODE){
+			    		System.out.println("Main thread is still alive!: Pending urls: "+frontier.size());
+			    		System.out.println("Pipeline queues: "+getPipelineQueueDepths());
+			    	}
+			    	newHosts=frontier.awaitNewHosts();
+			    }
+			    //End of while loop
 		    }
-		    //End of while loop
 		    
 			if (VERBOSE){
     			System.out.println("Main thread finished crawling. Next step: joining with helper threads.");
     		}
 			
-		    /** Just to be sure, the Main thread will now join all helper threads.
+		    /** The frontier has woken up all helper threads, which find the crawl over and finish. The Main thread waits for them.
 			*/
-			for (int i=0; i<threads.size(); i++){
-				if (!threads.get(i).t.equals(Thread.currentThread())){
-		    		if (VERBOSE)
-		    			System.out.println("Main thread joined with Thread: "+i);
-		    		threads.get(i).t.join();
-		    	}
-		    }
+		    stopWorkers();
 		    /**End of parallelized execution*/
 		    
+		    /**All documents have been added, so the pipeline can be stopped, and the index writer committed and closed.*/
+		    stopCheckpointTimer();
+		    stopPipeline();
+		    closeIndexWriter();
+		    closeRecrawlStore();
+		    
 			
-			/**Now we store the visited URLs*/
-		    PrintWriter writer;
+			/**The visited URLs have been stored while crawling, so the visited file only needs to be closed.*/
+		    closeVisitedWriter();
 			String prefix="";
-			try {
-				if (!usingNonDefaultIndex){
-					prefix=DEFAULT_INDEX_FOLDER;
-				}
-				else{
-					prefix=indexFolderAddress;
-				}
-				List<URL> auxList = new ArrayList<URL>();
-				auxList.addAll(visitedUrls);
-				visitedUrls.clear();
-				visitedUrls.addAll(removeRepeated(auxList));
-				FileOutputStream writer2 =  new FileOutputStream(prefix+"/"+VISITED_FILE);
-				writer2.write((new String("")).getBytes());
-				writer2.close();
-				writer = new PrintWriter(new File (prefix+"/"+VISITED_FILE), "UTF-8");
-				
-				for (int s=0; s<visitedUrls.size(); s++){
-		    		writer.println(visitedUrls.get(s).toString());
-		    	}
-				writer.close();
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-			
-			/**Now we store the excluded URLs*/
+			
+			/**Now we store the excluded URLs*/
 			try {
 				if (!usingNonDefaultIndex){
 					prefix=DEFAULT_INDEX_FOLDER;
@@ -892,34 +1028,26 @@ public class WebCrawler {
 					prefix=indexFolderAddress;
 				}
 
-				List<URL> auxList = new ArrayList<URL>();
-				auxList.addAll(excludedUrls);
-				excludedUrls.clear();
-				excludedUrls.addAll(removeRepeated(auxList));
-				FileOutputStream writer2 =  new FileOutputStream(prefix+"/"+EXCLUDED_FILE);
-				writer2.write((new String("")).getBytes());
-				writer2.close();
-				writer = new PrintWriter(new File (prefix+"/"+EXCLUDED_FILE), "UTF-8");
-				for (int s=0; s<excludedUrls.size(); s++){
-		    		writer.println(excludedUrls.get(s).toString());
-		    	}
-				writer.close();
+				saveExclusions(prefix);
 			} catch (IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
 			
+			/**The crawl is completed, so there is nothing left to resume.*/
+			new File(indexFolderAddress+"/"+CHECKPOINT_FILE).delete();
+			
 			if (VERBOSE){
 				System.out.println("********************************************");
 				System.out.println("Crawling completed successfully.");
+				System.out.println("Crawl metrics: "+metrics);
+				System.out.println("Bytes by host (transferred/decoded): "+metrics.getBytesByHost());
 				System.out.println("********************************************");
-				List <URL> newlyVisitedUrls = new ArrayList<URL>();
-				newlyVisitedUrls.addAll(visitedUrls);
-				newlyVisitedUrls.removeAll(previouslyVisitedUrls);
+				List <String> newlyVisitedUrls = readLines(new File(indexFolderAddress+"/"+VISITED_FILE), visitedFileStart);
 				
-				List <URL> newlyExcludedUrls = new ArrayList<URL>();
+				List <CrawlUrl> newlyExcludedUrls = new ArrayList<CrawlUrl>();
 				newlyExcludedUrls.addAll(excludedUrls);
-				newlyExcludedUrls.removeAll(previouslyExcludedUrls);
+				newlyExcludedUrls.removeAll(new HashSet<CrawlUrl>(previouslyExcludedUrls));
 
 				
 				if (newlyVisitedUrls.isEmpty()){
@@ -931,15 +1059,9 @@ public class WebCrawler {
 					
 					/**This extra processing is to print them alphabetically */
 					
-					String [] list2 = new String [newlyVisitedUrls.size()];
-					int i=0;
-					for (URL url: newlyVisitedUrls){
-						list2[i]=url.toString();
-						i++;
-					}
-					Arrays.sort(list2);
-					for (int j=0; j<newlyVisitedUrls.size(); j++){
-						System.out.println(list2[j]);
+					Collections.sort(newlyVisitedUrls);
+					for (String url: newlyVisitedUrls){
+						System.out.println(url);
 					}
 					System.out.println("********************************************");
 				}
@@ -955,7 +1077,7 @@ public class WebCrawler {
 					
 					String [] list2 = new String [newlyExcludedUrls.size()];
 					int i=0;
-					for (URL url: newlyExcludedUrls){
+					for (CrawlUrl url: newlyExcludedUrls){
 						list2[i]=url.toString();
 						i++;
 					}
@@ -984,6 +1106,168 @@ public class WebCrawler {
 		isCrawling=false;
 	}
 
+	/**
+	 * Function that opens the index writer shared by all threads during a crawl.
+	 * 
+	 * @param indexFolder index location
+	 * @param createIndex if true, the index is created (overwriting any existing index), if false, it is appended to.
+	 * 
+	 * @return index writer for the selected directory.
+	 * 
+	 * @throws IOException if the directory cannot be accessed or the index is locked.
+	 */
+	@SuppressWarnings("deprecation")
+	private IndexWriter openIndexWriter(String indexFolder, boolean createIndex) throws IOException{
+		Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_4_10_0);
+		IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_10_0, analyzer);
+		if (createIndex){
+			iwc.setOpenMode(OpenMode.CREATE);	
+		}
+		else{ //Note: Here we assume that the Index exists. This has been checked before, upon user input.
+			iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
+		}
+		return new IndexWriter(FSDirectory.open(new File(indexFolder)), iwc);
+	}
+	
+	/**
+	 * Function that loads into the near-duplicate detector the fingerprints of the pages in the index, including the ones 
+	 * not committed yet.
+	 */
+	private void loadFingerprints(){
+		try {
+			DirectoryReader reader=DirectoryReader.open(indexWriter, true);
+			try {
+				Bits liveDocs=MultiFields.getLiveDocs(reader);
+				Set<String> fieldsToLoad=new HashSet<String>(Arrays.asList("url", "simhash"));
+				for (int i=0; i<reader.maxDoc(); i++){
+					if (liveDocs!=null && !liveDocs.get(i)){
+						continue; //Deleted, or replaced by a newer version.
+					}
+					Document doc=reader.document(i, fieldsToLoad);
+					if (doc.get("url")!=null && doc.get("simhash")!=null){
+						nearDuplicates.checkAndAdd(doc.get("url"), new BigInteger(doc.get("simhash"), 16).longValue());
+					}
+				}
+			}
+			finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("The fingerprints of the pages indexed could not be loaded. Their near-duplicates will be indexed.");
+		}
+	}
+	
+	/**
+	 * Function that creates the Lucene document for a page, from the values of its fields.
+	 * 
+	 * The code and title are boosted by 2.0 and 1.5 respectively. The code is only boosted if it has code.
+	 * The programming language field is boosted by 1.5, if a programming language was detected.
+	 * The fingerprint for near-duplicate detection is only stored, and is missing in documents logged by earlier versions.
+	 * 
+	 * @param fields values for the fields: title, url, code, content, programming_language, summary and simhash, in this order.
+	 * 
+	 * @return document ready to be indexed.
+	 */
+	@SuppressWarnings("deprecation")
+	private Document createLuceneDocument(String [] fields){
+		Document luceneDoc= new Document();
+		TextField field1=new TextField("title", fields[0], Field.Store.YES);
+		field1.setBoost((float)1.5);
+		luceneDoc.add(field1);
+		Field field2=new Field ("url", fields[1], Field.Store.YES, Field.Index.NOT_ANALYZED, Field.TermVector.NO);
+		field2.setBoost((float)1.0);
+		luceneDoc.add(field2);
+		TextField field3= new TextField("code", fields[2], Field.Store.YES);
+		if(fields[2].length()>2){
+			field3.setBoost((float)2.0); //We boost the field.			
+		}
+		luceneDoc.add(field3);
+		TextField field4=new TextField("content", fields[3], Field.Store.YES);
+		field4.setBoost((float)1.0);
+		luceneDoc.add(field4);
+		TextField field5=new TextField("programming_language", fields[4], Field.Store.YES);
+		if (fields[4].length()>2){
+			field5.setBoost((float)1.5);
+		}
+		luceneDoc.add(field5);
+		Field field6 = new Field("summary", fields[5], Field.Store.YES, Field.Index.NOT_ANALYZED, Field.TermVector.NO);
+		field6.setBoost(0);//The summary is only a back-up and not to be used for searching.
+		luceneDoc.add(field6);
+		if (fields.length>6 && !fields[6].isEmpty()){
+			luceneDoc.add(new StoredField("simhash", fields[6]));
+		}
+		return luceneDoc;
+	}
+	
+	/**
+	 * Function that opens the log of pending documents of an index, and starts the commit scheduler over it.
+	 * 
+	 * If requested, the documents left in the log by a previous crawl that did not finish (that is, documents that were
+	 * never committed) are indexed again first.
+	 * 
+	 * @param indexFolder index location
+	 * @param replay if true, pending documents of a previous crawl are indexed, otherwise they are discarded.
+	 * 
+	 * @throws IOException if the log cannot be read or the replayed documents cannot be committed.
+	 */
+	private void startCommitScheduler(String indexFolder, boolean replay) throws IOException{
+		pendingLog=new PendingDocumentLog(new File(indexFolder, PENDING_LOG_FILE), SYNC_PENDING_LOG);
+		if (replay){
+			List<String[]> pending=pendingLog.readAll();
+			for (String [] fields: pending){
+				indexWriter.updateDocument(new Term("url", fields[1]), createLuceneDocument(fields));
+			}
+			if (!pending.isEmpty()){
+				indexWriter.commit();
+				if (VERBOSE){
+					System.out.println("Recovered "+pending.size()+" pages indexed but not committed by a previous crawl.");
+				}
+			}
+		}
+		pendingLog.truncate();
+		commitScheduler=new CommitScheduler(indexWriter, pendingLog, commitEveryNDocuments, commitEveryNSeconds, commitEveryNMegabytes);
+	}
+	
+	/**
+	 * Function that commits and closes the index writer of the current crawl, if any. It also releases its directory
+	 * and the log of pending documents.
+	 */
+	private void closeIndexWriter(){
+		if (commitScheduler!=null){
+			try {
+				commitScheduler.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("The last pages could not be committed. They will be recovered in the next crawl.");
+			}
+			commitScheduler=null;
+		}
+		if (pendingLog!=null){
+			try {
+				pendingLog.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			pendingLog=null;
+		}
+		if (indexWriter!=null){
+			Directory indexDir=indexWriter.getDirectory();
+			try {
+				indexWriter.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("The index could not be closed properly.");
+			}
+			try {
+				indexDir.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			indexWriter=null;
+		}
+	}
+	
 	/**
 	 * Function to assert if crawler is busy crawling
 	 * 
@@ -1032,6 +1316,20 @@ public class WebCrawler {
 		}
 	}
 	
+	/**
+	 * Function that sets the commit policy for the next crawls. The index is committed as soon as one of the limits
+	 * is reached. Pages not yet committed are kept in a log, and recovered if the crawling does not finish.
+	 * 
+	 * @param documents commit after this number of documents. 0 for no limit.
+	 * @param seconds commit after this number of seconds, if there are pending documents. 0 for no limit.
+	 * @param megabytes commit after this number of megabytes of pending documents. 0 for no limit.
+	 */
+	public void setCommitPolicy(int documents, int seconds, int megabytes){
+		this.commitEveryNDocuments=documents;
+		this.commitEveryNSeconds=seconds;
+		this.commitEveryNMegabytes=megabytes;
+	}
+	
 	/**
 	 * Function to check if crawler is using a non-default index
 	 * 
@@ -1053,45 +1351,14 @@ public class WebCrawler {
 	 * @author Gabriel
 	 */
 	public List<String> getVisitedPages (String address){
-		List<String> results=new ArrayList<String>();
-		BufferedReader reader=null;  
-		try {
-			reader = new BufferedReader(new FileReader(address+"/"+VISITED_FILE));
-			String line = null;
-			while ((line = reader.readLine()) !=null){
-				markAsVisited(new URL((line.toString()))); //The visited URLs file is read and loaded to the visited array.
-			}
-		}
-		catch (Exception e) {
-			e.printStackTrace();
+		File file=new File(address+"/"+VISITED_FILE);
+		if (!file.exists()){
 			System.out.println("Visited URLs file not found");
-			visitedUrls.clear();
-			return results;
-		} finally {
-			try {
-				reader.close();
-			} catch (Exception e) {
-			  e.printStackTrace();
-			  visitedUrls.clear();
-			  return results;
-			}
-		}		
-		if (!visitedUrls.isEmpty()){
-			/**This extra processing is to return them alphabetically */
-				
-			String [] list = new String [visitedUrls.size()];
-			int i=0;
-			for (URL url: visitedUrls){  
-				list[i]=url.toString();
-				i++;
-			}
-			Arrays.sort(list);
-			for (int j=0; j<visitedUrls.size(); j++){
-				results.add(list[j]);
-			}	
+			return new ArrayList<String>();
 		}
-		visitedUrls.clear();
-		return results;
+		/**The file is read directly, without touching the visited set, which might be in use by a crawl.
+		 * A sorted set returns them alphabetically, and without repetitions.*/
+		return new ArrayList<String>(new TreeSet<String>(readLines(file, 0)));
 	}
 
 	/**
@@ -1111,7 +1378,7 @@ public class WebCrawler {
 			reader = new BufferedReader(new FileReader(address+"/"+EXCLUDED_FILE));
 			String line = null;
 			while ((line = reader.readLine()) !=null){
-				excludedUrls.add(new URL((line.toString()))); //The excluded URLs file is read and loaded to the excluded array.
+				excludedUrls.add(CrawlUrl.parse(line)); //The excluded URLs file is read and loaded to the excluded array.
 			}
 		}
 		catch (Exception e) {
@@ -1133,7 +1400,7 @@ public class WebCrawler {
 				
 			String [] list = new String [excludedUrls.size()];
 			int i=0;
-			for (URL url: excludedUrls){  
+			for (CrawlUrl url: excludedUrls){  
 				list[i]=url.toString();
 				i++;
 			}
@@ -1148,36 +1415,36 @@ public class WebCrawler {
 	
 	
 	/**
-	 * Function to check if a URL has been marked as excluded
+	 * Function to check if a URL has been marked as excluded.
+	 * If the robots.txt rules of its host are cached, they decide. Otherwise, the excluded list is checked, through its trie.
+	 * Note: It takes no lock.
 	 * 
 	 * @author Gabriel
 	 * @param pageLink url of page to check
-	 * @return true if url appears in excluded list, otherwise false. 	   
+	 * @return true if url is disallowed by its host, or appears in excluded list, otherwise false. 	   
 	 */
-	private boolean isExcluded (URL pageLink){
-		boolean result=false;
-		synchronized (excludedUrls_lock){
-
-			for (int i=0; i<excludedUrls.size(); i++){
-				if (pageLink.toString().startsWith(excludedUrls.get(i).toString()+"/") || pageLink.toString().trim().equals(excludedUrls.get(i).toString().trim())){
-					result=true;
-					i=excludedUrls.size();
-				}
-			}
+	private boolean isExcluded (CrawlUrl pageLink){
+		RobotsRules rules=robotsCache.getIfPresent(pageLink.getOrigin());
+		if (rules!=null){
+			return !rules.isAllowed(pageLink.getPath());
 		}
-		return result;
+		return exclusions.matches(pageLink);
 	}
 	
 	/**
 	 * Function to check if a URL is valid
 	 * 
-	 * At this point the function only returns true, but it's left as an easy alternative
-	 * for embedding additional URL verifications, in the future.
+	 * At this point the function only rejects links to binary files, by their extension (see PageFetcher.hasBinaryExtension), 
+	 * so they are never requested. It's left as an easy alternative for embedding additional URL verifications, in the future.
 	 * 
 	 * @param pageLink url of page to check
-	 * @return true if url is valid, false otherwise. As shipped, it is always true.  
+	 * @return true if url is valid, false otherwise.
 	 */
-	private boolean isValid (URL pageLink){
+	private boolean isValid (CrawlUrl pageLink){
+		if (PageFetcher.hasBinaryExtension(pageLink.toString())){
+			metrics.recordSkippedByExtension();
+			return false;
+		}
 		return true;
 	}
 	
@@ -1186,316 +1453,917 @@ public class WebCrawler {
 	 * @param list list from which elements will be removed
 	 * @param blocked list of elements that should be removed from former list
 	 * 
-	 * @return array list of type URL, with cleaned-up urls. This list can be empty.
+	 * @return array list of type CrawlUrl, with cleaned-up urls. This list can be empty.
 	 */
-	private List<URL> removeIfExistsInOtherList(List<URL> list, List <URL> blocked){
-		List<URL> results = new ArrayList<URL>();
-		results.addAll(list);
-		Set<Integer> removeList= new LinkedHashSet<Integer>(100);
-		for (int i=0; i<results.size(); i++){
-			for (URL url: blocked){
-				if (url.toString().equals(results.get(i).toString())){
-					removeList.add(i);
-				}
+	private List<CrawlUrl> removeIfExistsInOtherList(List<CrawlUrl> list, List <CrawlUrl> blocked){
+		List<CrawlUrl> results = new ArrayList<CrawlUrl>();
+		Set<CrawlUrl> blockedSet= new HashSet<CrawlUrl>(blocked);
+		for (CrawlUrl url: list){
+			if (!blockedSet.contains(url)){
+				results.add(url);
 			}
 		}
-		int removedSoFar=0;
-		for (int i: removeList){
-			results.remove(i-removedSoFar);//This handles the shift from previous removals.
-			removedSoFar++;
-		}
 		return results;
 	}
 
-	/**Helper function that removes repeated URLs from a list
+	/**Helper function that removes repeated URLs from a list, keeping the first occurrence of each.
 	 * 
 	 * @param list list from which urls should be removed
-	 * @return array list of type URL, with cleaned-up urls. This list can be empty.
+	 * @return array list of type CrawlUrl, with cleaned-up urls. This list can be empty.
 	 */
-	private List<URL> removeRepeated (List<URL> list){
-		List<URL> results = new ArrayList<URL>();
-		results.addAll(list);
-		Set<Integer> removeList= new LinkedHashSet<Integer>(100); 
-		for (int i=0; i<results.size(); i++){
-			for (int j=i+1; j<results.size(); j++){
-				if(results.get(i).toString().equals(results.get(j).toString())){
-					removeList.add(j);
-				}
-			}
-		}
-		int removedSoFar=0;
-		for (int i: removeList){
-			if ((i-removedSoFar)>0){
-				results.remove(i-removedSoFar);//This handles the shift from previous removals.
-			}
-			removedSoFar++;
-		}
-		return results;
+	private List<CrawlUrl> removeRepeated (List<CrawlUrl> list){
+		return new ArrayList<CrawlUrl>(new LinkedHashSet<CrawlUrl>(list));
 	}
 	
 	/**
-	 * Helper function that takes a list of ItemUrl and returns a list without repeated ItemURL.urls,
-	 * storing only the one with lowest depth (as this has a higher coverage, causing more crawling).
+	 * Function to check if a URL has been visited
+	 * Note: Membership is checked in the visited set, in constant time and without a global lock.
 	 * 
-	 * @param list from which ItemUrls will be cleaned-up
+	 * @param pageLink
 	 * 
-	 * @return array list of type ItemUrl, with cleaned-up urls. This list can be empty.
+	 * @return true if url has been visited, false otherwise.
 	 *  
 	 */
-	private List<ItemUrl> cleanUrlList (List<ItemUrl> list){
-		List<ItemUrl> result = new ArrayList<ItemUrl>();
-    	List<Integer> discardPositions = new ArrayList<Integer>();
-    	for (int i=0; i<list.size(); i++){
-    		if (!discardPositions.contains((Integer)i)){
-    			List <Integer> testPositions = new ArrayList<Integer>();
-    			testPositions.add(i);
-    			String iurl= list.get(i).getUrl().toString();
-    			for (int j=i+1; j<list.size(); j++){
-    				if(iurl.equals(list.get(j).getUrl().toString())){
-    					testPositions.add(j);
-    				}
-    			}
-    			if(testPositions.size()==1){
-    				result.add(list.get(i));
-    			}
-    			else{
-    				discardPositions.addAll(testPositions);
-    				ItemUrl selectedItem = new ItemUrl (list.get(testPositions.get(0)).getUrl(), list.get(testPositions.get(0)).getDepth());
-    				for (int k=1; k<testPositions.size(); k++){
-    					if(list.get(testPositions.get(k)).getDepth()<selectedItem.getDepth()){
-    						selectedItem.setDepth(list.get(testPositions.get(k)).getDepth());
-    					}
-    				}
-    				result.add(selectedItem);
-    			}
-    		}
-    	}
-    	return result;
-    }
-
-    	/**
-    	 * Helper function that takes a list of nextUrls and returns a list with the same items, but
-    	 * without visited URLs, according to the visitedUrls2 list passed as input.
-    	 * 
-    	 * @param nextUrls2
-    	 * @param visitedUrls2
-    	 * 
-    	 * @return array list of type ItemUrl, with cleaned-up urls. This list can be empty.
-    	 *  
-    	 */
-    	private List<ItemUrl> removeVisited (List<ItemUrl> nextUrls2, List<URL> visitedUrls2){
-    		List <ItemUrl> result = new ArrayList<ItemUrl>();
-        	for (int i=0; i<nextUrls2.size(); i++){
-        		boolean wasVisited=false;
-        		for (int j=0; j<visitedUrls2.size(); j++){
-        			if (nextUrls2.get(i).getUrl().toString().equals(visitedUrls2.get(j).toString())){
-        				wasVisited=true;
-        				j=visitedUrls2.size();
-        			}
-        		}
-        		if (!wasVisited){
-        			result.add(nextUrls2.get(i));
-        		}
-        	}
-			return result;
-    	}
-    	
-    	/**
-    	 * Helper function that takes a list of nextUrls and returns a list with the same items, but
-    	 * without excluded URLs, according to the visitedUrls2 list passed as input.
-    	 * 
-    	 * @param nextUrls2
-    	 * @param visitedUrls2
-    	 * 
-    	 * @return array list of type ItemUrl, with cleaned-up urls. This list can be empty.
-    	 *  
-    	 */
-    	private List<ItemUrl> removeExcluded (List<ItemUrl> nextUrls2, List<URL> visitedUrls2){
-    		List <ItemUrl> result = new ArrayList<ItemUrl>();
-        	for (int i=0; i<nextUrls2.size(); i++){
-        		boolean isExcluded=false;
-        		for (int j=0; j<visitedUrls2.size(); j++){
-        			if (nextUrls2.get(i).getUrl().toString().startsWith(visitedUrls2.get(j).toString()+"/") ||
-        				nextUrls2.get(i).getUrl().toString().trim().equals(visitedUrls2.get(j).toString().trim()))
-        			{
-        				isExcluded=true;
-        				j=visitedUrls2.size();
-        			}
-        		}
-        		if (!isExcluded){
-        			result.add(nextUrls2.get(i));
-        		}
-        	}
-			return result;
-    	}
-
+	private boolean isVisited (CrawlUrl pageLink){
+		if (pageLink.toString().isEmpty()){
+			return false;
+		}
+		return visitedUrls.contains(normalizer.key(pageLink));
+	}
 	
 	/**
-	 * Function to check if a URL has been visited
-	 * Note: Uses visitedUrls_lock
-	 * Additionally we perform some special checks so as to prevent visiting the same page when it has different URLS.
-	 * But given that this is a very site-specific issue, we only include our approach for stackoverflow.com. Something
-	 * similar could be done in the future for more sites. Our approach for stackoverflow.com could also be improved.
+	 * Function to mark a URL as visited. If it was not visited yet, it is also appended to the visited file.
 	 * 
 	 * @param pageLink
 	 * 
-	 * @return true if url has been visited, false otherwise.
-	 *  
+	 * @return true if it was not visited yet, false otherwise.
 	 */
-	private boolean isVisited (URL pageLink){
-		boolean result=false;
-		if (!pageLink.toString().isEmpty()){
-			boolean doStackoverflowCheck= pageLink.toString().contains("http://stackoverflow.com/questions/");
-			synchronized (visitedUrls_lock){
-				for (int i=0; i<visitedUrls.size(); i++){
-					if (visitedUrls.get(i).toString().equals(pageLink.toString())){
-						result= true;
-						i=visitedUrls.size();
-						break;
-					}
-					else if (doStackoverflowCheck && visitedUrls.get(i).toString().contains("http://stackoverflow.com/questions/")){
-						/*The stackoverflow check consists of asserting if what follows the ...questions/ is a number for both,
-						 * and then check if one string is contained in the other*/
-						String beginningPL = pageLink.toString().split("stackoverflow.com/questions/")[1];
-						String beginningVU = visitedUrls.get(i).toString().split("stackoverflow.com/questions/")[1];
-						beginningPL=beginningPL.split("/")[0];
-						beginningVU=beginningVU.split("/")[0];
-						boolean isNumberPL=true;
-						boolean isNumberVU=true;
-						try {  
-							@SuppressWarnings("unused")
-							double d = Double.parseDouble(beginningPL);  
-						}  
-						catch(NumberFormatException nfe){  
-							isNumberPL=false;  
-						}
-						try {  
-							@SuppressWarnings("unused")
-							double d2 = Double.parseDouble(beginningVU);  
-						}  
-						catch(NumberFormatException nfe){  
-							isNumberVU=false;  
-						}
-						if(isNumberPL&&isNumberVU){
-							if (pageLink.toString().contains(visitedUrls.get(i).toString()) ||
-								visitedUrls.get(i).toString().contains(pageLink.toString())	){
-								result= true;
-								i=visitedUrls.size();
-								break;
-							}
-						}
-					}
-				}
-
+	private boolean markAsVisited (CrawlUrl pageLink){
+		if (visitedUrls.add(normalizer.key(pageLink), pageLink.getOrigin())){
+			PrintWriter writer=visitedWriter;
+			if (writer!=null){
+				writer.println(pageLink.toString()); //PrintWriter is synchronized, so lines from different threads are not mixed.
 			}
+			return true;
 		}
-		return result;
+		return false;
 	}
 	
 	/**
-	 * Function to check if a URLs host has been visited. This is used for not visiting a host several times while chekcing for robots.txt.
-	 * Note: Uses visitedUrls_lock
+	 * Function to save the excluded URLs, the cached robots.txt rules and the evidence for the URL rules learned.
 	 * 
-	 * @param pageLink
+	 * @param indexFolder index location
 	 * 
-	 * @return true if the host has has been visited, false otherwise.
+	 * @throws IOException if a file cannot be written.
 	 */
-	private boolean isVisitedHost (URL pageLink){
-		boolean result=false;
-		if (!pageLink.toString().isEmpty()){
-			synchronized (visitedUrls_lock){
-				for (int i=0; i<visitedUrls.size(); i++){
-					if ((visitedUrls.get(i).getProtocol()+visitedUrls.get(i).getHost().toString()).equals(pageLink.getProtocol()+pageLink.getHost().toString())){
-						result=true;
-						i=visitedUrls.size();
-						break;
-					}
-				}
-			}
+	private void saveExclusions(String indexFolder) throws IOException{
+		List<CrawlUrl> excluded;
+		synchronized (excludedUrls_lock){
+			excluded=new ArrayList<CrawlUrl>(excludedUrls);
+		}
+		PrintWriter writer = new PrintWriter(new File (indexFolder+"/"+EXCLUDED_FILE), "UTF-8");
+		for (CrawlUrl url: excluded){
+			writer.println(url.toString());
 		}
-		return result;
+		writer.close();
+		robotsCache.save(new File(indexFolder+"/"+ROBOTS_CACHE_FILE));
+		dustRules.save(new File(indexFolder+"/"+DUST_RULES_FILE));
 	}
 	
 	/**
-	 * Function to mark a URL as visited, using locks
-	 * Note: Uses visitedUrls_lock
+	 * Function to start taking checkpoints of the current crawl periodically, if enabled.
 	 * 
-	 * @param pageLink
-	 *  
+	 * @param indexFolder index location
 	 */
-	private void markAsVisited (URL pageLink){
-		synchronized (visitedUrls_lock){
-			boolean mark=true;
-			for (int i=0; i<visitedUrls.size(); i++){
-				if (visitedUrls.get(i).toString().equals(pageLink.toString())){
-					mark=false;
-					i=visitedUrls.size();
+	private void startCheckpointTimer(final String indexFolder){
+		if (checkpointIntervalSeconds<=0){
+			return;
+		}
+		checkpointTimer=Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r) {
+				Thread t= new Thread(r, "CrawlCheckpoint");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		checkpointTimer.scheduleWithFixedDelay(new Runnable(){
+			public void run() {
+				try {
+					writeCheckpoint(indexFolder);
+				} catch (IOException e) {
+					e.printStackTrace();
+					System.out.println("The checkpoint of the crawl could not be written. It will be tried again.");
 				}
 			}
-			if (mark){
-				visitedUrls.add(pageLink);
+		}, checkpointIntervalSeconds, checkpointIntervalSeconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Function to stop taking checkpoints, waiting for one in progress, if any.
+	 */
+	private void stopCheckpointTimer(){
+		if (checkpointTimer!=null){
+			checkpointTimer.shutdown();
+			try {
+				checkpointTimer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
 			}
+			checkpointTimer=null;
 		}
 	}
-
+	
 	/**
-	 * Function to retrieve the position of the first free thread, if any
-	 * Note: Uses isBusy_lock from all existing threads.
+	 * Function to take a checkpoint of the current crawl. The URLs still to be crawled are taken from the frontier first, 
+	 * and then the files kept while crawling are brought up to date: URLs visited since then are in the checkpoint anyway.
+	 * The visited file grows incrementally, so only the frontier is written in full, URLs spilled to disk included. 
+	 * The new checkpoint replaces the previous one once all files are up to date.
+	 * 
+	 * @param indexFolder index location
 	 * 
-	 *  @return position of free thread, -1 if all are busy or threads array is empty.
+	 * @throws IOException if a file cannot be written.
 	 */
-	private int getFreeThread(){
-		for (int i= 0; i<threads.size(); i++){
-			if (!threads.get(i).isBusy())
-				return i;
+	private void writeCheckpoint(String indexFolder) throws IOException{
+		CrawlCheckpoint.Writer checkpoint=new CrawlCheckpoint.Writer(new File(indexFolder+"/"+CHECKPOINT_FILE), maxCrawlDepth, System.currentTimeMillis());
+		try {
+			frontier.snapshot(checkpoint);
+			PrintWriter writer=visitedWriter;
+			if (writer!=null){
+				writer.flush();
+			}
+			saveExclusions(indexFolder);
+			RecrawlStore store=recrawlStore;
+			if (store!=null){
+				store.save();
+			}
+		}
+		catch (IOException e){
+			checkpoint.abort();
+			throw e;
+		}
+		checkpoint.commit();
+		if (DEBUG_MODE){
+			System.out.println("Checkpoint taken, with "+checkpoint.getCount()+" URLs still to be crawled.");
+		}
+	}
+	
+	/**
+	 * Function to save the store of page versions of the current crawl, if any.
+	 */
+	private void closeRecrawlStore(){
+		if (recrawlStore!=null){
+			try {
+				recrawlStore.save();
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("The versions of the crawled pages could not be saved. They will be fetched in full on the next crawl.");
+			}
+			recrawlStore=null;
+		}
+	}
+	
+	/**
+	 * Function to close the writer of the visited file, if open, and the visited set file. The visited set file is marked with 
+	 * the length of the visited file, so the next crawl can tell they match.
+	 */
+	private void closeVisitedWriter(){
+		if (visitedWriter!=null){
+			visitedWriter.close();
+			visitedWriter=null;
 		}
-		return -1;
+		if (visitedFile!=null){
+			visitedUrls.sync(visitedFile.length());
+			visitedFile=null;
+		}
+		visitedUrls.close();
 	}
 	
 	/**
-	 * Function similar to getFreeThread. Checks if there is at least one busy thread.
+	 * Function to open the visited set file of an index. It is used as it is if it matches the visited file, that is, 
+	 * if it was closed after the last URL was appended to the visited file. Otherwise it is emptied, to be rebuilt.
 	 * 
-	 * Note: Uses isBusy_lock from all existing threads.
+	 * @param indexFolder index location
 	 * 
-	 *  @return true if one thread is busy, false if all are free or threads array is empty.
+	 * @return true if the visited set was loaded from its file, false if it is empty.
 	 */
-	private boolean threadsBusy (){
-		for (CrawlerThread thread: threads){
-			if (thread.isBusy())
-				return true;
+	private boolean openVisitedSet(String indexFolder){
+		try {
+			visitedUrls.open(new File(indexFolder+"/"+VISITED_SET_FILE));
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("The visited set file could not be opened. The visited set will be kept in memory.");
+			return false;
+		}
+		long mark=visitedUrls.getMark();
+		if (mark>=0 && mark==new File(indexFolder+"/"+VISITED_FILE).length()){
+			return true;
+		}
+		if (VERBOSE){
+			System.out.println("The visited set file does not match the visited URLs file. It will be rebuilt from it.");
 		}
+		visitedUrls.clear();
 		return false;
 	}
+	
+	/**
+	 * Function to read the lines of a file, starting at a given position.
+	 * 
+	 * @param file file to be read
+	 * @param start position in bytes of the first line to be read.
+	 * 
+	 * @return list of lines. This list can be empty.
+	 */
+	private List<String> readLines (File file, long start){
+		List<String> results=new ArrayList<String>();
+		BufferedReader reader=null;
+		try {
+			FileInputStream in=new FileInputStream(file);
+			in.getChannel().position(start);
+			reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+			String line = null;
+			while ((line = reader.readLine()) !=null){
+				results.add(line);
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			System.out.println("File could not be read: "+file.getPath());
+		} finally {
+			try {
+				if (reader!=null){
+					reader.close();
+				}
+			} catch (IOException e) {
+			  e.printStackTrace();
+			}
+		}
+		return results;
+	}
 
-	/**Nested class */
 	/**
+	 * Function to estimate the time a thread will need to fetch the pending URLs of a host: the number of URLs, by the
+	 * average time the host takes to answer.
 	 * 
-	 * CrawlerThread class implementing Runnable. It includes the crawling functionality for a single thread.
-	 * <p>
-	 * It was declared as a nested class for ease in the use of common & synchronized variables with the outer class.
+	 * @param host hostname
 	 * 
-	 * @author Gabriel, Rene
+	 * @return estimated time in milliseconds. 0 if the host has no pending URLs.
+	 */
+	private double getHostLoad(String host){
+		int pending=frontier.pendingCount(host);
+		if (pending==0){
+			return 0;
+		}
+		double latency=limiter.getAverageLatency(host);
+		return pending*(latency<0 ? DEFAULT_FETCH_TIME_IN_MILLISECONDS : latency);
+	}
+	
+	/**
+	 * Function to estimate the time a thread will need to fetch the pending URLs of all its hosts.
+	 * 
+	 * @param thread helper thread
 	 * 
+	 * @return estimated time in milliseconds.
 	 */
-	private class CrawlerThread implements Runnable {
-		/**Public class members */
-
-		/**The id of a thread (position in threads array of WebCrawler)*/
-		public int id;
-		/**The thread itself.*/
-		public Thread t;
-		
-		/**Private class members */
-		
-		/**isBusy flag, initially false*/
-		private boolean isBusy=false;
-		/**Lock for synchronized access to isBusy flag (since the main thread/crawler and the current thread can ask for it)*/
-		private Object isBusy_lock = new int[1];
-		
-		/**List array holding the hostnames assigned to this thread. Local copy, additional to the index in WebCrawler class*/
-		private List <String> hostnames = new ArrayList<String>(); //All the hostnames the thread is responsible for crawling.
-		/**Lock for synchronized access to hostnames (since the main thread/crawler and the current thread can ask for it)*/
-		private Object hostnames_lock = new int[1];
+	private double getThreadLoad(CrawlerThread thread){
+		double load=0;
+		for (String host: thread.getHosts()){
+			load+=getHostLoad(host);
+		}
+		return load;
+	}
+	
+	/**
+	 * Function to retrieve the position of the thread with the least work ahead, as estimated from the pending URLs of its hosts 
+	 * and the time these hosts take to answer. Among equally loaded threads, a free one with fewer hosts is preferred.
+	 * Note: It must be called with assignment_lock held.
+	 * 
+	 *  @return position of the thread, -1 if threads array is empty.
+	 */
+	private int getLeastLoadedThread(){
+		int selected=-1;
+		double selectedLoad=Double.MAX_VALUE;
+		for (int i= 0; i<threads.size(); i++){
+			CrawlerThread thread=threads.get(i);
+			double load=getThreadLoad(thread);
+			if (load<selectedLoad || (load==selectedLoad && !thread.isBusy() && 
+					(threads.get(selected).isBusy() || thread.getHosts().size()<threads.get(selected).getHosts().size()))){
+				selected=i;
+				selectedLoad=load;
+			}
+		}
+		return selected;
+	}
+	
+	/**
+	 * Function for an idle thread to take over a whole host from the most loaded thread. Whole hosts are moved, 
+	 * never single URLs, so each host is still crawled by one thread, and politeness is kept.
+	 * Only threads with pending URLs for at least two hosts give one away: their biggest one.
+	 * 
+	 * @param thief idle helper thread
+	 * 
+	 * @return true if a host was taken over, false if no thread had work to spare.
+	 */
+	private boolean stealHost(CrawlerThread thief){
+		String stolenHost=null;
+		CrawlerThread victim=null;
+		synchronized (assignment_lock){
+			double victimLoad=0;
+			for (CrawlerThread thread: threads){
+				if (thread==thief){
+					continue;
+				}
+				double load=0;
+				int pendingHosts=0;
+				String biggestHost=null;
+				double biggestLoad=0;
+				for (String host: thread.getHosts()){
+					double hostLoad=getHostLoad(host);
+					if (hostLoad>0){
+						pendingHosts++;
+						load+=hostLoad;
+						if (hostLoad>biggestLoad){
+							biggestLoad=hostLoad;
+							biggestHost=host;
+						}
+					}
+				}
+				if (pendingHosts>=2 && load>victimLoad){
+					victim=thread;
+					victimLoad=load;
+					stolenHost=biggestHost;
+				}
+			}
+			if (victim==null){
+				return false;
+			}
+			victim.removeHost(stolenHost);
+			thief.addHost(stolenHost);
+			hostIndex.put(stolenHost, thief.id);
+		}
+		if (DEBUG_MODE){
+			System.out.println("Host "+stolenHost+" taken over by thread "+thief.id+" from thread "+victim.id);
+		}
+		return true;
+	}
+	
+	/**
+	 * Function to wait until all helper threads are finished. They finish once the crawl is over, or the frontier is closed, 
+	 * after the URL each one is visiting.
+	 */
+	private void stopWorkers(){
+		if (workers!=null){
+			workers.shutdown();
+			try {
+				workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			workers=null;
+		}
+	}
+
+	/**
+	 * Function that makes sure the robots.txt rules of a URL's host are cached, fetching them if needed.
+	 * Whenever the rules of a host are new to the crawl, as the first time they are seen or after they are fetched again, 
+	 * their Crawl-delay is given to the politeness limiter and their disallowed plain paths are added to the excluded list.
+	 * Note: It can block while the rules are fetched, also by another thread.
+	 * 
+	 * @param pageLink url whose host rules are needed
+	 */
+	private void loadRobotsRules(CrawlUrl pageLink){
+		String origin=pageLink.getOrigin();
+		RobotsRules rules=robotsCache.get(origin, fetcher);
+		if (appliedRobotsRules.get(origin)!=rules && appliedRobotsRules.put(origin, rules)!=rules){
+			limiter.setCrawlDelay(pageLink.getHost(), origin, rules.getCrawlDelayMillis());
+			if (rules.isUnreachable()){
+				return; //Only until the file is fetched again, so nothing is added to the excluded list.
+			}
+			List<CrawlUrl> results = new ArrayList<CrawlUrl>();
+			for (RobotsRules.Rule rule: rules.getRules()){
+				if (!rule.isAllow() && rule.isLiteral() && !rule.getPattern().contains("?")){
+					try {
+						String tentativeURL=normalizer.normalize(origin+rule.getPattern());
+						if (tentativeURL!=null && !tentativeURL.equals(origin)){
+							results.add(CrawlUrl.parse(tentativeURL));
+						}
+					} catch (MalformedURLException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			addExcludedUrls(results);
+		}
+	}
+	
+	/**
+	 * Function that adds URLs to the excluded list, removing repeated ones.
+	 * Note: Uses excludedUrls_lock
+	 * 
+	 * @param newUrls list of urls to be excluded. It can be empty.
+	 */
+	private void addExcludedUrls(List<CrawlUrl> newUrls){
+		if (!newUrls.isEmpty()){
+			synchronized (excludedUrls_lock){
+				for (CrawlUrl url: newUrls){
+					if (exclusions.add(url)){ //Only URLs new to the trie are listed, so the list has no repeated ones.
+						excludedUrls.add(url);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Function to get the counters of what was downloaded, and what was skipped to avoid downloading it, during the current or
+	 * last crawl.
+	 * 
+	 * @return the counters.
+	 */
+	public CrawlMetrics getMetrics(){
+		return metrics;
+	}
+	
+	/**
+	 * Function to get the number of items waiting at each step of the crawling: the URLs waiting to be fetched, and the 
+	 * pages waiting in the queue of each stage of the pipeline. It can be used to size the stages.
+	 * 
+	 * @return map from the name of each step to the number of waiting items, in processing order. It is empty when not crawling.
+	 */
+	public Map<String,Integer> getPipelineQueueDepths(){
+		Map<String,Integer> results=new LinkedHashMap<String,Integer>();
+		CrawlPipeline current=pipeline;
+		if (current!=null){
+			results.put("fetch", (int)Math.min(Integer.MAX_VALUE, frontier.size()));
+			results.putAll(current.getQueueDepths());
+		}
+		return results;
+	}
+	
+	/**
+	 * Function that sets the number of threads of each stage of the pipeline, and the capacity of their queues, for the next crawls.
+	 * The fetching is done by the crawler threads, up to MAX_NUM_THREADS, or on virtual threads (see setVirtualThreadFetching).
+	 * 
+	 * @param parse number of threads parsing pages
+	 * @param extract number of threads extracting outlinks, code, programming language and summary from pages
+	 * @param index number of threads adding pages to the index
+	 * @param queueCapacity maximum number of pages waiting in front of each stage. When full, the previous stage waits.
+	 */
+	public void setPipelineSizes(int parse, int extract, int index, int queueCapacity){
+		this.parseThreads=parse;
+		this.extractThreads=extract;
+		this.indexThreads=index;
+		this.pipelineQueueCapacity=queueCapacity;
+	}
+	
+	/**
+	 * Function to get the normalizer of the URLs found, so that rules for more sites can be added to it with addRule.
+	 * 
+	 * @return the normalizer.
+	 */
+	public UrlNormalizer getUrlNormalizer(){
+		return normalizer;
+	}
+	
+	/**
+	 * Function that sets the time between checkpoints of the next crawls. A crawl that is stopped can be resumed from its 
+	 * latest checkpoint with resume.
+	 * 
+	 * @param seconds time between checkpoints, in seconds. 0 for no checkpoints.
+	 */
+	public void setCheckpointInterval(int seconds){
+		this.checkpointIntervalSeconds=seconds;
+	}
+	
+	/**
+	 * Function that sets the recrawl mode for the next crawls on an existing index (resetIndex false).
+	 * <p>
+	 * In recrawl mode, the pages visited before are not skipped, but crawled again, each at the depth it was crawled before, 
+	 * next to the seeds. They are requested conditionally, with their stored ETag and Last-Modified date. If the server
+	 * answers that a page is not modified, or its content has the same hash as before, it is neither parsed nor indexed again.
+	 * 
+	 * @param enabled true for recrawl mode, false to skip the pages visited before (the default).
+	 */
+	public void setRecrawlMode(boolean enabled){
+		this.recrawlMode=enabled;
+	}
+	
+	/**
+	 * Function that sets the timeouts of the requests made in the next crawls.
+	 * 
+	 * @param connect timeout for opening a connection to a host, in milliseconds. 0 for no timeout.
+	 * @param read timeout for reading a response from a host, in milliseconds. 0 for no timeout.
+	 */
+	public void setFetchTimeouts(int connect, int read){
+		this.connectTimeoutMillis=connect;
+		this.readTimeoutMillis=read;
+	}
+	
+	/**
+	 * Function that sets if, in the next crawls, each fetch runs on its own virtual thread. Politeness is then enforced by the limiter
+	 * per host alone (one request at a time, and a wait between requests), instead of also by helper threads owning their hosts, so the number
+	 * of hosts crawled at the same time is not limited by MAX_NUM_THREADS.
+	 * <p>
+	 * Virtual threads need Java 21 or newer. With older JVMs, fetches run on pooled threads instead.
+	 * 
+	 * @param enabled true to fetch on virtual threads, false to use helper threads (the default).
+	 */
+	public void setVirtualThreadFetching(boolean enabled){
+		this.virtualThreadFetching=enabled;
+	}
+	
+	/**
+	 * Function that dispatches the URLs of the frontier to fetches running on virtual threads, until the crawl is over.
+	 * The main thread only waits when no host can be requested, until a fetch ends, a host gets pending URLs, or the 
+	 * politeness wait of a host is over.
+	 * 
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	private void dispatchOnVirtualThreads() throws InterruptedException{
+		workers=newVirtualThreadExecutor();
+		final CrawlerThread visitor=new CrawlerThread(0); //Not an actual thread. It is only used for visiting URLs, from any thread.
+		final AtomicInteger fetchesInProgress=new AtomicInteger(0);
+		boolean crawling=true;
+		while (crawling){
+			long version=frontier.getVersion(); //Read before checking the hosts, so that no change is missed while waiting.
+			long wait=Long.MAX_VALUE;
+			for (final String host: frontier.getHosts()){
+				if (fetchesInProgress.get()>=MAX_NUM_VIRTUAL_FETCHES){
+					break; //The end of a fetch signals the frontier.
+				}
+				long delay=limiter.tryAcquire(host);
+				if (delay>0){
+					wait=Math.min(wait, delay); //Either the politeness wait of the host, or the end of its current fetch.
+					continue;
+				}
+				final ItemUrl item=frontier.poll(host);
+				if (item==null){
+					limiter.release(host, false);
+					continue;
+				}
+				fetchesInProgress.incrementAndGet();
+				workers.execute(new Runnable(){
+					public void run() {
+						boolean requested=false;
+						try {
+							requested=visitor.visit(item);
+						}
+						finally {
+							limiter.release(host, requested);
+							fetchesInProgress.decrementAndGet();
+							frontier.signal();
+						}
+					}
+				});
+			}
+			if (DEBUG_MODE){
+				System.out.println("Fetches in progress: "+fetchesInProgress.get()+". Pending urls: "+frontier.size());
+			}
+			crawling=frontier.awaitChange(version, wait);
+		}
+	}
+	
+	/**
+	 * Function to create an executor running each task on a new virtual thread. Virtual threads are looked up at runtime,
+	 * so that the crawler still runs on JVMs without them, using a pool of threads instead.
+	 * 
+	 * @return the executor.
+	 */
+	private ExecutorService newVirtualThreadExecutor(){
+		try {
+			Method factory=Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)factory.invoke(null);
+		} catch (Exception e) {
+			System.out.println("Virtual threads are not available in this JVM (Java 21 or newer is needed). Fetches will run on pooled threads.");
+			return Executors.newCachedThreadPool(new ThreadFactory(){
+				private int count=0;
+				public synchronized Thread newThread(Runnable r) {
+					return new Thread(r, "CrawlerFetch-"+(count++));
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Function that stops the pipeline of the current crawl, if any, after the pages it holds are processed.
+	 */
+	private void stopPipeline(){
+		if (pipeline!=null){
+			try {
+				pipeline.shutdown();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			pipeline=null;
+		}
+	}
+	
+	/**
+	 * Function in charge of extracting the information to be indexed from a parsed page.
+	 * 
+	 * It takes the title, the code, and a summary of the current web page (which acts as a back-up when no highlights are 
+	 * possible) from what the extractor found in the page, and adds the content. A programming language is also detected: 
+	 * the extractor checks if the code or the text contain the words java, c++ or others. The programming language detection 
+	 * could be improved. The fields are boosted in createLuceneDocument.
+	 * The fingerprint of the text and code of the page is also computed, for detecting near-duplicates.
+	 * 
+	 * @param page parsed page. Its fingerprint is set.
+	 * @param extractor extractor, which has already extracted the page
+	 * 
+	 * @return values for the fields, in the order expected by createLuceneDocument. Null if the page is too short to be indexed.
+	 */
+	private String [] extractFields(CrawledPage page, PageExtractor extractor){
+		/**The content is the whole page, since the search handler takes the text to highlight from it.*/
+		String contentString=page.doc.outerHtml();
+		if (contentString.length()<=MINIMUM_DOC_LENGTH_FOR_INDEXING){
+			return null;
+		}
+		String codeString=extractor.getCode();
+		String bodyText=extractor.getText();
+		String pl=extractor.detectLanguage();
+		
+		/**
+	 	* We create the variable summariser, which gives us a small summary (in this case two sentences) of the web page.
+		*/	
+		ISummariser summariser= new SimpleSummariser();
+		String summary=summariser.summarise(bodyText, 2);
+		
+		page.fingerprint=NearDuplicateDetector.simHash(extractor.getTitle()+" "+bodyText+" "+codeString);
+		String simhash=page.fingerprint==0 ? "" : Long.toHexString(page.fingerprint);
+		
+		return new String[]{extractor.getTitle(), page.location.toString(), codeString, contentString, pl, summary, simhash};
+	}
+	
+	/**
+	 * Function to honor the canonical URL given by a page, with &lt;link rel="canonical"&gt;: the page is indexed under it, and it
+	 * is marked as visited, so it is not fetched. If it was visited already, the page is not indexed. Canonical URLs that are 
+	 * not valid or excluded are ignored.
+	 * <p>
+	 * Only canonical URLs on the host of the page are honored, since otherwise any page could take the place of a page of
+	 * another site. A canonical URL on another host is followed as a link instead, if the depth allows it.
+	 * 
+	 * @param page parsed page. Its location and indexable flag are updated.
+	 * @param extractor extractor, which has already extracted the page
+	 */
+	private void applyCanonical(CrawledPage page, PageExtractor extractor){
+		if (extractor.getCanonical()==null){
+			return;
+		}
+		try {
+			String href=normalizer.normalize(extractor.getCanonical(), page.location);
+			if (href==null){
+				return;
+			}
+			CrawlUrl canonical=CrawlUrl.parse(href);
+			if (canonical.equals(page.location) || !isValid(canonical) || isExcluded(canonical)){
+				return;
+			}
+			if (!canonical.getHost().equals(page.location.getHost())){
+				if (page.depth+1<=maxCrawlDepth && !isVisited(canonical)){
+					frontier.offer(new ItemUrl(canonical, page.depth+1));
+				}
+				return;
+			}
+			if (markAsVisited(canonical)){
+				page.location=canonical;
+			}
+			else {
+				page.indexable=false;
+				if (VERBOSE){
+					System.out.println("The canonical URL of "+page.location.toString()+" was visited already: "+canonical.toString());
+				}
+			}
+		} catch (MalformedURLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Function in charge of extracting the outlinks of a parsed page. They are normalized with the location of the page as base URL.
+	 * 
+	 * @param page parsed page
+	 * @param extractor extractor, which has already extracted the page
+	 * 
+	 * @return list of normalized urls found in the page, without repetitions. This list can be empty.
+	 */
+	private List<CrawlUrl> extractOutlinks(CrawledPage page, PageExtractor extractor){
+		Set<CrawlUrl> urlsFound = new LinkedHashSet<CrawlUrl>(); //List for URLs found in current page
+	    for (String href : extractor.getLinks()) {
+	    	try {
+    			String linkHref=normalizer.normalize(href, page.location);
+    			if (linkHref!=null){ //Links to the page itself, or to no page (such as javascript:), are skipped.
+    				urlsFound.add(CrawlUrl.parse(linkHref));
+    			}
+    		} catch (MalformedURLException e) {
+    			// TODO Auto-generated catch block
+    			e.printStackTrace();	        	 
+    		}
+	    }
+	    List<CrawlUrl> results= new ArrayList<CrawlUrl>();
+	    results.addAll(urlsFound);
+	    return results; 
+	}
+	
+	/**Nested classes */
+	
+	/**
+	 * A page being processed by the pipeline. It is filled in by each stage.
+	 */
+	private static class CrawledPage {
+		/**URL crawled for the page, before redirects, next to its depth.*/
+		ItemUrl source;
+		/**Depth of the page.*/
+		int depth;
+		/**Signals if the page is the first one of a newly created index.*/
+		boolean createIndex;
+		/**Normalized location of the page, after redirects.*/
+		CrawlUrl location;
+		/**Signals if the page can be indexed. False if its location, or its canonical URL, had already been visited.*/
+		boolean indexable=true;
+		/**Fetched response. Released once parsed.*/
+		FetchResult response;
+		/**Parsed page. Released once extracted.*/
+		org.jsoup.nodes.Document doc;
+		/**Values for the fields of the index. Null if the page is not to be indexed.*/
+		String [] fields;
+		/**Fingerprint of the text of the page (see NearDuplicateDetector), or 0 if none.*/
+		long fingerprint;
+		/**Version of the page, stored once it is processed.*/
+		RecrawlStore.PageVersion version;
+		
+		CrawledPage(ItemUrl source, boolean createIndex, CrawlUrl location, FetchResult response){
+			this.source=source;
+			this.depth=source.getDepth();
+			this.createIndex=createIndex;
+			this.location=location;
+			this.response=response;
+		}
+	}
+	
+	/**
+	 * Task of the parse stage: it parses a fetched page and hands it over to the extract stage.
+	 */
+	private class ParseTask implements Runnable {
+		private CrawledPage page;
+		
+		ParseTask(CrawledPage page){
+			this.page=page;
+		}
+		
+		public void run(){
+			boolean submitted=false;
+			try {
+				/**The charset is taken from the headers. If not given there, Jsoup looks for it in the page itself.*/
+				page.doc=Jsoup.parse(new ByteArrayInputStream(page.response.getBody()), page.response.getCharset(), page.response.getUrl());
+				page.response=null;
+				pipeline.submit(CrawlPipeline.EXTRACT, new ExtractTask(page));
+				submitted=true;
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Could not parse page: "+page.location.toString());
+			} catch (InterruptedException | RejectedExecutionException e) {
+				e.printStackTrace();
+			} finally {
+				if (!submitted){
+					frontier.endPage(page.source);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Task of the extract stage: according to depth, it adds the outlinks of a page to the frontier. Then it extracts the fields 
+	 * to be indexed and hands the page over to the index stage.
+	 */
+	private class ExtractTask implements Runnable {
+		private CrawledPage page;
+		
+		ExtractTask(CrawledPage page){
+			this.page=page;
+		}
+		
+		public void run(){
+			boolean submitted=false;
+			try {
+				/**All that is needed from the page is taken in a single pass over it.*/
+				PageExtractor extractor=extractors.get();
+				extractor.extract(page.doc);
+				if (page.depth+1<=maxCrawlDepth){ //According to depth we crawl outlinks or simply index
+					for (CrawlUrl result: extractOutlinks(page, extractor)){
+						/**Steps (4), (5) and (2) are checked here, step (1) is checked by the frontier.*/
+						if (isValid(result) && !isExcluded(result) && !isVisited(result)){
+							frontier.offer(new ItemUrl(result, page.depth+1));//We add the results to the frontier.
+						}
+					}
+				}
+				else if (VERBOSE){
+					System.out.println("Note:- Only indexing for url:"+ page.location.toString());
+				}
+				if (!page.indexable){
+					if (VERBOSE){
+						System.out.println("Tried to index "+page.location.toString()+" but was prevented at the last minute. Stackoverflow checks were used.");
+					}
+				}
+				else {
+					applyCanonical(page, extractor); //It tells when the canonical URL was visited already.
+				}
+				if (page.indexable){
+					page.fields=extractFields(page, extractor);
+					if (page.fields==null && VERBOSE){
+						System.out.println("Not indexing "+page.location.toString()+": it is too short.");
+					}
+				}
+				page.doc=null;
+				if (page.fields!=null){
+					String original=nearDuplicates.checkAndAdd(page.location.toString(), page.fingerprint);
+					if (original!=null){
+						page.fields=null;
+						if (VERBOSE){
+							System.out.println("Not indexing "+page.location.toString()+": it is a near-duplicate of "+original);
+						}
+					}
+				}
+				if (page.fields!=null){
+					pipeline.submit(CrawlPipeline.INDEX, new IndexTask(page));
+					submitted=true;
+				}
+				else {
+					storeVersion(page); //Not to be indexed, but processed in full.
+				}
+			} catch (InterruptedException | RejectedExecutionException e) {
+				e.printStackTrace();
+			} finally {
+				/**Unless the index stage took the page over, the page is done, even after an error, so it is left out of the next checkpoints.*/
+				if (!submitted){
+					frontier.endPage(page.source);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Task of the index stage: it adds a page to the index.
+	 */
+	private class IndexTask implements Runnable {
+		private CrawledPage page;
+		
+		IndexTask(CrawledPage page){
+			this.page=page;
+		}
+		
+		public void run(){
+			/**The document is logged and added to the writer shared by all threads. It is committed later, according to the commit policy.*/
+			try {
+				commitScheduler.addDocument(page.createIndex ? null : new Term("url", page.location.toString()), createLuceneDocument(page.fields), page.fields);
+				storeVersion(page);
+			} catch (IOException e) {
+				e.printStackTrace();
+				System.out.println("Could not index page: "+page.location.toString());
+			} finally {
+				/**The page is in the pending log now, so it is left out of the next checkpoints.*/
+				frontier.endPage(page.source);
+			}
+		}
+	}
+	
+	/**
+	 * Function to store the version of a page once it is processed, so a later recrawl can tell if it changed. 
+	 * Pages still in the pipeline, or that failed, are not stored, so they are fetched and processed in full again.
+	 * 
+	 * @param page processed page
+	 */
+	private void storeVersion(CrawledPage page){
+		RecrawlStore store=recrawlStore;
+		if (store!=null && page.version!=null){
+			store.put(page.source.getUrl().toString(), page.version);
+		}
+	}
+	
+	/**
+	 * 
+	 * CrawlerThread class implementing Runnable. It includes the crawling functionality for a single thread.
+	 * <p>
+	 * It was declared as a nested class for ease in the use of common & synchronized variables with the outer class.
+	 * 
+	 * @author Gabriel, Rene
+	 * 
+	 */
+	private class CrawlerThread implements Runnable {
+		/**Public class members */
+
+		/**The id of a thread (position in threads array of WebCrawler)*/
+		public int id;
+		
+		/**Private class members */
+		
+		/**isBusy flag, true while visiting a URL. Initially false*/
+		private boolean isBusy=false;
+		/**Lock for synchronized access to isBusy flag (since the main thread/crawler and the current thread can ask for it)*/
+		private Object isBusy_lock = new int[1];
+		
+		/**List array holding the hostnames assigned to this thread. Local copy, additional to the index in WebCrawler class*/
+		private List <String> hostnames = new ArrayList<String>(); //All the hostnames the thread is responsible for crawling.
+		/**Lock for synchronized access to hostnames (since the main thread/crawler and the current thread can ask for it)*/
+		private Object hostnames_lock = new int[1];
 		
 		/**Functions */
 		/**
@@ -1508,15 +2376,11 @@ public class WebCrawler {
 		}
 		
 		/**
-		 * Function in charge of the crawling
+		 * Function in charge of the crawling. It runs until the crawl is over, waiting on the frontier while there is no work 
+		 * for its hostnames.
 		 *  
 		 */
 		public void run(){
-			//First the thread signals that it is busy
-			synchronized (isBusy_lock){
-				isBusy=true;
-			}
-			
 			boolean somethingLeftToCrawl=true;
 			
 			while (somethingLeftToCrawl){
@@ -1525,815 +2389,262 @@ public class WebCrawler {
 					System.out.println("Thread "+id+ " entering while loop.");
 				}
 				
+				/**The generation is read before the hostnames, so that a hostname assigned meanwhile is not missed while waiting.*/
+				long generation=frontier.getGeneration();
 				List<String> hostnames2= new ArrayList<String>();
-				List<ItemUrl> nextUrls2= new ArrayList<ItemUrl>();
 				synchronized (hostnames_lock){
 					hostnames2.addAll(hostnames); //We work with local copies so as to improve synchronization
 				}	
 				
 				/**The thread will iterate over all its assigned hostnames, and for each one
-				 * it will select an URL, if possible. To index or crawlAndIndex, according to 
-				 * the depth. Then, it will sleep 5 seconds (so as to avoid DoS exceptions).*/
-				
+				 * it will select an URL, if possible, and if the politeness limiter allows a request to the host. To index or crawlAndIndex, 
+				 * according to the depth. Hosts that must still wait are skipped (so as to avoid DoS exceptions), and so are hosts without URLs.*/
+				long wait=Long.MAX_VALUE;
+				List<String> idleHosts= new ArrayList<String>();
 				for (String host: hostnames2){
-					int nextUrl=-1;
-					nextUrls2.clear();
-					synchronized (nextUrls_lock){
-						nextUrls2.addAll(nextUrls); //We work with local copies so as to improve synchronization
+					if (!frontier.hasPending(host)){
+						idleHosts.add(host);
+						continue;
 					}
-					
-					/** Here we find a URL pending to visit of the specific host*/
-					for (int i=0; i<nextUrls2.size(); i++){
-						if (nextUrls2.get(i).getUrl().getHost().equals(host)){
-							if (nextUrl==-1){
-								nextUrl=i;
-								i=nextUrls2.size();
-							}
-						}
+					long delay=limiter.tryAcquire(host);
+					if (delay>0){
+						wait=Math.min(wait, delay);
+						continue;
 					}
+					/** Here we take the next URL pending to visit of the specific host*/
+					ItemUrl pendingUrl=frontier.poll(host);
 					
-					if (nextUrl!=-1){//An URL was found
-						URL toVisit=null;
+					if (pendingUrl!=null){//An URL was found
+						/**Even if it is discarded without a request, the host may have more URLs, so the thread does not wait.*/
+						noVisitDuringIteration=false;
+						synchronized (isBusy_lock){
+							isBusy=true;
+						}
+						boolean requested=false;
 						try {
-							toVisit = new URL (normalize(nextUrls2.get(nextUrl).getUrl().toString())); //Step 3
-						} catch (MalformedURLException e2) {
-							// TODO Auto-generated catch block
-							e2.printStackTrace();
-							/**In the case of an exception of the thread, we have still to remove the URL, and mark the thread as busy*/
-							synchronized (nextUrls_lock){
-								nextUrls.remove(nextUrls2.get(nextUrl)); 
-							}
+							requested=visit(pendingUrl);
+						}
+						finally {
+							limiter.release(host, requested);
 							synchronized (isBusy_lock){
 								isBusy=false;
 							}
 						}
-						ItemUrl url=new ItemUrl(toVisit, nextUrls2.get(nextUrl).getDepth());
-						if (isVisited(toVisit)){//Step (2) Perhaps redundant, but its valid and perhaps wise, to check on an updated visitedURLs list...
-							if (VERBOSE){
-								System.out.println("Thread: "+id+" attempted to re-visit: "+toVisit.toString()+" but it was detected.");
-							}
-							/** If already visited, we can remove from the nextUrls lists (local and global)*/
-							synchronized (nextUrls_lock){
-								nextUrls.remove(nextUrls2.get(nextUrl));
-							}
-							nextUrls2.remove(nextUrl);
-						}
-						else{ 
-							/**We can visit, Steps 1 to 5 have already been checked. 
-							 * 1-3 and 5 over the nextUrls list in Main thread, 2 and 4 in this thread, and 4 also when loading outlinks.
-							 */
-							
-							noVisitDuringIteration=false;
-							boolean wasExcluded=false;
-							
-							if (url.getDepth()+1<=maxCrawlDepth){ //We crawl and index
-								List<URL> results=new ArrayList<URL>();
-								try {
-									//Before indexing we will get the excluded list of the host
-									if(!isVisitedHost(url.getUrl())){
-										results = getExcludedList(url.getUrl());
-										if (!results.isEmpty()){
-											synchronized (excludedUrls_lock){
-													excludedUrls.addAll(results);
-													results.clear();
-													results.addAll(removeRepeated(excludedUrls));
-													excludedUrls.clear();
-													excludedUrls.addAll(results);
-											}
-										}
-									}
-									if (!isExcluded(url.getUrl())){
-										try{
-											results=crawlAndIndexPage(url.getUrl(), false);
-										} catch (Exception e){
-										    synchronized (nextUrls_lock){
-												nextUrls.remove(nextUrls2.get(nextUrl)); 
-											}
-											synchronized (isBusy_lock){
-												isBusy=false;
-											}
-										}
-									}
-									else{synchronized (nextUrls_lock){
-										nextUrls.remove(nextUrls2.get(nextUrl)); 
-									}
-									synchronized (isBusy_lock){
-										isBusy=false;
-									}
-										if (VERBOSE){
-											System.out.println("Before crawling: "+url.getUrl().toString()+" was excluded.");
-										}
-										wasExcluded=true;
-									}
-								} catch (Exception e1){
-									e1.printStackTrace();
-									/**In the case of an exception of the thread, we have still to remove the URL, and mark the thread as busy*/
-									synchronized (nextUrls_lock){
-										nextUrls.remove(nextUrls2.get(nextUrl)); 
-									}
-									synchronized (isBusy_lock){
-										isBusy=false;
-									}
-								}
-								synchronized (tentativeUrls_lock){
-									for (URL result: results){
-										tentativeUrls.add(new ItemUrl(result, url.getDepth()+1));//We add the results to the tentativeUrls list.
-									}
-								}
-								if (!wasExcluded)
-									markAsVisited(url.getUrl()); //We mark as visited
-							}//End of crawl and index
-							else if (url.getDepth()==maxCrawlDepth){ //We can only index
-								org.jsoup.nodes.Document doc=null;
-								String startUrl=url.getUrl().toString();
-								try {
-									//Before indexing we will get the excluded list of the host
-									if(!isVisitedHost(url.getUrl())){
-										List<URL> results = getExcludedList(url.getUrl());
-										if (!results.isEmpty()){
-											synchronized (excludedUrls_lock){
-												excludedUrls.addAll(results);
-												results.clear();
-												results.addAll(removeRepeated(excludedUrls));
-												excludedUrls.clear();
-												excludedUrls.addAll(results);
-											}
-										}
-									}
-									if(!isExcluded(url.getUrl())){
-										boolean connectionWasOk=true;
-										try{
-											doc = Jsoup.connect(startUrl).userAgent(USER_AGENT).referrer(REFERRER).get();
-										} catch (Exception e){ //Mostly socket time-out
-											synchronized (nextUrls_lock){
-												nextUrls.remove(nextUrls2.get(nextUrl)); 
-											}
-											synchronized (isBusy_lock){
-												isBusy=false;
-											}
-											connectionWasOk=false;
-										}
-										if (connectionWasOk){
-											if (VERBOSE)
-												System.out.println("Note:- Only indexing for url:"+ normalize(doc.location())+" "+id);
-											try{
-												indexPage(doc, new URL (normalize(doc.location())), false);}
-											catch (Exception e){
-												synchronized (nextUrls_lock){
-													nextUrls.remove(nextUrls2.get(nextUrl)); 
-												}
-												synchronized (isBusy_lock){
-													isBusy=false;
-												}
-											}
-											/**The following while loop tries to catch redirects and mark as visited all the intermediate URLs
-											 * It checks if the location of the retrieved document is the same as the one from the 
-											 * requested URL.*/
-								
-											while(!normalize(doc.location()).equals(startUrl)){			
-												Response response=null;
-												try {
-													String aux=startUrl;
-													response = Jsoup.connect(startUrl).userAgent(USER_AGENT).referrer(REFERRER).followRedirects(false).execute();
-													startUrl=response.header("location");
-													if(aux==null || startUrl==null){//If the response has no header or fails, we stop the loop
-														startUrl=normalize(doc.location());
-													}
-													else if(aux==startUrl){//If the response traps the request in a single site, we stop the loop
-														startUrl=normalize(doc.location());
-													}
-													else {
-														startUrl=normalize(startUrl, aux);
-													try {
-														URL tentativeURL=new URL(startUrl);
-														markAsVisited(tentativeURL);//Note we mark all URLs as visited, except for the starting one, which is marked later.
-													} catch (MalformedURLException e) {
-														// TODO Auto-generated catch block
-														e.printStackTrace();
-														/**In the case of an exception of the thread, we have still to remove the URL, and mark the thread as busy*/
-														synchronized (nextUrls_lock){
-															nextUrls.remove(nextUrls2.get(nextUrl)); 
-														}
-														synchronized (isBusy_lock){
-															isBusy=false;
-														}
-													}
-												}
-												} catch (Exception e) {
-												// TODO Auto-generated catch block
-													e.printStackTrace();
-													startUrl=normalize(doc.location());
-													synchronized (nextUrls_lock){
-														nextUrls.remove(nextUrls2.get(nextUrl));
-													}
-													synchronized (isBusy_lock){
-														isBusy=false;
-													}
-												}
-											}//End of while
-									}
-										else{
-											System.out.println("Connection timed-out when indexing: "+url.getUrl().toString()+", so it was not indexed.");
-										}
-									}
-									else{
-										if (VERBOSE){
-											System.out.println("During indexing: "+url.getUrl().toString()+" was excluded.");
-										}
-										wasExcluded=true;
-									}
-								} catch (Exception e1) {
-								// TODO Auto-generated catch block		
-									e1.printStackTrace();
-									synchronized (nextUrls_lock){
-										nextUrls.remove(nextUrls2.get(nextUrl));
-									}
-									synchronized (isBusy_lock){
-										isBusy=false;
-									}
-								}
-								if (!wasExcluded)
-									markAsVisited(url.getUrl());//Here we mark as visited the starting URL.
-							}//End of else if
-							synchronized (nextUrls_lock){
-								nextUrls.remove(nextUrls2.get(nextUrl));
-								if (VERBOSE){
-									System.out.println("Remaining urls to visit= "+nextUrls.size()+ ". As seen from thread: "+id);
-								}
-							}
-							nextUrls2.remove(nextUrl);
-						}
-					}//End of if URL found
-					
-					/**...
-					 * 
-					 * If no URL found for an assigned hostname, we do nothing...
-					 * 
-					 * */
-					
+					}
+					else {
+						limiter.release(host, false);
+						idleHosts.add(host);
+					}
 				}//End of for loop over hostnames
 				
-				/**Now we must check if there is something left to crawl*/
-				somethingLeftToCrawl=false;
-
-				nextUrls2.clear();
-				synchronized (nextUrls_lock){
-					nextUrls2.addAll(nextUrls); //We make a local copy of the current nextUrls.
-				}
-				
-				hostnames2.clear();
-				synchronized (hostnames_lock){
-					hostnames2.addAll(hostnames); //We make a local copy of the current assigned hostnames
-				}
-				
-				//Loop for checking if at least a URL left to crawl belongs to one of the assigned hostnames
-				for (String host: hostnames2){
-					if (!somethingLeftToCrawl){
-						for (int i=0; i<nextUrls2.size(); i++){
-							if (nextUrls2.get(i).getUrl().getHost().toString().equals(host)){
-								somethingLeftToCrawl=true;
-								i=nextUrls2.size();
-							}
+				if (noVisitDuringIteration){
+					/**No URL was taken, so the thread waits until one of its idle hostnames has pending URLs, it is assigned
+					 * more hostnames, the politeness wait of one of its hostnames is over, or the crawl is over.
+					 * Otherwise, it goes on at once: the limiter makes it skip the hosts that must still wait.
+					 * 
+					 * If none of its hostnames has pending URLs, it first tries to take a host over from an overloaded thread, 
+					 * and tries again from time to time while waiting.*/
+					if (wait==Long.MAX_VALUE){
+						if (stealHost(this)){
+							continue;
 						}
+						wait=STEAL_CHECK_INTERVAL_IN_MILLISECONDS;
 					}
-				}
-				
-				if (somethingLeftToCrawl && !noVisitDuringIteration){
-					/**Note that the noVisitDuringIteration flag allows the thread to not sleep if 
-					 * it didn't visit any host after a loop.*/
 					try {
-						Thread.sleep(WAIT_TIME_IN_MILLISECONDS_THREADS);
+						somethingLeftToCrawl=frontier.awaitWork(idleHosts, generation, wait);
 					} catch (InterruptedException e) {
-						// TODO Auto-generated catch block
 						e.printStackTrace();
-						synchronized (isBusy_lock){
-							isBusy=false;
-						}
+						somethingLeftToCrawl=false;
 					}
-				} 
+				}
 			}//End of while
 			if (VERBOSE){
 				System.out.println("Thread: "+id+ " has concluded its work.");
 			}
-			synchronized (isBusy_lock){
-				isBusy=false;
-			}
 		}
 		
 		/**
-		 * Function in charge of indexing a page
+		 * Function to visit a URL taken from the frontier, and mark it as visited and done.
 		 * 
-		 * IndexPage creates an index entry for a given URL. Each document added by this function contains the URL, the title, the content, the code,
-		 * and a summary of the current web page (which acts as a back-up when no highlights are possible).
+		 * @param url url to visit, next to its depth
 		 * 
-		 * The code and title are boosted by 2.0 and 1.5 respectively. The code is only boosted if it has code.
-		 * A programming language field was added and boosted by 2.0. It detects if the content contains the words java, c++ or others. 
-		 * The programming language detection could be improved.
-		 *
-		 *  @param doc
-		 *  @param pageLink
-		 *  @param createIndex if true, the index must be created, if false, it must be loaded from pre-selected directory.
-		 *  
+		 * @return true if a request was made to the host of the url, false if it was discarded or excluded before.
 		 */
-		@SuppressWarnings("deprecation")
-		private void indexPage (org.jsoup.nodes.Document doc, URL pageLink, boolean createIndex){			
-			
-				if(!isVisited(pageLink) && doc.toString().length()>MINIMUM_DOC_LENGTH_FOR_INDEXING){
-				/**
-			 	* We declare the lucene variables for indexing.
-			 	*/
-			
-				Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_4_10_0);
-				
-			
-				String codeString="";
-				String codeSeparator=" ... ";
-				/**
-			 	* Here, we extract just the part of the html code which contain programming code.
-			 	*/	
-				Elements codesAsElement = doc.select("code");
-	    		for (Element code : codesAsElement) {
-	    			codeString+=code.toString().replace("<code>", "").replace("</code>","")+codeSeparator;
-	    		}
-	    		Elements codesAsClass = doc.getAllElements();
-	    		for (Element code : codesAsClass) {
-	    			if (code.hasClass("code")){
-	    				for (Element code2: code.getElementsByClass("code")){
-	    						codeString+=code2.ownText().toString()+codeSeparator;
-	    				}
-	    			}
-	    		}
-	    		
-				
-			
-				/**
-			 	* A Lucene Document variable is declared.
-				*/	
-				Document luceneDoc= new Document();
-			
-				/**
-			 	* Here, we start adding fields to the indexer. We also create the variable summariser, which gives us
-				* a small summary (in this case two sentences) of the web page.
-				*/	
-				TextField field1=new TextField("title", doc.title(), Field.Store.YES);
-				field1.setBoost((float)1.5);
-				luceneDoc.add(field1);
-				Field field2=new Field ("url", pageLink.toString(), Field.Store.YES, Field.Index.NOT_ANALYZED, Field.TermVector.NO);
-				field2.setBoost((float)1.0);
-				luceneDoc.add(field2);
-				TextField field3= new TextField("code", codeString, Field.Store.YES);
-				if(codeString.length()>2){
-					field3.setBoost((float)2.0); //We boost the field.			
-				}
-				luceneDoc.add(field3);
-				String contentString=doc.toString();
-				TextField field4=new TextField("content", contentString, Field.Store.YES);
-				field4.setBoost((float)1.0);
-				luceneDoc.add(field4);
-				
-				String pl= "";
-				contentString=contentString.toLowerCase();
-				if (codeString.toLowerCase().contains("javascript")){//Since this is a common language used in html forms, we dont search for it in the content.
-					pl="javascript";
-				}else if (codeString.toLowerCase().contains("java")||contentString.contains("java")){
-					pl="java";
-				}
-				else if (codeString.toLowerCase().contains("c++")||contentString.contains("c++")){
-					pl="c++";
-				}
-				else if (codeString.toLowerCase().contains("c#")||contentString.contains("c#")){
-					pl="c#";
-				}
-				else if (codeString.toLowerCase().contains("ruby")||contentString.contains("ruby")){
-					pl="ruby";
-				}
-				else if (codeString.toLowerCase().contains(" scala ")||contentString.contains(" scala ")){
-					pl="scala";
-				}
-				else if (codeString.toLowerCase().contains("python")||contentString.contains("python")){
-					pl="python";
-				}
-				else if (codeString.toLowerCase().contains("sql")||contentString.contains("sql")){
-					pl="sql";
-				}
-				else if (codeString.toLowerCase().contains("assembly")||contentString.contains("assembly")){
-					pl="assembly";
-				}
-				else if (codeString.toLowerCase().contains("pascal")||contentString.contains("pascal")){
-					pl="pascal";
-				}
-				else if (codeString.toLowerCase().contains("fortran")||contentString.contains("fortran")){
-					pl="fortran";
-				}
-				else if (codeString.toLowerCase().contains("php")){//Since this is a common language used in html forms, we dont search for it in the content.
-					pl="php";
-				}
-				else if (codeString.toLowerCase().contains("cuda")||contentString.contains("cuda")){
-					pl="cuda";
-				}
-				else if (codeString.toLowerCase().contains("latex")||contentString.contains("latex")){
-					pl="latex";
-				}
-				else if (codeString.toLowerCase().contains("matlab")||contentString.contains("matlab")){
-					pl="matlab";
-				}
-				else if (codeString.toLowerCase().contains("opencl")||contentString.contains("opencl")){
-					pl="opencl";
-				}
-				else if (codeString.toLowerCase().contains("octave")||contentString.contains("octave")){
-					pl="octave";
+		private boolean visit(ItemUrl url){
+			CrawlUrl toVisit=url.getUrl(); //Step 3 was done before adding it to the frontier.
+			ItemUrl target=url;
+			if (dustRules.hasRules()){
+				/**Rules learned since the url was found may take it as another URL (see DustRuleLearner), which is visited instead.*/
+				try {
+					CrawlUrl canonical=CrawlUrl.parse(normalizer.normalize(toVisit.toString()));
+					if (!canonical.equals(toVisit)){
+						toVisit=canonical;
+						target=new ItemUrl(canonical, url.getDepth());
+					}
+				} catch (MalformedURLException e) {
+					e.printStackTrace();
 				}
-				TextField field5=new TextField("programming_language", pl, Field.Store.YES);
-				if (pl.length()>2){
-					field5.setBoost((float)1.5);
+			}
+			if (isVisited(toVisit)){//Step (2) Perhaps redundant, but its valid and perhaps wise, to check on an updated visitedURLs list...
+				if (VERBOSE){
+					System.out.println("Thread: "+id+" attempted to re-visit: "+toVisit.toString()+" but it was detected.");
 				}
-				luceneDoc.add(field5);
-				
-			
-				ISummariser summariser= new SimpleSummariser();
-				String textForSummary="";
-				Elements bodyAux  = doc.body().getAllElements();
-		        for (int k=0; k<bodyAux.size(); k++){
-    				textForSummary+=bodyAux.get(k).ownText();
-		        }
-		        if(textForSummary.length()<2){
-		        	textForSummary=doc.body().text();
-		        }
-				String summary=summariser.summarise(textForSummary, 2);
-				Field field6 = new Field("summary", summary, Field.Store.YES, Field.Index.NOT_ANALYZED, Field.TermVector.NO);
-				field6.setBoost(0);//The summary is only a back-up and not to be used for searching.
-				luceneDoc.add(field6);
+				/** If already visited, we can discard it*/
+				frontier.done(url);
+				return false;
+			}
+			/**We can visit, Steps 1 to 5 have already been checked. 
+			 * 1, 2, 4 and 5 when adding outlinks to the frontier, 2 and 3 in this thread.
+			 */
+			boolean wasExcluded=false;
 			
-				String indexFolder="";
-				if (usingNonDefaultIndex){
-					indexFolder=currentIndexFolder;
+			try {
+				//Before fetching we will get the robots.txt rules of the host, only fetched the first time.
+				loadRobotsRules(toVisit);
+				if (!isExcluded(toVisit)){
+					/**The page is fetched here. The pipeline then indexes it and, according to depth, adds its outlinks to the frontier.*/
+					crawlAndIndexPage(target, false);
 				}
 				else{
-					indexFolder=DEFAULT_INDEX_FOLDER;
-				}
-
-				
-				synchronized (index_lock){ //We need the index lock to access the directory and index
-									
-					try {
-						Directory indexDir=FSDirectory.open(new File(indexFolder));
-						boolean timeOutException= true;
-						int numAttempts=0;
-						while (timeOutException){
-							try {
-								IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_4_10_0, analyzer);
-								if (createIndex){
-									iwc.setOpenMode(OpenMode.CREATE);	
-								}
-								else{ //Note: Here we assume that the Index exists. This has to be checked upon user input.					
-									iwc.setOpenMode(OpenMode.CREATE_OR_APPEND);
-								}
-								IndexWriter writer = new IndexWriter(indexDir, iwc);
-								if (createIndex){
-									writer.addDocument(luceneDoc);
-									writer.commit();
-								}	
-								else{
-								//Here we can make a final check before adding the document: 
-									writer.updateDocument(new Term("url", pageLink.toString()), luceneDoc);
-									writer.commit();
-								}
-								writer.close();
-								indexDir.close();
-								timeOutException=false;
-							} catch (org.apache.lucene.store.LockObtainFailedException e) {
-								// TODO Auto-generated catch block
-								//e.printStackTrace();
-								numAttempts++;
-								if (numAttempts>=2){
-									System.out.println("Could not index page, due to problems with Lucene's implicit lock. Received "+numAttempts+" timeout messages from Lucene.");
-									timeOutException=false;
-								}
-							} catch (IOException e2){
-								e2.printStackTrace();
-								timeOutException=false;
-							}
-							
-						}
-
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
+					if (VERBOSE){
+						System.out.println("Before crawling: "+toVisit.toString()+" was excluded.");
 					}
+					wasExcluded=true;
 				}
+			} catch (Exception e1){ //Mostly socket time-out
+				e1.printStackTrace();
 			}
-			else {
-				if (VERBOSE){
-					System.out.println("Tried to index "+pageLink.toString()+" but was prevented at the last minute. Stackoverflow checks were used.");
-				}	
+			if (!wasExcluded)
+				markAsVisited(toVisit); //We mark as visited
+			frontier.done(url);
+			if (VERBOSE){
+				System.out.println("Remaining urls to visit= "+frontier.size()+ ". As seen from thread: "+id);
 			}
+			return !wasExcluded;
 		}
-
+		
 		/**
-		 * Function to crawl and index a webpage, returing a list of all links found
-		 *  CrawlAndIndexPage extracts all the information for a given URL, then it calls the index function
-		 *  and finally it returns a list of all the URLs that are found in the  web page.
+		 * Function to crawl and index a webpage.
+		 *  CrawlAndIndexPage fetches the page for a given URL, marks as visited the URLs it was redirected through (without requesting them again),
+		 *  and hands the page over to the pipeline. The pipeline parses and indexes it, and if the depth allows it, 
+		 *  adds all the URLs found in the web page to the frontier.
+		 *  
+		 *  When refreshing the pages visited before (recrawl mode), pages not modified since their stored version 
+		 *  (see RecrawlStore) are not handed over.
 		 *  
-		 *  Note: Uses visitedUrls_lock
+		 *  Note: It can block if the pipeline is full.
 		 *  
-		 * @param pageLink url
+		 * @param item url to crawl, next to its depth
 		 * @param createIndex Signals if an index has to be created or not.
 		 * 
-		 * @throws Exception
+		 * @throws Exception if the page could not be fetched.
 		 */
-		private List<URL> crawlAndIndexPage(URL pageLink, boolean createIndex) throws Exception {
-			Set<URL> urlsFound = new LinkedHashSet<URL>(); //List for URLs found in current page
-		    org.jsoup.nodes.Document doc=null;
-	    	String startUrl=pageLink.toString();
-		    //First we retrieve the url passed as input
-		    try {
-				doc = Jsoup.connect(startUrl).userAgent(USER_AGENT).referrer(REFERRER).get();
-				indexPage(doc, new URL (normalize(doc.location())), createIndex);//Here we index the page
-			
-				/**The following while loop tries to catch redirects and mark as visited all the intermediate URLs
-				 * It checks if the location of the retrieved document is the same as the one from the 
-				 * requested URL.*/
-
-
-				while(!normalize(doc.location()).equals(startUrl)){
-					String aux=startUrl;
-					Response response=null;
-					try {
-						response = Jsoup.connect(startUrl).userAgent(USER_AGENT).referrer(REFERRER).followRedirects(false).execute();
-						startUrl=response.header("location");
-						if(aux==null || startUrl==null){//If the response has no header or fails, we stop the loop
-							startUrl=normalize(doc.location());
-						}
-						else if(aux==startUrl){	//If the response traps the request in a single site, we stop the loop
-							startUrl=normalize(doc.location());
-						}
-						else {
-							startUrl=normalize(startUrl, aux);
-							try {
-								URL tentativeURL=new URL(startUrl);
-								markAsVisited(tentativeURL); /**Note we mark all URLs as visited, except for the starting one, which is marked later.
-								In this case, it happens outside of the crawlAndIndexPage function*/
-							} catch (MalformedURLException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}
-						}
-					} catch (Exception e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-						startUrl=normalize(doc.location());
-					}
+		private void crawlAndIndexPage(ItemUrl item, boolean createIndex) throws Exception {
+	    	String startUrl=item.getUrl().toString();
+		    //First we retrieve the url passed as input. When refreshing, only if it changed since its stored version, if any.
+	    	RecrawlStore.PageVersion previous=refreshingPages ? recrawlStore.get(startUrl) : null;
+			String host=item.getUrl().getHost();
+			long start=System.currentTimeMillis();
+			FetchResult response;
+			try {
+				response = previous==null ? fetcher.fetchPage(startUrl, null, null) :
+					fetcher.fetchPage(startUrl, previous.getEtag(), previous.getLastModified());
+			}
+			catch (IOException e){
+				limiter.recordResponse(host, -1, System.currentTimeMillis()-start, 0); //No answer, such as a time-out: the host backs off.
+				throw e;
+			}
+			/**How fast and how well the host answered adapts its politeness wait.*/
+			limiter.recordResponse(host, response.getStatusCode(), System.currentTimeMillis()-start, retryAfterMillis(response));
+			if (response.getStatusCode()==HttpURLConnection.HTTP_NOT_MODIFIED){
+				markRedirectsAsVisited(response);
+				if (VERBOSE){
+					System.out.println("Not modified since the last crawl: "+startUrl);
 				}
-			} catch (Exception e1) {
-				// TODO Auto-generated catch block
-				e1.printStackTrace();
+				return;
+			}
+			if (response.getStatusCode()>=400){
+				throw new IOException("HTTP error fetching URL. Status="+response.getStatusCode()+", URL="+startUrl);
+			}
+			/**Pages that cannot be parsed, or are too long, were not downloaded by the fetcher.*/
+			if (FetchResult.SKIPPED_CONTENT_TYPE.equals(response.getSkipReason())){
+				metrics.recordSkippedByContentType();
+				throw new IOException("Unhandled content type. Mimetype="+response.getContentType()+", URL="+startUrl);
 			}
+			if (FetchResult.SKIPPED_CONTENT_LENGTH.equals(response.getSkipReason())){
+				metrics.recordSkippedByContentLength();
+				throw new IOException("Page too long. Content-Length="+response.getHeader("Content-Length")+", URL="+startUrl);
+			}
+			metrics.recordFetch(response.getBody().length, response.isTruncated());
+			long contentHash=RecrawlStore.hash(response.getBody());
+			dustRules.observe(item.getUrl(), contentHash);
+			RecrawlStore.PageVersion version=new RecrawlStore.PageVersion(item.getDepth(), response.getHeader("ETag"), 
+					response.getHeader("Last-Modified"), contentHash);
+			if (previous!=null && previous.getContentHash()==contentHash){
+				recrawlStore.put(startUrl, version); //Already indexed, as it was.
+				markRedirectsAsVisited(response);
+				if (VERBOSE){
+					System.out.println("Unchanged since the last crawl: "+startUrl);
+				}
+				return;
+			}
+			String location=normalizer.normalize(response.getUrl());
 			
-		    //Explore outlinks	    
-		    /**
-			 * In this section, we just check and validate the URL's. 
-			 */	
-		    
-		    Elements links = doc.select("a");
-		    for (Element link : links) {
-		    	String linkHref = link.attr("href");
-		    	try {
-	    			linkHref=normalize(linkHref, startUrl);
-	    			urlsFound.add(new URL(linkHref));
-	    		} catch (MalformedURLException e) {
-	    			// TODO Auto-generated catch block
-	    			e.printStackTrace();	        	 
-	    		}
-		    }
-		    List<URL> results= new ArrayList<URL>();
-		    results.addAll(urlsFound);
-		    return results; 
+			/**The page can only be indexed if its location has not been visited yet. This check is done before marking the redirects.*/
+			CrawledPage page=new CrawledPage(item, createIndex, CrawlUrl.parse(location), response);
+			page.indexable=!isVisited(page.location);
+			page.version=version;
+			
+			markRedirectsAsVisited(response);
+			
+			/**Until its outlinks are added and it is indexed, the page is kept in the checkpoints.*/
+			frontier.beginPage(item);
+			try {
+				pipeline.submit(CrawlPipeline.PARSE, new ParseTask(page));
+			}
+			catch (InterruptedException | RejectedExecutionException e){ //The pipeline was stopped, as the crawl was aborted.
+				frontier.endPage(item);
+				throw e;
+			}
 		}
 		
 		/**
-		 * Function that given a URL, tries to get the robots.txt file from its host, and 
-		 * returns the excluded URLs as a URL list.
+		 * Function to get the wait asked by a host in the Retry-After header of a response. Only a number of seconds is understood.
 		 * 
-		 * It implements a very simple parser for robots.txt
+		 * @param response response to a request
 		 * 
-		 * @param pageLink url from which the excluded list will be gathered
+		 * @return wait in milliseconds, or 0 if not given.
 		 */
-		 private List<URL> getExcludedList(URL pageLink){
-			List<URL> results = new ArrayList<URL>();
-			String baseLink=pageLink.getProtocol() + "://" + 
-					 pageLink.getHost() + (pageLink.getPort() > -1 ? ":" + pageLink.getPort() : "");
-			String robotsLink = baseLink +"/robots.txt";			 
-			URL robotsURL=null;
-			try {
-				robotsURL = new URL (robotsLink);
-			} catch (MalformedURLException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		private long retryAfterMillis(FetchResult response){
+			String retryAfter=response.getHeader("Retry-After");
+			if (retryAfter==null){
+				return 0;
 			}
-			BufferedReader in=null;
 			try {
-				in = new BufferedReader(new InputStreamReader(robotsURL.openStream()));
-			} catch (Exception e) {
-				// TODO Auto-generated catch block
-				System.out.println("Failed to load the excluded list: robots.txt from "+baseLink+", for page: "+pageLink.toString()+", will proceed without it.");
-				return results;
-			}
-			if (in!=null){
-				try {
-					if (!in.ready()){
-						return results;
-					}
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-			
-				String line = null;
-				try {
-					boolean agentSeen=false;
-					String tentativeURL;
-					while((line = in.readLine()) != null) {
-						if (line.contains("User-Agent: *")){
-							agentSeen=true;
-					 	}
-					 	else if (agentSeen && line.contains("User-Agent:")){
-					 		agentSeen=false;
-					 		if(!results.isEmpty()){
-								return removeRepeated(results);
-							}
-							return results;
-					 	}
-					 	else if (agentSeen && line.contains("Disallow: ")){
-					 		line=line.replace("Disallow: ", "");
-					 		if (!(line.contains("*")||line.contains("?")||line.contains("#"))){
-					 		tentativeURL=normalize(baseLink+line.trim());
-					 		if(!tentativeURL.equals(baseLink))
-					 				results.add(new URL(tentativeURL));
-					 		}
-					 	}	
-					}
-				} catch (IOException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
+				return Math.max(0, Long.parseLong(retryAfter.trim())*1000);
+			} catch (NumberFormatException e) {
+				return 0; //An HTTP date. The backoff of the host applies instead.
 			}
-			if(!results.isEmpty()){
-				return removeRepeated(results);
-			}
-			return results;
-		 }
+		}
 		
 		/**
-		 * Function to normalize a URL using its baseURL. 
-		 * Can be called while crawling outlinks. It only checks for ?, $, #, javascript and blank spaces, 
-		 * removing those characters as well as the substring that follows them. It also removes a trailing
-		 * / and transforms the resulting string to URL, checking in this way for MalformedURLException.
-		 * 
-		 * @param taintedURL url to be corrected
-		 * @param baseURL base url if known, should not be empty.
-		 * 
-		 * @author Rene
-		 * @author Gabriel
-		 * 
-		 * @return normalized url
-		 * 
-		 * @throws MalformedURLException
+		 * Function to mark as visited all URLs a request was redirected through, as recorded by the fetcher, and its final location.
+		 * The starting one is marked later, outside of the crawlAndIndexPage function.
 		 * 
+		 * @param response response to the request
 		 */
-		private String normalize(String taintedURL, String baseURL) throws MalformedURLException  {
-		    URL url = null;
-		    if (taintedURL.contains("?")&& !taintedURL.startsWith("?")){
-		    	taintedURL = taintedURL.split("\\?")[0];
-		    }
-			if(taintedURL.startsWith("?")){
-				taintedURL="";
-			}
-		   
-			if (taintedURL.contains("#") && !taintedURL.startsWith("#")){
-			    	taintedURL = taintedURL.split("#")[0];
-			}
-			if(taintedURL.startsWith("#")){
-				taintedURL="";
-			}
-			if (taintedURL.contains("javascript:") && !taintedURL.startsWith("javascript:")){
-		    	taintedURL = taintedURL.split("javascript:")[0];
-			}
-			if(taintedURL.startsWith("javascript:")){
-				taintedURL="";
-			}
-	        try { 
-	        	URI uri=new URI(taintedURL);
-	        	URI uribase = new URI(baseURL);
-	        	if (uri.isAbsolute()){
-	        		url = uri.normalize().toURL();	
-	            }
-	        	else{
-	        		url= new URL(uribase.toURL(),taintedURL);
-	        	}        
-	        }
-	        catch (URISyntaxException e) {
-	            throw new MalformedURLException(e.getMessage());
-	        }
-	        
-	        String path = url.getPath().replace("/$", "");
-	             
-	        String returnString = url.getProtocol() + "://" + url.getHost() + path ; 
-	        
-	        if (returnString.endsWith("/"))
-	        	returnString=returnString.substring(0, returnString.length()-1);
-	        if (returnString.contains("http://stackoverflow.com/questions/")){
-	        	String trailingString= returnString.split("http://stackoverflow.com/questions/")[1];
-	        	String chunks []= trailingString.split("/");
-	        	if (chunks.length>=2){
-	        		boolean isNumberPL=true;
-					try {  
-						@SuppressWarnings("unused")
-						double d = Double.parseDouble(chunks[0]);  
-					}  
-					catch(NumberFormatException nfe){  
-						isNumberPL=false;  
-					}
-					if(isNumberPL){
-						returnString="http://stackoverflow.com/questions/";
-	        			returnString+=chunks[0]+"/"+chunks[1];
-					}
+		private void markRedirectsAsVisited(FetchResult response){
+			List<String> hops=new ArrayList<String>(response.getRedirectChain());
+			hops.add(response.getUrl());
+			for (int i=1; i<hops.size(); i++){
+				try {
+					markAsVisited(CrawlUrl.parse(normalizer.normalize(hops.get(i))));
+				} catch (MalformedURLException e) {
+					e.printStackTrace();
 				}
-	        }
-	        return returnString;	
-	    }
+			}
+		}
 		
-		/**
-		 * Function to partially normalize a URL without using its baseURL
-		 * Can be called while crawling outlinks. It only checks for ?, #, $, javascript and blank spaces, 
-		 * removing those characters as well as the substring that follows them. It also removes a trailing
-		 * / and transforms the resulting string to URL, checking in this way for MalformedURLException.
-		 * <p>
-		 * We add a site specific normalization for stackoverflow.com: URLS such as: http://stackoverflow.com/questions/number/description/answer_number
-		 * are normalized to: http://stackoverflow.com/questions/number/description
-		 * 
-		 * @param input url as string
-		 * 
-		 * @author Rene
-		 * @author Gabriel
-		 * 
-		 * @return normalized url
-		 * 
-		 * @throws MalformedURLException
-		 *  */
-		private String normalize(String input) {
-		    String taintedURL=input;
-		    if (taintedURL.contains("?")&& !taintedURL.startsWith("?")){
-		    	taintedURL = taintedURL.split("\\?")[0];
-		    }
-		    if (taintedURL.contains(" ")){
-		    	String parseArray[] = taintedURL.split(" ");
-		    	for (int i=0; i<parseArray.length; i++){
-		    		if(parseArray[i].length()>2){
-		    			taintedURL=parseArray[i];
-		    			i=parseArray.length;
-		    		}
-		    	}
-		    }
-			if(taintedURL.startsWith("?")){
-				taintedURL="";
-			}
-		   
-			if (taintedURL.contains("#") && !taintedURL.startsWith("#")){
-			    	taintedURL = taintedURL.split("#")[0];
-			}
-			if(taintedURL.startsWith("#")){
-				taintedURL="";
-			}
-			if (taintedURL.contains("javascript:") && !taintedURL.startsWith("javascript:")){
-		    	taintedURL = taintedURL.split("javascript:")[0];
-			}
-			if(taintedURL.startsWith("javascript:")){
-				taintedURL="";
-			}
-	        String returnString = taintedURL; 
-	        if (returnString.endsWith("/"))
-	        	returnString=returnString.substring(0, returnString.length()-1);
-	        if (returnString.contains("http://stackoverflow.com/questions/")){
-	        	String trailingString= returnString.split("http://stackoverflow.com/questions/")[1];
-	        	String chunks []= trailingString.split("/");
-	        	if (chunks.length>=2){
-	        		boolean isNumberPL=true;
-					try {  
-						@SuppressWarnings("unused")
-						double d = Double.parseDouble(chunks[0]);  
-					}  
-					catch(NumberFormatException nfe){  
-						isNumberPL=false;  
-					}
-					if(isNumberPL){
-						returnString="http://stackoverflow.com/questions/";
-	        			returnString+=chunks[0]+"/"+chunks[1];
-					}
-	        	}
-	        }
-	        return returnString;	
-	    }
-
 		/**
 		 * Function in charge of adding a host to the existing thread
 		 * Note: It uses a lock for concurrent access to the hostnames list of the thread.
@@ -2349,6 +2660,30 @@ public class WebCrawler {
 		}
 		
 		
+		/**
+		 * Function in charge of removing a host from the existing thread, when another thread takes it over.
+		 * Note: It uses a lock for concurrent access to the hostnames list of the thread.
+		 * 
+		 * @param host
+		 */
+		public void removeHost(String host){
+			synchronized (hostnames_lock){
+				hostnames.remove(host);
+			}
+		}
+		
+		/**
+		 * Function to get the hosts of the thread.
+		 * Note: It uses a lock for concurrent access to the hostnames list of the thread.
+		 * 
+		 * @return copy of the hostnames list.
+		 */
+		public List<String> getHosts(){
+			synchronized (hostnames_lock){
+				return new ArrayList<String>(hostnames);
+			}
+		}
+		
 		/**
 		 * Function to determine if a thread is busy. 
 		 * Note: It uses locks for concurrent access to the isBusy field of the thread.
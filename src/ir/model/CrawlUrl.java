@@ -0,0 +1,177 @@
+package ir.model;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ *
+ * An immutable absolute URL, as used by the crawler: scheme, host, port and path, split out once when it is created.
+ * <p>
+ * Unlike java.net.URL, equality and hash code only compare the text of the URL, so they never resolve the host.
+ * The hash code is computed once, and hosts are interned, so that the URLs of a host share a single string.
+ * <p>
+ * The text is expected to be normalized already. Only the scheme and the host are lowercased.
+ *
+ */
+
+public final class CrawlUrl {
+
+	/**Full text of the url.*/
+	private final String url;
+	/**Scheme, in lowercase.*/
+	private final String scheme;
+	/**Host, in lowercase and interned.*/
+	private final String host;
+	/**Port, or -1 if not given.*/
+	private final int port;
+	/**Position of the path in the full text.*/
+	private final int pathStart;
+	/**Cached hash code.*/
+	private final int hash;
+
+	private CrawlUrl(String url, String scheme, String host, int port, int pathStart){
+		this.url=url;
+		this.scheme=scheme;
+		this.host=host;
+		this.port=port;
+		this.pathStart=pathStart;
+		this.hash=url.hashCode();
+	}
+
+	/**
+	 * Function to create a URL from its text. Everything after the authority (path, and query or fragment if any) is kept as the path.
+	 *
+	 * @param spec absolute url, such as http://host:port/path
+	 *
+	 * @return the url.
+	 *
+	 * @throws MalformedURLException if the text has no scheme or no host, or an invalid port.
+	 */
+	public static CrawlUrl parse(String spec) throws MalformedURLException{
+		if (spec==null){
+			throw new MalformedURLException("null url");
+		}
+		spec=spec.trim();
+		int schemeEnd=spec.indexOf("://");
+		if (schemeEnd<=0){
+			throw new MalformedURLException("no scheme: "+spec);
+		}
+		for (int i=0; i<schemeEnd; i++){
+			char c=spec.charAt(i);
+			if (!(Character.isLetterOrDigit(c) || c=='+' || c=='-' || c=='.')){
+				throw new MalformedURLException("invalid scheme: "+spec);
+			}
+		}
+		int authorityStart=schemeEnd+3;
+		int authorityEnd=spec.length();
+		for (int i=authorityStart; i<spec.length(); i++){
+			char c=spec.charAt(i);
+			if (c=='/' || c=='?' || c=='#'){
+				authorityEnd=i;
+				break;
+			}
+		}
+		String authority=spec.substring(authorityStart, authorityEnd);
+		int at=authority.lastIndexOf('@');
+		if (at>=0){
+			authority=authority.substring(at+1); //User information is not kept.
+		}
+		String hostPart=authority;
+		int port=-1;
+		int colon=authority.lastIndexOf(':');
+		if (colon>=0 && colon>authority.lastIndexOf(']')){
+			hostPart=authority.substring(0, colon);
+			String portPart=authority.substring(colon+1);
+			if (!portPart.isEmpty()){
+				try {
+					port=Integer.parseInt(portPart);
+				}
+				catch (NumberFormatException e){
+					throw new MalformedURLException("invalid port: "+spec);
+				}
+				if (port<0 || port>65535){
+					throw new MalformedURLException("invalid port: "+spec);
+				}
+			}
+		}
+		if (hostPart.isEmpty()){
+			throw new MalformedURLException("no host: "+spec);
+		}
+		String scheme=spec.substring(0, schemeEnd).toLowerCase();
+		String host=hostPart.toLowerCase().intern();
+		String prefix=scheme+"://"+host+(port>-1 ? ":"+port : "");
+		String path=spec.substring(authorityEnd);
+		return new CrawlUrl(prefix+path, scheme, host, port, prefix.length());
+	}
+
+	/**
+	 * Function to create a URL from a java.net.URL.
+	 *
+	 * @param url url
+	 *
+	 * @return the url.
+	 *
+	 * @throws MalformedURLException if the url has no host.
+	 */
+	public static CrawlUrl fromURL(URL url) throws MalformedURLException{
+		return parse(url.toString());
+	}
+
+	public String getScheme(){
+		return scheme;
+	}
+
+	public String getHost(){
+		return host;
+	}
+
+	public int getPort(){
+		return port;
+	}
+
+	public String getPath(){
+		return url.substring(pathStart);
+	}
+
+	/**
+	 * Function to get the scheme, host and port of the URL, such as http://host:port
+	 *
+	 * @return origin of the url, without a trailing /.
+	 */
+	public String getOrigin(){
+		return url.substring(0, pathStart);
+	}
+
+	/**
+	 * Function to get the URL as a java.net.URL, to open a connection.
+	 *
+	 * @return the url.
+	 *
+	 * @throws MalformedURLException if java.net.URL does not accept it.
+	 */
+	public URL toURL() throws MalformedURLException{
+		return new URL(url);
+	}
+
+	@Override
+	public int hashCode(){
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object other){
+		if (this==other){
+			return true;
+		}
+		if (!(other instanceof CrawlUrl)){
+			return false;
+		}
+		CrawlUrl o=(CrawlUrl)other;
+		return hash==o.hash && url.equals(o.url);
+	}
+
+	@Override
+	public String toString(){
+		return url;
+	}
+}
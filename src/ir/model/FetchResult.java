@@ -0,0 +1,147 @@
+package ir.model;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * A POJO to keep together the response to a request: its final URL, the redirects followed to get there, its status code, 
+ * headers and body. The body is decoded if it was compressed for the transfer (gzip or deflate), and may have been truncated, 
+ * or not downloaded at all (see getSkipReason).
+ *
+ */
+
+public class FetchResult {
+
+	String url;
+	int statusCode;
+	Map<String,List<String>> headers;
+	byte [] body;
+	List<String> redirectChain;
+	boolean truncated;
+	String skipReason;
+	long transferSize;
+
+	/**Reason for not downloading a body: its Content-Type cannot be parsed.*/
+	public static final String SKIPPED_CONTENT_TYPE="content-type";
+
+	/**Reason for not downloading a body: its Content-Length is over the maximum.*/
+	public static final String SKIPPED_CONTENT_LENGTH="content-length";
+
+	public FetchResult(String url, List<String> redirectChain, int statusCode, Map<String,List<String>> headers, byte [] body){
+		this(url, redirectChain, statusCode, headers, body, false, null, body.length);
+	}
+
+	public FetchResult(String url, List<String> redirectChain, int statusCode, Map<String,List<String>> headers, byte [] body,
+			boolean truncated, String skipReason, long transferSize){
+		this.url=url;
+		this.redirectChain=redirectChain;
+		this.statusCode=statusCode;
+		this.headers=headers;
+		this.body=body;
+		this.truncated=truncated;
+		this.skipReason=skipReason;
+		this.transferSize=transferSize;
+	}
+
+	/**
+	 * @return url of the response, after the redirects followed, if any.
+	 */
+	public String getUrl() {
+		return url;
+	}
+
+	/**
+	 * @return urls that answered with a redirect, in the order they were requested, starting with the requested url. 
+	 * This list is empty if there was no redirect.
+	 */
+	public List<String> getRedirectChain(){
+		return redirectChain;
+	}
+
+	public int getStatusCode(){
+		return statusCode;
+	}
+
+	/**
+	 * @return headers of the response, by name. Names are case-insensitive.
+	 */
+	public Map<String,List<String>> getHeaders(){
+		return headers;
+	}
+
+	/**
+	 * @param name name of the header, case-insensitive
+	 * @return first value of the header, or null if not present.
+	 */
+	public String getHeader(String name){
+		List<String> values=headers.get(name);
+		if (values==null || values.isEmpty()){
+			return null;
+		}
+		return values.get(0);
+	}
+
+	/**
+	 * @return values of the header, in order. This list can be empty.
+	 */
+	public List<String> getHeaderValues(String name){
+		List<String> values=headers.get(name);
+		if (values==null){
+			return Collections.emptyList();
+		}
+		return values;
+	}
+
+	/**
+	 * @return the Content-Type header, or null if not present.
+	 */
+	public String getContentType(){
+		return getHeader("Content-Type");
+	}
+
+	/**
+	 * @return charset given in the Content-Type header, or null if not given.
+	 */
+	public String getCharset(){
+		String contentType=getContentType();
+		if (contentType==null){
+			return null;
+		}
+		for (String param: contentType.split(";")){
+			param=param.trim();
+			if (param.toLowerCase().startsWith("charset=")){
+				String charset=param.substring("charset=".length()).trim().replace("\"", "");
+				return charset.isEmpty() ? null : charset;
+			}
+		}
+		return null;
+	}
+
+	public byte [] getBody(){
+		return body;
+	}
+
+	/**
+	 * @return true if the body was cut at the maximum size, false otherwise.
+	 */
+	public boolean isTruncated(){
+		return truncated;
+	}
+
+	/**
+	 * @return why the body was not downloaded (SKIPPED_CONTENT_TYPE or SKIPPED_CONTENT_LENGTH), or null if it was. 
+	 * A body not downloaded is empty.
+	 */
+	public String getSkipReason(){
+		return skipReason;
+	}
+
+	/**
+	 * @return number of bytes of the body as transferred, before decoding. It is smaller than the body if it was compressed.
+	 */
+	public long getTransferSize(){
+		return transferSize;
+	}
+}
@@ -1,7 +1,5 @@
 package ir.model;
 
-import java.net.URL;
-
 /**
  * 
  * A POJO to keep together an URL with its depth
@@ -12,19 +10,19 @@ import java.net.URL;
 
 public class ItemUrl {
 	
-	URL url; 
+	CrawlUrl url; 
 	int depth;
 	
-	public ItemUrl(URL url, int depth){
+	public ItemUrl(CrawlUrl url, int depth){
 		this.url=url;
 		this.depth=depth;
 	}
 	
-	public URL getUrl() {
+	public CrawlUrl getUrl() {
 		return url;
 	}
 	
-	public void setUrl(URL url) {
+	public void setUrl(CrawlUrl url) {
 		this.url = url;
 	}
 	
@@ -0,0 +1,305 @@
+package ir.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ * The rules of a robots.txt file that apply to the crawler: its Allow and Disallow lines, and its Crawl-delay, if any.
+ * <p>
+ * Rules follow the robots exclusion protocol (RFC 9309): a path is allowed unless a Disallow rule matches it, and when both
+ * Allow and Disallow rules match, the longest one decides (Allow wins a tie). Patterns can use * for any sequence of
+ * characters, and end with $ to match only up to the end of the path.
+ * <p>
+ * Instances are immutable, and record when their file was fetched, so they can expire. The rules of a host whose file could not
+ * be reached are told apart (see disallowAll), so they can expire sooner.
+ *
+ */
+
+public final class RobotsRules {
+
+	/**A single Allow or Disallow line.*/
+	public static final class Rule {
+		private final boolean allow;
+		private final String pattern;
+
+		public Rule(boolean allow, String pattern){
+			this.allow=allow;
+			this.pattern=pattern;
+		}
+
+		public boolean isAllow(){
+			return allow;
+		}
+
+		public String getPattern(){
+			return pattern;
+		}
+
+		/**
+		 * @return true if the pattern has no wildcard and no end anchor, so it is a plain path prefix.
+		 */
+		public boolean isLiteral(){
+			return pattern.indexOf('*')<0 && pattern.indexOf('$')<0;
+		}
+	}
+
+	/**Rules of a host without robots.txt, or whose robots.txt could not be read: everything is allowed.*/
+	private static final List<Rule> NO_RULES=Collections.emptyList();
+
+	/**Allow and Disallow rules, in file order.*/
+	private final List<Rule> rules;
+	/**Crawl-delay, in milliseconds, or -1 if not given.*/
+	private final long crawlDelayMillis;
+	/**Time when the file was fetched, in milliseconds since the epoch.*/
+	private final long fetchedAt;
+	/**True if the file could not be reached, and the rules disallow everything until it can.*/
+	private final boolean unreachable;
+
+	public RobotsRules(List<Rule> rules, long crawlDelayMillis, long fetchedAt){
+		this(rules, crawlDelayMillis, fetchedAt, false);
+	}
+
+	private RobotsRules(List<Rule> rules, long crawlDelayMillis, long fetchedAt, boolean unreachable){
+		this.rules=Collections.unmodifiableList(new ArrayList<Rule>(rules));
+		this.crawlDelayMillis=crawlDelayMillis;
+		this.fetchedAt=fetchedAt;
+		this.unreachable=unreachable;
+	}
+
+	/**
+	 * Function to create the rules of a host that allows everything.
+	 *
+	 * @param fetchedAt time when the host was checked, in milliseconds since the epoch.
+	 *
+	 * @return rules without restrictions.
+	 */
+	public static RobotsRules allowAll(long fetchedAt){
+		return new RobotsRules(NO_RULES, -1, fetchedAt);
+	}
+
+	/**
+	 * Function to create the rules of a host whose robots.txt could not be reached, after a server error or no answer at all.
+	 * As RFC 9309 asks, everything is disallowed.
+	 *
+	 * @param fetchedAt time when the host was checked, in milliseconds since the epoch.
+	 *
+	 * @return rules disallowing everything.
+	 */
+	public static RobotsRules disallowAll(long fetchedAt){
+		return new RobotsRules(Collections.singletonList(new Rule(false, "/")), -1, fetchedAt, true);
+	}
+
+	/**
+	 * Function to parse a robots.txt file, keeping only the group of rules that applies to a user agent.
+	 * <p>
+	 * The groups whose User-agent matches the product token of the user agent (its first word, before any /) are used.
+	 * If there are none, the groups for * are used instead. Directive names are case-insensitive, comments and unknown
+	 * directives are ignored.
+	 *
+	 * @param content text of the file
+	 * @param userAgent user agent of the crawler
+	 * @param fetchedAt time when the file was fetched, in milliseconds since the epoch.
+	 *
+	 * @return the rules. They allow everything if no group applies.
+	 */
+	public static RobotsRules parse(String content, String userAgent, long fetchedAt){
+		String token=productToken(userAgent);
+		List<Rule> ownRules=new ArrayList<Rule>();
+		List<Rule> anyRules=new ArrayList<Rule>();
+		long ownDelay=-1;
+		long anyDelay=-1;
+		boolean ownGroupSeen=false;
+
+		boolean inOwnGroup=false;
+		boolean inAnyGroup=false;
+		boolean groupHasRules=true; //So the first User-agent line starts a group.
+		for (String line: content.split("\r\n|\r|\n")){
+			int comment=line.indexOf('#');
+			if (comment>=0){
+				line=line.substring(0, comment);
+			}
+			int colon=line.indexOf(':');
+			if (colon<0){
+				continue;
+			}
+			String name=line.substring(0, colon).trim().toLowerCase();
+			String value=line.substring(colon+1).trim();
+			if (name.equals("user-agent")){
+				if (groupHasRules){ //A User-agent line after rules starts a new group. Consecutive ones share the group.
+					inOwnGroup=false;
+					inAnyGroup=false;
+					groupHasRules=false;
+				}
+				String agent=value.toLowerCase();
+				if (agent.equals("*")){
+					inAnyGroup=true;
+				}
+				else if (!token.isEmpty() && agent.equals(token)){
+					inOwnGroup=true;
+					ownGroupSeen=true;
+				}
+			}
+			else if (name.equals("allow") || name.equals("disallow")){
+				groupHasRules=true;
+				if (value.isEmpty()){ //An empty Disallow allows everything, which is the default anyway.
+					continue;
+				}
+				Rule rule=new Rule(name.equals("allow"), value.replace(" ", "%20"));
+				if (inOwnGroup){
+					ownRules.add(rule);
+				}
+				if (inAnyGroup){
+					anyRules.add(rule);
+				}
+			}
+			else if (name.equals("crawl-delay")){
+				groupHasRules=true;
+				try {
+					long delay=(long)(Double.parseDouble(value)*1000);
+					if (delay>=0){
+						if (inOwnGroup){
+							ownDelay=delay;
+						}
+						if (inAnyGroup){
+							anyDelay=delay;
+						}
+					}
+				}
+				catch (NumberFormatException e){
+					//Ignored, as any other malformed line.
+				}
+			}
+		}
+		if (ownGroupSeen){
+			return new RobotsRules(ownRules, ownDelay, fetchedAt);
+		}
+		return new RobotsRules(anyRules, anyDelay, fetchedAt);
+	}
+
+	/**
+	 * Function to check if a path can be crawled.
+	 *
+	 * @param path path of the url, with its query if any, such as /a/b?c=d
+	 *
+	 * @return true if no rule disallows it, false otherwise.
+	 */
+	public boolean isAllowed(String path){
+		if (path.isEmpty()){
+			path="/";
+		}
+		if (path.equals("/robots.txt")){
+			return true;
+		}
+		int bestLength=-1;
+		boolean allowed=true;
+		for (Rule rule: rules){
+			int length=rule.pattern.length();
+			if (length<bestLength || (length==bestLength && allowed)){
+				continue; //It could not change the result.
+			}
+			if (matches(rule.pattern, path)){
+				bestLength=length;
+				allowed=rule.allow;
+			}
+		}
+		return allowed;
+	}
+
+	/**
+	 * Function to check if the rules allow everything.
+	 *
+	 * @return true if there are no Disallow rules.
+	 */
+	public boolean allowsAll(){
+		for (Rule rule: rules){
+			if (!rule.allow){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public List<Rule> getRules(){
+		return rules;
+	}
+
+	/**
+	 * @return Crawl-delay, in milliseconds, or -1 if not given.
+	 */
+	public long getCrawlDelayMillis(){
+		return crawlDelayMillis;
+	}
+
+	/**
+	 * @return time when the file was fetched, in milliseconds since the epoch.
+	 */
+	public long getFetchedAt(){
+		return fetchedAt;
+	}
+
+	/**
+	 * @return true if the file could not be reached, so the rules disallow everything (see disallowAll).
+	 */
+	public boolean isUnreachable(){
+		return unreachable;
+	}
+
+	/**
+	 * Helper function to match a pattern against a path, from its start. * matches any sequence, and a final $ the end of the path.
+	 * Otherwise, the pattern only needs to match a prefix of the path.
+	 *
+	 * @param pattern pattern of a rule
+	 * @param path path to check
+	 *
+	 * @return true if the pattern matches.
+	 */
+	private static boolean matches(String pattern, String path){
+		boolean anchored=pattern.endsWith("$");
+		int patternEnd=anchored ? pattern.length()-1 : pattern.length();
+		int p=0;
+		int s=0;
+		int starAt=-1;
+		int starMatch=0;
+		while (true){
+			if (p==patternEnd && (!anchored || s==path.length())){
+				return true;
+			}
+			if (p<patternEnd && pattern.charAt(p)=='*'){
+				starAt=p++;
+				starMatch=s;
+			}
+			else if (p<patternEnd && s<path.length() && pattern.charAt(p)==path.charAt(s)){
+				p++;
+				s++;
+			}
+			else if (starAt>=0 && starMatch<path.length()){ //Let the last * take one more character, and retry after it.
+				p=starAt+1;
+				s=++starMatch;
+			}
+			else {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Helper function to get the product token of a user agent, such as mybot for mybot/1.0 (+http://example.com)
+	 *
+	 * @param userAgent user agent
+	 *
+	 * @return the token, in lowercase.
+	 */
+	private static String productToken(String userAgent){
+		if (userAgent==null){
+			return "";
+		}
+		String token=userAgent.trim();
+		int end=0;
+		while (end<token.length() && token.charAt(end)!='/' && !Character.isWhitespace(token.charAt(end))){
+			end++;
+		}
+		return token.substring(0, end).toLowerCase();
+	}
+}